@@ -0,0 +1,14 @@
+#!/bin/sh
+#  Starts a process of the cluster with the fast-startup profile, e.g.
+#
+#      ./launch.sh Participant <coordPort> <loggerPort> <port> <timeout>
+#
+#  The profile is built into $CONSENSUS_PROFILE (default ./startup) with "java -cp <classes> StartupArchive <dir>".
+#  Without an archive, or on a JVM that can't use it, the process starts as it would without the profile.
+PROFILE="${CONSENSUS_PROFILE:-$(dirname "$0")/startup}"
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+
+if [ -f "$PROFILE/consensus.jsa" ]; then
+    exec "$JAVA" -XX:SharedArchiveFile="$PROFILE/consensus.jsa" -Xshare:auto $JAVA_OPTS -cp "$PROFILE/consensus.jar" "$@"
+fi
+exec "$JAVA" $JAVA_OPTS -cp "$PROFILE/consensus.jar" "$@"
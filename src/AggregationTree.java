@@ -0,0 +1,52 @@
+import java.util.*;
+
+/*
+ *  Groups the participants of a run for reporting outcomes, so the coordinator hears from one leader per group rather
+ *  than from every participant. Participants are taken in their DETAILS order and split into consecutive groups of
+ *  groupSize, each led by its first member. Members report to their leader, which merges the reports into one
+ *  SUMMARY for the coordinator, so the coordinator's fan-in is the number of groups.
+ *
+ *  Enabled with -Dconsensus.aggregation, set to a group size or to "sqrt" for groups of the square root of the
+ *  number of participants, which gives the square root of it in fan-in too. The coordinator and every participant
+ *  must be given the same setting.
+ */
+public class AggregationTree {
+    private final int numParticipants;
+    private final int groupSize;
+
+    public AggregationTree(int numParticipants, int groupSize) {
+        if (groupSize < 1) throw new IllegalArgumentException("Aggregation groups need at least one participant");
+        this.numParticipants = numParticipants;
+        this.groupSize = groupSize;
+    }
+
+    //  @return the tree for a run of the given size, or null if outcomes are reported directly
+    public static AggregationTree fromSystemProperties(int numParticipants) {
+        String setting = System.getProperty("consensus.aggregation");
+        if (setting == null || numParticipants == 0) return null;
+        int groupSize = setting.equals("sqrt")
+                ? (int) Math.ceil(Math.sqrt(numParticipants))
+                : Integer.parseInt(setting);
+        return new AggregationTree(numParticipants, groupSize);
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    //  @return the index of the leader of the given participant's group, which is the participant itself for a leader
+    public int leaderOf(int participant) {
+        return participant - participant % groupSize;
+    }
+
+    public boolean isLeader(int participant) {
+        return participant % groupSize == 0;
+    }
+
+    //  @return the participants in the group led by the given leader, the leader included
+    public BitSet groupOf(int leader) {
+        BitSet group = new BitSet(numParticipants);
+        group.set(leader, Math.min(leader + groupSize, numParticipants));
+        return group;
+    }
+}
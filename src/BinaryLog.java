@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *  Compact binary form of the participant and coordinator logs, enabled with -Dconsensus.log.format=binary. Each
+ *  logger call becomes one fixed-size record rather than a text line, and BinaryLogDecoder renders the records back
+ *  into the same text lines by replaying them through a text logger.
+ *
+ *  Every record is RECORD_SIZE bytes: event, flags, item count, two int arguments and the time in microseconds since
+ *  the current base. Strings (options, outcomes, raw messages) are written once as DICT records and referred to by id
+ *  afterwards. A list argument follows its record as packed items padded to whole records; a list identical to the
+ *  last one written for the same event, such as the votes sent to every peer in a round, is flagged REPEAT instead.
+ *  Votes take four bytes each, a port and an option id, with the options numbered separately by OPTION records so
+ *  their ids stay small. VOTE frames sent or received are written as their votes too, rather than as text.
+ *
+ *  The file starts with a HEADER record (magic, role and process id) and a BASE record holding the wall-clock base
+ *  time; another BASE record follows whenever the offset would overflow.
+ */
+public class BinaryLog {
+    static final int MAGIC = 0x434c4f47;
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 16;
+
+    //  Records that aren't logger events
+    static final byte HEADER = 0;
+    static final byte BASE = 1;
+    static final byte DICT = 2;
+    static final byte OPTION = 3;
+
+    //  Logger events, shared by both roles
+    static final byte STARTED_LISTENING = 10;
+    static final byte CONNECTION_ACCEPTED = 11;
+    static final byte CONNECTION_ESTABLISHED = 12;
+    static final byte MESSAGE_SENT = 13;
+    static final byte MESSAGE_RECEIVED = 14;
+    static final byte PARTICIPANT_CRASHED = 15;
+    static final byte JOIN_SENT = 16;
+    static final byte JOIN_RECEIVED = 17;
+    static final byte DETAILS_SENT = 18;
+    static final byte DETAILS_RECEIVED = 19;
+    static final byte VOTE_OPTIONS_SENT = 20;
+    static final byte VOTE_OPTIONS_RECEIVED = 21;
+    static final byte BEGIN_ROUND = 22;
+    static final byte END_ROUND = 23;
+    static final byte VOTES_SENT = 24;
+    static final byte VOTES_RECEIVED = 25;
+    static final byte OUTCOME_DECIDED = 26;
+    static final byte OUTCOME_NOTIFIED = 27;
+    static final byte OUTCOME_RECEIVED = 28;
+    static final int NUM_EVENTS = 29;
+
+    //  Flags
+    static final byte REPEAT = 1;
+    //  Set on MESSAGE_SENT and MESSAGE_RECEIVED when the message was a plain VOTE frame, written as its votes
+    static final byte VOTE_FRAME = 2;
+
+    //  Id written for a null string
+    static final int NULL_STRING = -1;
+
+    //  Strings kept in the dictionary before the least recently used are forgotten and written again on next use
+    private static final int DICTIONARY_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> dictionary;
+    private final Map<String, Integer> options;
+    private final ByteBuffer[] lastLists;
+    private ByteBuffer items;
+    private int nextId;
+    private long baseMicros;
+
+    public BinaryLog(File file, char role, int processId) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.dictionary = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > DICTIONARY_SIZE;
+            }
+        };
+        this.options = new HashMap<>();
+        this.lastLists = new ByteBuffer[NUM_EVENTS];
+        this.items = ByteBuffer.allocate(1024);
+
+        putRecord(HEADER, (byte) role, VERSION, MAGIC, processId, 0);
+        rebase(TraceRecorder.nowMicros());
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    //  Whether processes should log in binary rather than text
+    public static boolean isEnabled() {
+        return "binary".equals(System.getProperty("consensus.log.format"));
+    }
+
+    public synchronized void write(byte event, int a, int b) {
+        putRecord(event, (byte) 0, 0, a, b, time());
+    }
+
+    public synchronized void writeString(byte event, int a, String string) {
+        int id = intern(string);
+        putRecord(event, (byte) 0, 0, a, id, time());
+    }
+
+    public synchronized void writeMessage(byte event, int a, String message) {
+        if (message == null || !message.startsWith("VOTE ") || message.endsWith(" ")) {
+            writeString(event, a, message);
+            return;
+        }
+
+        String[] tokens = message.split(" ");
+        if (tokens.length % 2 == 0) {
+            writeString(event, a, message);
+            return;
+        }
+        items.clear();
+        for (int i = 1; i < tokens.length; i += 2) {
+            int port = parsePort(tokens[i]);
+            if (port < 0 || tokens[i + 1].isEmpty()) {
+                //  not in the form the votes would be rendered back to
+                writeString(event, a, message);
+                return;
+            }
+            int option = option(tokens[i + 1]);
+            ensureItems(4).putChar((char) port).putChar((char) option);
+        }
+        items.flip();
+        putRecord(event, VOTE_FRAME, tokens.length / 2, a, 0, time());
+        put(items);
+        pad();
+    }
+
+    public synchronized void writePorts(byte event, int a, String string, List<Integer> ports) {
+        int id = intern(string);
+        items.clear();
+        for (Integer port : ports) {
+            ensureItems(4).putInt(port);
+        }
+        putList(event, a, id, ports.size());
+    }
+
+    public synchronized void writeStrings(byte event, int a, List<String> strings) {
+        items.clear();
+        for (String string : strings) {
+            int id = intern(string);
+            ensureItems(4).putInt(id);
+        }
+        putList(event, a, 0, strings.size());
+    }
+
+    public synchronized void writeVotes(byte event, int a, List<Vote> votes) {
+        items.clear();
+        for (Vote vote : votes) {
+            int option = option(vote.getVote());
+            ensureItems(4).putChar((char) vote.getParticipantPort()).putChar((char) option);
+        }
+        putList(event, a, 0, votes.size());
+    }
+
+    //  Pushes buffered records to the file; called at the end of each round, and on exit
+    public synchronized void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        buffer.clear();
+    }
+
+    private void putList(byte event, int a, int b, int count) {
+        if (count > 0xffff) throw new IllegalArgumentException("Too many items to log: " + count);
+        items.flip();
+        ByteBuffer last = lastLists[event];
+        if (last != null && last.equals(items)) {
+            putRecord(event, REPEAT, count, a, b, time());
+            return;
+        }
+
+        putRecord(event, (byte) 0, count, a, b, time());
+        lastLists[event] = copy(items, last);
+        put(items);
+        pad();
+    }
+
+    private int intern(String string) {
+        if (string == null) return NULL_STRING;
+        Integer id = dictionary.get(string);
+        if (id != null) return id;
+
+        id = nextId++;
+        dictionary.put(string, id);
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        putRecord(DICT, (byte) 0, 0, id, bytes.length, 0);
+        put(ByteBuffer.wrap(bytes));
+        pad();
+        return id;
+    }
+
+    private int option(String option) {
+        Integer id = options.get(option);
+        if (id != null) return id;
+
+        id = options.size();
+        if (id > 0xffff) throw new IllegalStateException("Too many distinct options to log");
+        options.put(option, id);
+        byte[] bytes = option.getBytes(StandardCharsets.UTF_8);
+        putRecord(OPTION, (byte) 0, 0, id, bytes.length, 0);
+        put(ByteBuffer.wrap(bytes));
+        pad();
+        return id;
+    }
+
+    //  The port a token names, or -1 unless it is written exactly as Integer.toString would write a port
+    private static int parsePort(String token) {
+        if (token.isEmpty() || token.length() > 5 || (token.length() > 1 && token.charAt(0) == '0')) return -1;
+        int port = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            port = port * 10 + (c - '0');
+        }
+        return port <= 0xffff ? port : -1;
+    }
+
+    private int time() {
+        long offset = TraceRecorder.nowMicros() - baseMicros;
+        if (offset > Integer.MAX_VALUE) {
+            rebase(baseMicros + offset);
+            offset = 0;
+        }
+        return (int) offset;
+    }
+
+    private void rebase(long micros) {
+        baseMicros = micros;
+        putRecord(BASE, (byte) 0, 0, (int) (micros >>> 32), (int) micros, 0);
+    }
+
+    private void putRecord(byte event, byte flags, int count, int a, int b, int time) {
+        if (buffer.remaining() < RECORD_SIZE) flush();
+        buffer.put(event).put(flags).putChar((char) count).putInt(a).putInt(b).putInt(time);
+    }
+
+    private void put(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) flush();
+            int length = Math.min(src.remaining(), buffer.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            buffer.put(slice);
+            src.position(src.position() + length);
+        }
+    }
+
+    //  Zero-fills up to the next record boundary
+    private void pad() {
+        while (buffer.position() % RECORD_SIZE != 0) {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) 0);
+        }
+    }
+
+    private ByteBuffer ensureItems(int bytes) {
+        if (items.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(items.capacity() * 2);
+            items.flip();
+            larger.put(items);
+            items = larger;
+        }
+        return items;
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, ByteBuffer reuse) {
+        ByteBuffer copy = reuse != null && reuse.capacity() >= src.remaining() ? reuse : ByteBuffer.allocate(src.remaining());
+        copy.clear();
+        copy.put(src.duplicate()).flip();
+        return copy;
+    }
+}
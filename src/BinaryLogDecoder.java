@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *  Reads a binary log written by BinaryLog one logger event at a time, and renders it back to the text lines the
+ *  process would have logged, by calling the same method on a text logger that the process called on its own.
+ *
+ *  Usage: BinaryLogDecoder <log.clog> [output.log]
+ *
+ *  The text goes to standard output unless an output file is given. A log cut short by a crash decodes up to its
+ *  last complete record.
+ */
+public class BinaryLogDecoder implements Closeable {
+    private final DataInputStream in;
+    private final char role;
+    private final int processId;
+    private final Map<Integer, String> dictionary;
+    private final Map<Integer, String> options;
+    private final List<?>[] lastLists;
+    private long baseMicros;
+
+    //  The event last read by next()
+    byte event;
+    int peer;
+    String string;
+    List<?> items;
+    long timeMicros;
+
+    public BinaryLogDecoder(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        this.dictionary = new HashMap<>();
+        this.options = new HashMap<>();
+        this.lastLists = new List<?>[BinaryLog.NUM_EVENTS];
+
+        byte header = in.readByte();
+        this.role = (char) in.readByte();
+        int version = in.readChar();
+        int magic = in.readInt();
+        this.processId = in.readInt();
+        in.readInt();
+        if (header != BinaryLog.HEADER || magic != BinaryLog.MAGIC)
+            throw new IOException(file + " isn't a binary log");
+        if (version != BinaryLog.VERSION)
+            throw new IOException(file + " has an unsupported binary log version");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) throw new IllegalArgumentException("Can't have less than 1 arg!");
+
+        PrintStream out = args.length > 1 ? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1]))) : System.out;
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(new File(args[0]))) {
+            decoder.render(out);
+        }
+        out.flush();
+    }
+
+    public char getRole() {
+        return role;
+    }
+
+    public int getProcessId() {
+        return processId;
+    }
+
+    public void render(PrintStream out) throws IOException {
+        if (role == 'C') {
+            CoordinatorLogger logger = CoordinatorLogger.createLogger(0, processId, 0, out);
+            while (next()) render(logger);
+        } else {
+            ParticipantLogger logger = ParticipantLogger.createLogger(0, processId, 0, out);
+            while (next()) render(logger);
+        }
+    }
+
+    /*
+     *  Moves on to the next logger event, taking in any dictionary and base time records on the way.
+     *
+     *  @return false once the log has no more complete events
+     */
+    public boolean next() throws IOException {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                byte flags = in.readByte();
+                int count = in.readChar();
+                int a = in.readInt();
+                int b = in.readInt();
+                int time = in.readInt();
+
+                switch (type) {
+                    case BinaryLog.BASE:
+                        baseMicros = ((long) a << 32) | (b & 0xffffffffL);
+                        continue;
+                    case BinaryLog.DICT:
+                    case BinaryLog.OPTION:
+                        byte[] bytes = new byte[b];
+                        in.readFully(bytes);
+                        skipPadding(b);
+                        (type == BinaryLog.DICT ? dictionary : options).put(a, new String(bytes, StandardCharsets.UTF_8));
+                        continue;
+                    default:
+                        event = type;
+                        peer = a;
+                        string = b == BinaryLog.NULL_STRING ? null : dictionary.get(b);
+                        timeMicros = baseMicros + time;
+                        if ((flags & BinaryLog.VOTE_FRAME) != 0) {
+                            string = readVoteFrame(count);
+                            items = null;
+                        } else {
+                            items = readItems(type, flags, count);
+                        }
+                        return true;
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private List<?> readItems(byte type, byte flags, int count) throws IOException {
+        //  every kind of item takes four bytes: a port, a dictionary id, or a port and option id for a vote
+        switch (type) {
+            case BinaryLog.DETAILS_SENT:
+            case BinaryLog.DETAILS_RECEIVED:
+            case BinaryLog.OUTCOME_DECIDED:
+            case BinaryLog.OUTCOME_NOTIFIED:
+            case BinaryLog.VOTE_OPTIONS_SENT:
+            case BinaryLog.VOTE_OPTIONS_RECEIVED:
+            case BinaryLog.VOTES_SENT:
+            case BinaryLog.VOTES_RECEIVED:
+                break;
+            default:
+                return null;
+        }
+        if ((flags & BinaryLog.REPEAT) != 0) return lastLists[type];
+
+        List<Object> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (type == BinaryLog.VOTES_SENT || type == BinaryLog.VOTES_RECEIVED) {
+                list.add(new Vote(in.readChar(), options.get((int) in.readChar())));
+            } else if (type == BinaryLog.VOTE_OPTIONS_SENT || type == BinaryLog.VOTE_OPTIONS_RECEIVED) {
+                list.add(dictionary.get(in.readInt()));
+            } else {
+                list.add(in.readInt());
+            }
+        }
+        skipPadding(count * 4);
+        lastLists[type] = list;
+        return list;
+    }
+
+    private String readVoteFrame(int count) throws IOException {
+        StringBuilder frame = new StringBuilder("VOTE");
+        for (int i = 0; i < count; i++) {
+            frame.append(' ').append((int) in.readChar()).append(' ').append(options.get((int) in.readChar()));
+        }
+        skipPadding(count * 4);
+        return frame.toString();
+    }
+
+    private void skipPadding(int length) throws IOException {
+        int padding = (BinaryLog.RECORD_SIZE - length % BinaryLog.RECORD_SIZE) % BinaryLog.RECORD_SIZE;
+        in.readFully(new byte[padding]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void render(ParticipantLogger logger) {
+        switch (event) {
+            case BinaryLog.JOIN_SENT: logger.joinSent(peer); break;
+            case BinaryLog.DETAILS_RECEIVED: logger.detailsReceived((List<Integer>) items); break;
+            case BinaryLog.VOTE_OPTIONS_RECEIVED: logger.voteOptionsReceived((List<String>) items); break;
+            case BinaryLog.BEGIN_ROUND: logger.beginRound(peer); break;
+            case BinaryLog.END_ROUND: logger.endRound(peer); break;
+            case BinaryLog.VOTES_SENT: logger.votesSent(peer, (List<Vote>) items); break;
+            case BinaryLog.VOTES_RECEIVED: logger.votesReceived(peer, (List<Vote>) items); break;
+            case BinaryLog.OUTCOME_DECIDED: logger.outcomeDecided(string, (List<Integer>) items); break;
+            case BinaryLog.OUTCOME_NOTIFIED: logger.outcomeNotified(string, (List<Integer>) items); break;
+            case BinaryLog.PARTICIPANT_CRASHED: logger.participantCrashed(peer); break;
+            case BinaryLog.STARTED_LISTENING: logger.startedListening(); break;
+            case BinaryLog.CONNECTION_ACCEPTED: logger.connectionAccepted(peer); break;
+            case BinaryLog.CONNECTION_ESTABLISHED: logger.connectionEstablished(peer); break;
+            case BinaryLog.MESSAGE_SENT: logger.messageSent(peer, string); break;
+            case BinaryLog.MESSAGE_RECEIVED: logger.messageReceived(peer, string); break;
+            default: throw new IllegalStateException("Unknown participant log event " + event);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void render(CoordinatorLogger logger) {
+        switch (event) {
+            case BinaryLog.STARTED_LISTENING: logger.startedListening(peer); break;
+            case BinaryLog.JOIN_RECEIVED: logger.joinReceived(peer); break;
+            case BinaryLog.DETAILS_SENT: logger.detailsSent(peer, (List<Integer>) items); break;
+            case BinaryLog.VOTE_OPTIONS_SENT: logger.voteOptionsSent(peer, (List<String>) items); break;
+            case BinaryLog.OUTCOME_RECEIVED: logger.outcomeReceived(peer, string); break;
+            case BinaryLog.CONNECTION_ACCEPTED: logger.connectionAccepted(peer); break;
+            case BinaryLog.MESSAGE_SENT: logger.messageSent(peer, string); break;
+            case BinaryLog.MESSAGE_RECEIVED: logger.messageReceived(peer, string); break;
+            case BinaryLog.PARTICIPANT_CRASHED: logger.participantCrashed(peer); break;
+            default: throw new IllegalStateException("Unknown coordinator log event " + event);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ *  Measures end-to-end latency of full runs over a matrix of cluster sizes, option counts and crash rates, and appends
+ *  one JSON object per matrix cell to a report file, for tracking trends between versions.
+ *
+ *  Usage: ClusterBenchmark <inprocess|subprocess> <timeout> <repetitions> <reportFile>
+ *
+ *  The matrix comes from -Dconsensus.bench.sizes, -Dconsensus.bench.options and -Dconsensus.bench.crashRates, each a
+ *  comma-separated list (defaults 5,10,20 / 3 / 0). In-process runs go through a SimulationHarness over an
+ *  InMemoryNetwork, so the time to DETAILS, every round's duration and the time to each participant's OUTCOME are
+ *  observed directly, and traffic is counted on the transports. Subprocess runs launch a real Coordinator and
+ *  Participant JVMs on localhost; there only the time until the coordinator exits is measured, and traffic is
+ *  counted from the "message sent" lines in the participant logs. Each subprocess run logs to a temporary directory,
+ *  which is deleted once the run is measured unless -Dconsensus.bench.keepLogs=true.
+ */
+public class ClusterBenchmark {
+    private static final Pattern MESSAGE_SENT = Pattern.compile("\\] message sent to \\d+: \"(.*)\"$");
+    private static final Pattern OUTCOME_RECEIVED = Pattern.compile("^\\[C\\] outcome (\\S+) received from");
+    //  subprocess runs log to a temporary directory per run, which is deleted afterwards unless this is set
+    private static final boolean KEEP_LOGS = Boolean.getBoolean("consensus.bench.keepLogs");
+
+    private final String mode;
+    private final int timeout;
+    private final int repetitions;
+    private final Random random;
+
+    public ClusterBenchmark(String mode, int timeout, int repetitions, long seed) {
+        if (!mode.equals("inprocess") && !mode.equals("subprocess"))
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        this.mode = mode;
+        this.timeout = timeout;
+        this.repetitions = repetitions;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) throw new IllegalArgumentException("Can't have less than 4 args!");
+
+        ClusterBenchmark benchmark = new ClusterBenchmark(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Long.getLong("consensus.bench.seed", 1L));
+        File report = new File(args[3]);
+
+        for (String size : System.getProperty("consensus.bench.sizes", "5,10,20").split(",")) {
+            for (String options : System.getProperty("consensus.bench.options", "3").split(",")) {
+                for (String crashRate : System.getProperty("consensus.bench.crashRates", "0").split(",")) {
+                    Cell cell = benchmark.runCell(Integer.parseInt(size.trim()), Integer.parseInt(options.trim()),
+                            Double.parseDouble(crashRate.trim()));
+                    System.out.println(cell.toJson());
+                    try (PrintStream out = new PrintStream(new FileOutputStream(report, true))) {
+                        out.println(cell.toJson());
+                    }
+                }
+            }
+        }
+    }
+
+    public Cell runCell(int numParticipants, int numOptions, double crashRate) throws Exception {
+        Cell cell = new Cell(mode, numParticipants, numOptions, crashRate, repetitions);
+        int crashes = (int) Math.round(crashRate * numParticipants);
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i < numOptions; i++) options.add(String.valueOf((char) ('A' + i % 26)) + (i < 26 ? "" : i));
+
+        for (int r = 0; r < repetitions; r++) {
+            if (mode.equals("inprocess")) runInProcess(cell, numParticipants, crashes, options);
+            else runSubprocesses(cell, numParticipants, crashes, options);
+        }
+        return cell;
+    }
+
+    private void runInProcess(Cell cell, int numParticipants, int crashes, List<String> options) throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork(0, 0, 0, random.nextLong());
+        SimulationHarness harness = new SimulationHarness(numParticipants, timeout, network, crashes, options, random.nextLong(), null);
+
+        List<CountingTransport> transports = Collections.synchronizedList(new ArrayList<>());
+        harness.setTransportWrapper(transport -> {
+            CountingTransport counting = new CountingTransport(transport);
+            transports.add(counting);
+            return counting;
+        });
+
+        long start = System.nanoTime();
+        harness.setListenerFactory(port -> new ParticipantListener() {
+            final long[] roundStarts = new long[numParticipants + 1];
+
+            @Override
+            public void detailsReceived(List<Integer> participantPorts) {
+                cell.detailsMicros.record((System.nanoTime() - start) / 1000);
+            }
+
+            @Override
+            public void roundStarted(int round) {
+                roundStarts[round] = System.nanoTime();
+            }
+
+            @Override
+            public void roundEnded(int round) {
+                cell.roundMicros.record((System.nanoTime() - roundStarts[round]) / 1000);
+            }
+
+            @Override
+            public void outcomeDecided(String outcome, List<Integer> participantPorts) {
+                cell.outcomeMicros.record((System.nanoTime() - start) / 1000);
+            }
+        });
+
+        SimulationHarness.Result result = harness.run();
+        for (CountingTransport transport : transports) {
+            cell.messages += transport.getLinesSent();
+            cell.bytes += transport.getBytesSent();
+        }
+        if (result.agreed()) cell.agreed++;
+    }
+
+    private void runSubprocesses(Cell cell, int numParticipants, int crashes, List<String> options) throws Exception {
+        File dir = Files.createTempDirectory("cluster-bench").toFile();
+        int coordPort = 20000 + random.nextInt(20000);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = System.getProperty("java.class.path");
+
+        List<String> coordinatorArgs = new ArrayList<>(Arrays.asList(java, "-cp", classpath, "Coordinator",
+                String.valueOf(coordPort), "0", String.valueOf(numParticipants), String.valueOf(timeout)));
+        coordinatorArgs.addAll(options);
+
+        Process coordinator = null;
+        List<Process> participants = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            coordinator = launch(coordinatorArgs, dir);
+            for (int i = 1; i <= numParticipants; i++) {
+                participants.add(launch(Arrays.asList(java, "-cp", classpath, "Participant", String.valueOf(coordPort), "0",
+                        String.valueOf(coordPort + i), String.valueOf(timeout)), dir));
+            }
+
+            //  the coordinator waits for every JOIN, so crashes only happen once voting is under way
+            List<Integer> shuffled = new ArrayList<>();
+            for (int i = 1; i <= numParticipants; i++) shuffled.add(i);
+            Collections.shuffle(shuffled, random);
+            for (Integer crashing : shuffled.subList(0, Math.min(crashes, shuffled.size()))) {
+                awaitLogLine(dir, "participant_" + (coordPort + crashing) + "_", "begin round 1", 30_000);
+                Thread.sleep(random.nextInt(Math.max(timeout, 1)));
+                participants.get(crashing - 1).destroyForcibly();
+            }
+
+            long deadlineMillis = 60_000L + (long) numParticipants * 4 * timeout;
+            boolean finished = coordinator.waitFor(deadlineMillis, TimeUnit.MILLISECONDS);
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            for (Process participant : participants) {
+                if (!participant.waitFor(timeout, TimeUnit.MILLISECONDS)) participant.destroyForcibly();
+            }
+
+            if (!finished) return;
+            cell.outcomeMicros.record(elapsedMicros);
+            if (coordinatorSawAgreement(dir)) cell.agreed++;
+            countSentMessages(cell, dir);
+        } finally {
+            //  every process is gone before its logs are deleted, even if the run failed part way
+            if (coordinator != null) coordinator.destroyForcibly().waitFor();
+            for (Process participant : participants) participant.destroyForcibly().waitFor();
+            if (KEEP_LOGS) System.err.println("Logs kept in " + dir);
+            else deleteTree(dir);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+
+    private static Process launch(List<String> command, File dir) throws IOException {
+        return new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                .redirectOutput(new File(dir, "process_" + System.nanoTime() + ".out")).start();
+    }
+
+    private static void awaitLogLine(File dir, String logPrefix, String text, long waitMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            File[] logs = dir.listFiles((d, name) -> name.startsWith(logPrefix));
+            if (logs != null) {
+                for (File log : logs) {
+                    for (String line : Files.readAllLines(log.toPath())) {
+                        if (line.contains(text)) return;
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean coordinatorSawAgreement(File dir) throws IOException {
+        File[] logs = dir.listFiles((d, name) -> name.startsWith("coordinator_") && name.endsWith(".log"));
+        if (logs == null) return false;
+        Set<String> outcomes = new HashSet<>();
+        for (File log : logs) {
+            for (String line : Files.readAllLines(log.toPath())) {
+                Matcher matcher = OUTCOME_RECEIVED.matcher(line);
+                if (matcher.find()) outcomes.add(matcher.group(1));
+            }
+        }
+        return outcomes.size() == 1;
+    }
+
+    private static void countSentMessages(Cell cell, File dir) throws IOException {
+        File[] logs = dir.listFiles((d, name) -> name.startsWith("participant_") && name.endsWith(".log"));
+        if (logs == null) return;
+        for (File log : logs) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(log))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = MESSAGE_SENT.matcher(line);
+                    if (matcher.find()) {
+                        cell.messages++;
+                        cell.bytes += matcher.group(1).length() + 1;
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Cell {
+        final String mode;
+        final int numParticipants;
+        final int numOptions;
+        final double crashRate;
+        final int repetitions;
+        int agreed;
+        long messages;
+        long bytes;
+        final LatencyHistogram detailsMicros = new LatencyHistogram();
+        final LatencyHistogram roundMicros = new LatencyHistogram();
+        final LatencyHistogram outcomeMicros = new LatencyHistogram();
+
+        Cell(String mode, int numParticipants, int numOptions, double crashRate, int repetitions) {
+            this.mode = mode;
+            this.numParticipants = numParticipants;
+            this.numOptions = numOptions;
+            this.crashRate = crashRate;
+            this.repetitions = repetitions;
+        }
+
+        String toJson() {
+            return "{\"mode\":\"" + mode + "\",\"participants\":" + numParticipants + ",\"options\":" + numOptions
+                    + ",\"crashRate\":" + crashRate + ",\"repetitions\":" + repetitions + ",\"agreed\":" + agreed
+                    + ",\"timeToDetailsMs\":" + percentiles(detailsMicros)
+                    + ",\"roundMs\":" + percentiles(roundMicros)
+                    + ",\"timeToOutcomeMs\":" + percentiles(outcomeMicros)
+                    + ",\"messagesPerRun\":" + (repetitions == 0 ? 0 : messages / repetitions)
+                    + ",\"bytesPerRun\":" + (repetitions == 0 ? 0 : bytes / repetitions) + "}";
+        }
+
+        private static String percentiles(LatencyHistogram histogram) {
+            if (histogram.count() == 0) return "null";
+            return String.format(Locale.ROOT, "{\"count\":%d,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+                    histogram.count(), histogram.valueAtPercentile(50) / 1000.0, histogram.valueAtPercentile(90) / 1000.0,
+                    histogram.valueAtPercentile(99) / 1000.0, histogram.max() / 1000.0);
+        }
+    }
+}
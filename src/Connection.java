@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/*
+ *  One end of a connection made through a Transport, carrying lines both ways. Behaves like a blocking socket, as the
+ *  Transport describes.
+ */
+public interface Connection {
+
+    String readLine() throws IOException;
+
+    void sendLine(String line) throws IOException;
+
+    //  Read timeout in milliseconds, 0 meaning wait forever
+    void setReadTimeout(int timeout) throws IOException;
+
+    /*
+     *  The remote port number of this connection: the other process's listening port for connections opened with
+     *  connect(), and the other end's ephemeral port for accepted ones.
+     */
+    int getRemotePort();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,516 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ *  A participant for services that run votes from inside their own JVM, over and over, rather than launching a
+ *  cluster of processes per vote. A group of nodes connects once, in a full mesh as participants do, and any node can
+ *  then propose a vote on a list of options, getting the outcome back as a future:
+ *
+ *      ConsensusNode node = ConsensusNode.start(new ConsensusNode.Config(port, ports, timeout));
+ *      node.propose(Arrays.asList("A", "B")).thenAccept(outcome -> ...);
+ *
+ *  Each vote follows the participants' protocol: every node picks an option, relays what it learned each round for as
+ *  many rounds as there are nodes, and decides on the option with the most votes it knows of. Instead of a connection
+ *  per vote, every line of a vote is tagged "BALLOT <ballot> ..." and goes over the group's connections, so any number
+ *  of votes can be under way at once. A node starts a vote when it first hears of it, by announcing the options to
+ *  everyone itself, so a vote goes ahead even if its proposer crashes after reaching a single node.
+ *
+ *  Rounds are driven by the lines arriving and by a timer rather than by a thread per vote. A peer whose connection
+ *  drops counts as crashed for every vote from then on; nodes don't reconnect. events() streams every vote's round
+ *  events, so a service can act on a leader before the decision.
+ *
+ *  Usage: ConsensusNode <firstPort> <nodes> <timeout> <votes> <options...>
+ *
+ *  Runs a group of the given number of nodes in this JVM, has the first one propose the given number of votes one
+ *  after another, and prints the votes completed per second.
+ */
+public class ConsensusNode {
+    private final int port;
+    private final List<Integer> ports;
+    private final int timeout;
+    private final Transport transport;
+    private final Function<List<String>, String> chooser;
+
+    private TransportServer server;
+    //  Connections accepted from the peers, which our lines go out on
+    private final List<Connection> sendingEnds;
+    //  Connections opened to the peers, which their lines come in on, keyed by the peer's port
+    private final Map<Integer, Connection> receivingEnds;
+    private final Set<Integer> crashedPeers;
+    private final Map<String, Ballot> ballots;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong nextBallot;
+    private volatile boolean closed;
+    private final RoundEventPublisher events;
+
+    private final MetricsRegistry metrics;
+    private final LatencyHistogram voteDurations;
+    private final LongAdder votesDecided;
+
+    /*
+     *  The group a node belongs to and how it votes. Every node of a group is configured with the same ports and
+     *  timeout.
+     */
+    public static class Config {
+        final int port;
+        final List<Integer> ports;
+        final int timeout;
+        final Transport transport;
+        final Function<List<String>, String> chooser;
+
+        //  A node that picks options at random, as participants do, and connects over -Dconsensus.transport
+        public Config(int port, List<Integer> ports, int timeout) {
+            this(port, ports, timeout, Transport.fromSystemProperties(), ConsensusNode::randomChoice);
+        }
+
+        /*
+         *  @param ports every node of the group, this one included
+         *  @param timeout how long, in milliseconds, a round waits for a peer's line, and twice that after the first
+         *  @param chooser picks this node's vote from a vote's options
+         */
+        public Config(int port, List<Integer> ports, int timeout, Transport transport, Function<List<String>, String> chooser) {
+            if (!ports.contains(port)) throw new IllegalArgumentException("The group's ports must include " + port);
+            this.port = port;
+            this.ports = Collections.unmodifiableList(new ArrayList<>(ports));
+            this.timeout = timeout;
+            this.transport = transport;
+            this.chooser = chooser;
+        }
+    }
+
+    //  The outcome of one vote, as decided by this node
+    public static class Outcome {
+        private final String ballot;
+        private final String option;
+        private final List<Integer> voters;
+
+        public Outcome(String ballot, String option, List<Integer> voters) {
+            this.ballot = ballot;
+            this.option = option;
+            this.voters = voters;
+        }
+
+        public String getBallot() {
+            return ballot;
+        }
+
+        public String getOption() {
+            return option;
+        }
+
+        //  The ports of the nodes whose votes the outcome was decided from
+        public List<Integer> getVoters() {
+            return voters;
+        }
+
+        @Override
+        public String toString() {
+            return option + " " + voters;
+        }
+    }
+
+    private ConsensusNode(Config config) {
+        this.port = config.port;
+        this.ports = config.ports;
+        this.timeout = config.timeout;
+        this.transport = config.transport;
+        this.chooser = config.chooser;
+        this.sendingEnds = new CopyOnWriteArrayList<>();
+        this.receivingEnds = new ConcurrentHashMap<>();
+        this.crashedPeers = ConcurrentHashMap.newKeySet();
+        this.ballots = new ConcurrentHashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "node-" + port + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.nextBallot = new AtomicLong();
+        this.events = new RoundEventPublisher();
+
+        //  durations are recorded in microseconds
+        this.metrics = new MetricsRegistry();
+        this.voteDurations = metrics.histogram("node_vote_duration_us");
+        this.votesDecided = metrics.counter("node_votes_decided_total");
+    }
+
+    /*
+     *  Starts a node and connects it to the rest of its group, returning once every peer is connected both ways. Peers
+     *  that haven't started listening within twice the timeout count as crashed, as they do for participants with a
+     *  static membership.
+     */
+    public static ConsensusNode start(Config config) throws IOException {
+        ConsensusNode node = new ConsensusNode(config);
+        try {
+            node.connect();
+        } catch (IOException e) {
+            node.close();
+            throw e;
+        }
+        return node;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    //  The round events of every vote this node takes part in, tagged with their ballots
+    public EventFlow.Publisher<RoundEvent> events() {
+        return events;
+    }
+
+    private void connect() throws IOException {
+        server = transport.listen(port);
+        Thread acceptor = new Thread(this::acceptLoop, "node-" + port + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        List<Integer> pending = new ArrayList<>(ports);
+        pending.remove((Integer) port);
+        long deadline = System.currentTimeMillis() + 2L * timeout;
+        while (!pending.isEmpty()) {
+            for (Iterator<Integer> it = pending.iterator(); it.hasNext(); ) {
+                Integer peer = it.next();
+                try {
+                    listenTo(peer, transport.connect(peer));
+                    it.remove();
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() < deadline) continue;
+                    crashedPeers.add(peer);
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) break;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while connecting to the group", e);
+            }
+        }
+
+        //  a peer that connected to us late still has to before our first broadcast, or it would miss lines
+        synchronized (this) {
+            while (sendingEnds.size() < ports.size() - 1 - crashedPeers.size()) {
+                long remaining = deadline + timeout - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while connecting to the group", e);
+                }
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Connection connection = server.accept();
+                sendingEnds.add(connection);
+                synchronized (this) {
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                //  closed along with the node
+                return;
+            }
+        }
+    }
+
+    private void listenTo(int peer, Connection connection) throws IOException {
+        connection.setReadTimeout(0);
+        receivingEnds.put(peer, connection);
+        LineHandler handler = new LineHandler() {
+            @Override
+            public void lineReceived(String line) {
+                ConsensusNode.this.lineReceived(peer, line);
+            }
+
+            @Override
+            public void timedOut() {
+            }
+
+            @Override
+            public void closed() {
+                peerCrashed(peer);
+            }
+        };
+        if (connection instanceof EventConnection) {
+            ((EventConnection) connection).listen(handler);
+            return;
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = connection.readLine()) != null) handler.lineReceived(line);
+            } catch (IOException e) {
+                //  dropped, or closed along with the node
+            }
+            handler.closed();
+        }, "node-" + port + "-from-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /*
+     *  Proposes a vote on the given options to the whole group.
+     *
+     *  @return the outcome, once this node has decided it
+     */
+    public CompletableFuture<Outcome> propose(List<String> options) {
+        if (options.isEmpty()) throw new IllegalArgumentException("Can't vote on no options");
+        CompletableFuture<Outcome> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Node " + port + " is closed"));
+            return future;
+        }
+        Ballot ballot = new Ballot(port + "-" + nextBallot.incrementAndGet());
+        ballot.future = future;
+        ballots.put(ballot.id, ballot);
+        synchronized (ballot) {
+            ballot.begin(options);
+            ballot.advanceWhileComplete();
+        }
+        return future;
+    }
+
+    public CompletableFuture<Outcome> propose(String... options) {
+        return propose(Arrays.asList(options));
+    }
+
+    private void lineReceived(int peer, String line) {
+        Message message = MsgParser.parseMessage(line);
+        if (!(message instanceof BallotMessage)) return;
+        BallotMessage ballotMessage = (BallotMessage) message;
+        Ballot ballot = ballots.computeIfAbsent(ballotMessage.getBallot(), Ballot::new);
+        synchronized (ballot) {
+            ballot.frameReceived(peer, ballotMessage.getFrame());
+            ballot.advanceWhileComplete();
+        }
+    }
+
+    private void peerCrashed(int peer) {
+        if (closed || !crashedPeers.add(peer)) return;
+        for (Ballot ballot : ballots.values()) {
+            synchronized (ballot) {
+                ballot.advanceWhileComplete();
+            }
+        }
+    }
+
+    private void broadcast(String line) {
+        for (Connection connection : sendingEnds) {
+            try {
+                synchronized (connection) {
+                    connection.sendLine(line);
+                }
+            } catch (IOException e) {
+                //  the peer's own connection to us tells us it crashed
+            }
+        }
+    }
+
+    //  Closes the node's connections; votes it hasn't decided yet fail
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Connection connection : sendingEnds) closeQuietly(connection);
+        for (Connection connection : receivingEnds.values()) closeQuietly(connection);
+        timer.shutdownNow();
+        for (Ballot ballot : ballots.values()) {
+            synchronized (ballot) {
+                if (ballot.future != null)
+                    ballot.future.completeExceptionally(new IOException("Node " + port + " closed before deciding " + ballot.id));
+            }
+        }
+        ballots.clear();
+        events.close();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            //  already gone
+        }
+    }
+
+    static String randomChoice(List<String> options) {
+        return options.get(ThreadLocalRandom.current().nextInt(options.size()));
+    }
+
+    //  Every node sends exactly one line per round, as participants do
+    private int numRounds() {
+        return ports.size();
+    }
+
+    /*
+     *  One vote, as this node sees it. Lines from peers are counted from the moment the vote is first heard of, even
+     *  before its options are, since a peer's rounds can overtake the options on their way from someone else. Guarded
+     *  by its own monitor, so votes only contend for the connections.
+     */
+    private class Ballot {
+        final String id;
+        final Map<Integer, Integer> roundsHeard;
+        //  Votes heard before the options, which the vote state needs
+        final List<VoteMessage> early;
+        VoteState voteState;
+        //  The votes known when the last round ended
+        BitSet tallied;
+        int round;
+        long startNanos;
+        ScheduledFuture<?> deadline;
+        boolean decided;
+        //  Completed with the outcome, for a vote this node proposed
+        CompletableFuture<Outcome> future;
+
+        Ballot(String id) {
+            this.id = id;
+            this.roundsHeard = new HashMap<>();
+            this.early = new ArrayList<>();
+            this.tallied = new BitSet();
+        }
+
+        //  Announces the options to the group and starts the first round
+        void begin(List<String> options) {
+            if (voteState != null) return;
+            voteState = new VoteState(new Membership(ports, options));
+            startNanos = System.nanoTime();
+            broadcast("BALLOT " + id + " VOTE_OPTIONS " + String.join(" ", options));
+
+            voteState.merge(port, chooser.apply(options));
+            for (VoteMessage votes : early) merge(votes);
+            early.clear();
+            startRound(1);
+        }
+
+        void frameReceived(int peer, Message frame) {
+            if (frame instanceof OptionsMessage) {
+                begin(((OptionsMessage) frame).getOptions());
+                return;
+            }
+            roundsHeard.merge(peer, 1, Integer::sum);
+            if (frame instanceof VoteMessage) {
+                if (voteState == null) early.add((VoteMessage) frame);
+                else merge((VoteMessage) frame);
+            }
+        }
+
+        private void merge(VoteMessage votes) {
+            votes.getVotes().forEach(voteState::merge);
+        }
+
+        //  The first round sends our own vote, which is the only fresh one, and later rounds relay what we learned
+        private void startRound(int round) {
+            this.round = round;
+            StringBuilder line = new StringBuilder("BALLOT ").append(id);
+            List<Vote> fresh = voteState.votesOf(voteState.drainFresh());
+            if (!fresh.isEmpty()) {
+                line.append(" VOTE");
+                for (Vote vote : fresh) line.append(' ').append(vote.getParticipantPort()).append(' ').append(vote.getVote());
+            }
+            broadcast(line.toString());
+            if (!timer.isShutdown()) {
+                deadline = timer.schedule(() -> roundTimedOut(round), round == 1 ? timeout : 2L * timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void roundTimedOut(int round) {
+            if (decided || this.round != round) return;
+            endRound();
+            advanceWhileComplete();
+        }
+
+        //  Moves through every round that the lines already heard complete, deciding after the last
+        void advanceWhileComplete() {
+            while (voteState != null && !decided && roundComplete()) endRound();
+            retireIfDone();
+        }
+
+        private boolean roundComplete() {
+            for (Integer peer : ports) {
+                if (peer == port || crashedPeers.contains(peer)) continue;
+                if (roundsHeard.getOrDefault(peer, 0) < round) return false;
+            }
+            return true;
+        }
+
+        private void endRound() {
+            if (deadline != null) deadline.cancel(false);
+            tally();
+            if (round < numRounds()) {
+                startRound(round + 1);
+                return;
+            }
+            decided = true;
+            BitSet voters = voteState.getKnown();
+            Outcome outcome = new Outcome(id, voteState.decide(voters), voteState.portsOf(voters));
+            voteDurations.record((System.nanoTime() - startNanos) / 1000);
+            votesDecided.increment();
+            events.decided(id, outcome.getOption(), outcome.getVoters());
+            if (future != null) future.complete(outcome);
+        }
+
+        private void tally() {
+            BitSet known = voteState.getKnown();
+            BitSet learned = (BitSet) known.clone();
+            learned.andNot(tallied);
+            tallied = known;
+            events.roundTallied(id, round, voteState.votesOf(learned), voteState.getMembership().getOptions(), voteState.tally());
+        }
+
+        //  Forgets the vote once nothing more can arrive for it, which is when every live peer has sent all its rounds
+        private void retireIfDone() {
+            if (!decided) return;
+            for (Integer peer : ports) {
+                if (peer == port || crashedPeers.contains(peer)) continue;
+                if (roundsHeard.getOrDefault(peer, 0) < numRounds()) return;
+            }
+            ballots.remove(id);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) throw new IllegalArgumentException("Can't have less than 5 args!");
+
+        int firstPort = Integer.parseInt(args[0]);
+        int numNodes = Integer.parseInt(args[1]);
+        int timeout = Integer.parseInt(args[2]);
+        int votes = Integer.parseInt(args[3]);
+        List<String> options = Arrays.asList(Arrays.copyOfRange(args, 4, args.length));
+
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < numNodes; i++) ports.add(firstPort + i);
+
+        //  the nodes connect to each other as they start, so they have to start together
+        ExecutorService starter = Executors.newFixedThreadPool(numNodes);
+        List<Future<ConsensusNode>> starting = new ArrayList<>();
+        for (Integer port : ports) starting.add(starter.submit(() -> start(new Config(port, ports, timeout))));
+        List<ConsensusNode> nodes = new ArrayList<>();
+        for (Future<ConsensusNode> node : starting) nodes.add(node.get());
+        starter.shutdown();
+
+        Map<String, Integer> outcomes = new TreeMap<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < votes; i++) {
+            outcomes.merge(nodes.get(0).propose(options).get().getOption(), 1, Integer::sum);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "%d votes among %d nodes in %.3fs, %.1f votes/s%n", votes, numNodes, seconds, votes / seconds);
+        System.out.println("Outcomes: " + outcomes);
+        System.out.println(nodes.get(0).getMetrics().snapshot());
+        for (ConsensusNode node : nodes) node.close();
+    }
+}
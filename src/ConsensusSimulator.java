@@ -0,0 +1,357 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ *  Deterministic discrete-event simulation of the participants' voting rounds, for capacity planning.
+ *
+ *  Each simulated node keeps a VoteState and follows the Participant's rounds: the first round sends its own vote,
+ *  every later round relays the votes learned in the round before, and the outcome is decided from the known votes
+ *  after the last round. Instead of threads, sockets and wall-clock waits, rounds advance a virtual clock, and every
+ *  random choice (votes, latencies, crashes) comes from one seeded Random, so the same arguments always replay the
+ *  same run.
+ *
+ *  Usage: ConsensusSimulator <numParticipants> <numOptions> <timeout> <crashes> <seed> [rounds]
+ *
+ *  Latency is -Dconsensus.sim.latency plus up to -Dconsensus.sim.jitter milliseconds per message (defaults 1 and 1).
+ *  A crashing node dies while sending one of its round messages, which reaches a random subset of its peers; the
+ *  others wait for it until the round's deadline. Prints a tab-separated row per round, then a summary.
+ *
+ *  Two shortcuts keep 10,000-node runs fast. Since every node relays what it learned, the union of all complete
+ *  broadcasts is the same for every receiver, so delivery costs one bitset OR per receiver rather than one per
+ *  message. And once no node has anything left to relay the votes can no longer change, so the remaining rounds are
+ *  counted without being replayed.
+ */
+public class ConsensusSimulator {
+    static final int FIRST_PORT = 10001;
+
+    private final int numParticipants;
+    private final int timeout;
+    private final int rounds;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final Random random;
+
+    private final Membership membership;
+    private final AtomicIntegerArray choices;
+    private final VoteState[] states;
+    private final boolean[] crashed;
+    private final int[] voteBytes;
+    private final Map<Integer, List<Crash>> crashesByRound;
+
+    private int numLive;
+    private long virtualNanos;
+    private int quiescentRound;
+    private final List<RoundStats> roundStats;
+
+    public ConsensusSimulator(int numParticipants, int numOptions, int timeout, int crashes, long seed, int rounds,
+                              double latencyMillis, double jitterMillis) {
+        if (crashes >= numParticipants) throw new IllegalArgumentException("At least one participant has to survive");
+        this.numParticipants = numParticipants;
+        this.timeout = timeout;
+        this.rounds = rounds;
+        this.latencyNanos = (long) (latencyMillis * 1_000_000);
+        this.jitterNanos = (long) (jitterMillis * 1_000_000);
+        this.random = new Random(seed);
+
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < numParticipants; i++) ports.add(FIRST_PORT + i);
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i < numOptions; i++) options.add(optionName(i));
+        this.membership = new Membership(ports, options);
+
+        this.choices = new AtomicIntegerArray(numParticipants);
+        this.states = new VoteState[numParticipants];
+        this.crashed = new boolean[numParticipants];
+        this.voteBytes = new int[numParticipants];
+        for (int i = 0; i < numParticipants; i++) {
+            choices.set(i, random.nextInt(numOptions));
+            states[i] = new VoteState(membership, choices);
+            //  fresh until the first round sends it
+            states[i].merge(i, choices.get(i));
+            //  " <port> <option>" as it appears in a VOTE message
+            voteBytes[i] = 2 + Integer.toString(membership.port(i)).length() + membership.option(choices.get(i)).length();
+        }
+
+        this.crashesByRound = scheduleCrashes(crashes);
+        this.numLive = numParticipants;
+        this.virtualNanos = 0;
+        this.quiescentRound = -1;
+        this.roundStats = new ArrayList<>();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 5) throw new IllegalArgumentException("Can't have less than 5 args!");
+
+        int numParticipants = Integer.parseInt(args[0]);
+        int numOptions = Integer.parseInt(args[1]);
+        int timeout = Integer.parseInt(args[2]);
+        int crashes = Integer.parseInt(args[3]);
+        long seed = Long.parseLong(args[4]);
+        int rounds = args.length > 5 ? Integer.parseInt(args[5]) : numParticipants;
+
+        double latency = Double.parseDouble(System.getProperty("consensus.sim.latency", "1"));
+        double jitter = Double.parseDouble(System.getProperty("consensus.sim.jitter", "1"));
+
+        long start = System.nanoTime();
+        ConsensusSimulator simulator = new ConsensusSimulator(numParticipants, numOptions, timeout, crashes, seed, rounds, latency, jitter);
+        Report report = simulator.run();
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("round\tvirtual_ms\tlive\tmessages\tbytes\tvotes_relayed");
+        for (RoundStats stats : report.roundStats) {
+            System.out.println(stats);
+        }
+        System.out.println(report + " wall_ms=" + wallMillis);
+    }
+
+    public Report run() {
+        for (int round = 1; round <= rounds; round++) {
+            List<Crash> crashes = crashesByRound.getOrDefault(round, Collections.<Crash>emptyList());
+            RoundStats stats = quiescentRound < 0 ? runRound(round, crashes) : countQuiescentRound(round, crashes);
+            roundStats.add(stats);
+
+            if (quiescentRound < 0 && !anyFresh()) quiescentRound = round;
+        }
+
+        Map<String, Integer> decisions = new TreeMap<>();
+        for (int i = 0; i < numParticipants; i++) {
+            if (!crashed[i]) decisions.merge(states[i].decide(), 1, Integer::sum);
+        }
+        return new Report(numParticipants, numLive, rounds, quiescentRound, virtualNanos, decisions, roundStats);
+    }
+
+    private RoundStats runRound(int round, List<Crash> crashes) {
+        Map<Integer, Crash> crashing = new HashMap<>();
+        for (Crash crash : crashes) crashing.put(crash.node, crash);
+
+        BitSet union = new BitSet(numParticipants);
+        List<BitSet> partialPayloads = new ArrayList<>();
+        List<BitSet> partialReach = new ArrayList<>();
+        long messages = 0;
+        long bytes = 0;
+        long votesRelayed = 0;
+        int receivers = numLive - crashing.size();
+        boolean waiting = leavesAnyoneWaiting(crashes);
+
+        for (int i = 0; i < numParticipants; i++) {
+            if (crashed[i]) continue;
+            BitSet payload = states[i].drainFresh();
+            long payloadBytes = payloadBytes(payload);
+            Crash crash = crashing.get(i);
+
+            if (crash == null) {
+                union.or(payload);
+                long deliveries = receivers - 1;
+                messages += deliveries;
+                bytes += deliveries * payloadBytes;
+                votesRelayed += deliveries * payload.cardinality();
+            } else {
+                BitSet reach = crash.reached;
+                for (Integer other : crashing.keySet()) reach.clear(other);
+                for (int j = reach.nextSetBit(0); j >= 0; j = reach.nextSetBit(j + 1)) {
+                    if (crashed[j]) reach.clear(j);
+                }
+                partialPayloads.add(payload);
+                partialReach.add(reach);
+                messages += reach.cardinality();
+                bytes += reach.cardinality() * payloadBytes;
+                votesRelayed += (long) reach.cardinality() * payload.cardinality();
+            }
+        }
+
+        for (Crash crash : crashes) {
+            crashed[crash.node] = true;
+            numLive--;
+        }
+
+        for (int i = 0; i < numParticipants; i++) {
+            if (crashed[i]) continue;
+            BitSet incoming = union;
+            for (int p = 0; p < partialPayloads.size(); p++) {
+                if (!partialReach.get(p).get(i)) continue;
+                if (incoming == union) incoming = (BitSet) union.clone();
+                incoming.or(partialPayloads.get(p));
+            }
+            states[i].mergeKnown(incoming);
+        }
+
+        virtualNanos += roundDuration(round, waiting);
+        return new RoundStats(round, virtualNanos, numLive, messages, bytes, votesRelayed);
+    }
+
+    //  Once nothing is left to relay every message is an empty line, so only the counts and the clock move
+    private RoundStats countQuiescentRound(int round, List<Crash> crashes) {
+        boolean waiting = leavesAnyoneWaiting(crashes);
+        int receivers = numLive - crashes.size();
+        long messages = (long) receivers * (receivers - 1);
+        for (Crash crash : crashes) {
+            int reached = 0;
+            for (int j = crash.reached.nextSetBit(0); j >= 0; j = crash.reached.nextSetBit(j + 1)) {
+                if (!crashed[j]) reached++;
+            }
+            messages += reached;
+        }
+        for (Crash crash : crashes) {
+            crashed[crash.node] = true;
+            numLive--;
+        }
+
+        virtualNanos += roundDuration(round, waiting);
+        return new RoundStats(round, virtualNanos, numLive, messages, messages, 0);
+    }
+
+    /*
+     *  Whether a node that stays up misses the message of one crashing this round. It waits for that message until the
+     *  round's deadline, and counts the crashed node out of the rounds after.
+     *
+     *  Call before the crashes are applied.
+     */
+    private boolean leavesAnyoneWaiting(List<Crash> crashes) {
+        if (crashes.isEmpty()) return false;
+        BitSet staying = new BitSet(numParticipants);
+        for (int i = 0; i < numParticipants; i++) {
+            if (!crashed[i]) staying.set(i);
+        }
+        for (Crash crash : crashes) staying.clear(crash.node);
+        for (Crash crash : crashes) {
+            BitSet missed = (BitSet) staying.clone();
+            missed.andNot(crash.reached);
+            if (!missed.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /*
+     *  A round lasts until the last of the L(L-1) messages between the L live nodes arrives. With uniform jitter the
+     *  maximum of n samples is distributed as jitter * U^(1/n), so it is drawn directly instead of sampling each
+     *  message. The participant's fixed round wait caps it: the timeout for the first round and twice that for the
+     *  rest. A round in which a node is left waiting on a crashed peer lasts the whole of that wait.
+     */
+    private long roundDuration(int round, boolean waiting) {
+        long fixedWaitNanos = (round == 1 ? 1L : 2L) * timeout * 1_000_000;
+        long n = Math.max((long) numLive * (numLive - 1), 1);
+        long slowest = latencyNanos + (long) (jitterNanos * Math.pow(random.nextDouble(), 1.0 / n));
+        return waiting ? fixedWaitNanos : Math.min(slowest, fixedWaitNanos);
+    }
+
+    private boolean anyFresh() {
+        for (int i = 0; i < numParticipants; i++) {
+            if (!crashed[i] && states[i].hasFresh()) return true;
+        }
+        return false;
+    }
+
+    //  The length of the VOTE line carrying these votes, or of the empty line sent when there are none
+    private long payloadBytes(BitSet payload) {
+        if (payload.isEmpty()) return 1;
+        long bytes = "VOTE".length() + 1;
+        for (int i = payload.nextSetBit(0); i >= 0; i = payload.nextSetBit(i + 1)) {
+            bytes += voteBytes[i];
+        }
+        return bytes;
+    }
+
+    private Map<Integer, List<Crash>> scheduleCrashes(int crashes) {
+        List<Integer> nodes = new ArrayList<>();
+        for (int i = 0; i < numParticipants; i++) nodes.add(i);
+        Collections.shuffle(nodes, random);
+
+        Map<Integer, List<Crash>> schedule = new HashMap<>();
+        for (int c = 0; c < crashes; c++) {
+            int node = nodes.get(c);
+            int round = 1 + random.nextInt(Math.max(rounds, 1));
+            double fraction = random.nextDouble();
+            BitSet reached = new BitSet(numParticipants);
+            for (int j = 0; j < numParticipants; j++) {
+                if (j != node && random.nextDouble() < fraction) reached.set(j);
+            }
+            schedule.computeIfAbsent(round, r -> new ArrayList<>()).add(new Crash(node, reached));
+        }
+        return schedule;
+    }
+
+    private static String optionName(int index) {
+        return index < 26 ? String.valueOf((char) ('A' + index)) : "O" + index;
+    }
+
+    private static class Crash {
+        final int node;
+        //  the peers its last message still reached
+        final BitSet reached;
+
+        Crash(int node, BitSet reached) {
+            this.node = node;
+            this.reached = reached;
+        }
+    }
+
+    public static class RoundStats {
+        final int round;
+        final long virtualNanos;
+        final int live;
+        final long messages;
+        final long bytes;
+        final long votesRelayed;
+
+        RoundStats(int round, long virtualNanos, int live, long messages, long bytes, long votesRelayed) {
+            this.round = round;
+            this.virtualNanos = virtualNanos;
+            this.live = live;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.votesRelayed = votesRelayed;
+        }
+
+        @Override
+        public String toString() {
+            return round + "\t" + String.format("%.3f", virtualNanos / 1e6) + "\t" + live + "\t" + messages + "\t" + bytes + "\t" + votesRelayed;
+        }
+    }
+
+    public static class Report {
+        final int numParticipants;
+        final int live;
+        final int rounds;
+        //  the round after which no node had anything left to relay, so the outcome was settled, though the participants
+        //  still run every round; -1 if that never happened
+        final int quiescentRound;
+        final long virtualNanos;
+        final Map<String, Integer> decisions;
+        final List<RoundStats> roundStats;
+
+        Report(int numParticipants, int live, int rounds, int quiescentRound, long virtualNanos,
+               Map<String, Integer> decisions, List<RoundStats> roundStats) {
+            this.numParticipants = numParticipants;
+            this.live = live;
+            this.rounds = rounds;
+            this.quiescentRound = quiescentRound;
+            this.virtualNanos = virtualNanos;
+            this.decisions = decisions;
+            this.roundStats = roundStats;
+        }
+
+        public boolean agreed() {
+            return decisions.size() == 1;
+        }
+
+        public long totalMessages() {
+            long total = 0;
+            for (RoundStats stats : roundStats) total += stats.messages;
+            return total;
+        }
+
+        public long totalBytes() {
+            long total = 0;
+            for (RoundStats stats : roundStats) total += stats.bytes;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "participants=" + numParticipants + " live=" + live + " rounds=" + rounds
+                    + " quiescent_round=" + quiescentRound + " agreed=" + agreed() + " decisions=" + decisions
+                    + " virtual_ms=" + String.format("%.3f", virtualNanos / 1e6)
+                    + " messages=" + totalMessages() + " bytes=" + totalBytes();
+        }
+    }
+}
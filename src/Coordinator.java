@@ -1,48 +1,173 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /*  ROLE: initiates a run of the consensus algorithm and collects the vote outcome
  *  Actual algorithm runs between participants.
+ *  All connections go through a Transport, which is TCP on localhost unless another one is passed in.
+ *  With -Dconsensus.membership the participants start from a static membership file instead, and the coordinator
+ *  only aggregates the outcomes they report.
+ *  With -Dconsensus.topology=star the participants don't connect to each other at all: each sends its vote to the
+ *  coordinator, which relays the votes back to them in one SNAPSHOT once it has heard from them all, or at the latest
+ *  twice the timeout after sending the vote options, when those that haven't voted count as crashed.
  *   */
 public class Coordinator {
 
     private int coordPort;
     private int loggerPort;
     private int numParticipants;
+    private final int timeout;
     private List<String> voteOptions;
-    volatile Map<Integer, PrintWriter> connectedPorts;
-    volatile List<Socket> connectedSockets;
+    volatile Map<Integer, Connection> connectedPorts;
+    volatile List<Connection> connectedSockets;
     private volatile boolean allConnected;
-    private volatile ArrayList<OutcomeMessage> outcomeMessages;
+    private volatile ArrayList<String> outcomeMessages;
     private volatile String finalOutcome;
+    //  Registered participants whose OUTCOME has arrived, or whose connection was lost before it could
+    private int numFinished;
+    private final Set<Integer> finishedPorts;
+    //  How long a participant that lost its connection has to rejoin from its write-ahead log before it counts as crashed
+    private final long recoveryWindow;
+    //  Participants that rejoined after losing their connection, until the thread of the lost connection notices
+    private final Set<Integer> rejoinedPorts;
+    private TransportServer listener;
+    //  The participants and options read from -Dconsensus.membership, which the participants read too, or null
+    private final Membership staticMembership;
+    //  The participants in DETAILS order, once known
+    private volatile Membership membership;
+    //  How the participants report their outcomes, once they are known; null when each reports its own
+    private volatile AggregationTree aggregation;
+    //  Group members whose connection has closed, having reported to their leader or crashed
+    private final Set<Integer> closedMembers;
+    //  Leaders whose group is done with, having sent its summary or crashed
+    private final Set<Integer> finishedGroups;
+    //  Whether votes are relayed through the coordinator rather than between the participants
+    final boolean relaysVotes;
+    //  The votes to relay, once the vote options have gone out; relayed when every participant has voted, or at the
+    //  deadline of twice the timeout after the options went out, whichever comes first
+    private VoteState relayedVotes;
+    private boolean votesRelayed;
+    //  Participants left out of the relay for not voting in time, which already count as crashed
+    private final Set<Integer> unrelayedPorts;
+    //  The most crashes the run has to tolerate, which the participants are told in the DETAILS, or -1 for all but one
+    private final int faultBound;
+    final Transport transport;
     CoordinatorLogger logger;
 
+    final MetricsRegistry metrics;
+    //  Microseconds from the vote options going out to each participant's OUTCOME arriving
+    final LatencyHistogram outcomeLatencies;
+    final LongAdder crashedParticipants;
+    final LongAdder messagesReceived;
+    final LongAdder voterSetMismatches;
+    //  Each participant's sent counters, fetched once it registers
+    final Map<Integer, LongAdder> messagesSent;
+    final Map<Integer, LongAdder> bytesSent;
+    //  The voters of the first outcome received, which the rest are compared against
+    private BitSet firstVoters;
+    private volatile long votingStartNanos;
+    final TraceRecorder tracer;
+
     public Coordinator(int coordPort, int loggerPort, int numParticipants, int timeout, List<String> options) throws IOException {
+        this(coordPort, loggerPort, numParticipants, timeout, options, Transport.fromSystemProperties(), initLogger(loggerPort, coordPort, timeout));
+    }
+
+    /*
+     *  Creates a coordinator that communicates over the given transport and logs to the given logger, so that it can
+     *  share a JVM with its participants.
+     */
+    public Coordinator(int coordPort, int loggerPort, int numParticipants, int timeout, List<String> options,
+                       Transport transport, CoordinatorLogger logger) {
+        this.transport = transport;
+        this.logger = logger;
         this.coordPort = coordPort;
         this.loggerPort = loggerPort;
         this.numParticipants = numParticipants;
+        this.timeout = timeout;
         this.voteOptions = options;
         connectedPorts = new HashMap<>();
         outcomeMessages = new ArrayList<>();
         allConnected = false;
         finalOutcome = "";
-        CoordinatorLogger.initLogger(loggerPort,coordPort,timeout);
-        logger = CoordinatorLogger.getLogger();
+        numFinished = 0;
+        finishedPorts = new HashSet<>();
+        recoveryWindow = Long.getLong("consensus.recoveryWindow", 0L);
+        rejoinedPorts = new HashSet<>();
+        unrelayedPorts = new HashSet<>();
+        closedMembers = new HashSet<>();
+        finishedGroups = new HashSet<>();
+        staticMembership = Membership.fromSystemProperties();
+        if (staticMembership != null) {
+            //  the participants bootstrap from the file, so there is nothing to wait for before they start voting
+            this.numParticipants = staticMembership.size();
+            this.voteOptions = staticMembership.getOptions();
+            membership = staticMembership;
+            aggregation = AggregationTree.fromSystemProperties(numParticipants);
+            votingStartNanos = System.nanoTime();
+        }
+        faultBound = Integer.getInteger("consensus.faultBound", -1);
+        if (faultBound < -1) throw new IllegalArgumentException("Can't tolerate " + faultBound + " crashes!");
+        relaysVotes = relaysVotesFromSystemProperties();
+        if (relaysVotes && (staticMembership != null || AggregationTree.fromSystemProperties(this.numParticipants) != null))
+            throw new IllegalArgumentException("A star topology can't be combined with a static membership or aggregation");
         connectedSockets = new ArrayList<>();
+        metrics = new MetricsRegistry();
+        outcomeLatencies = metrics.histogram("coordinator_outcome_latency_us");
+        crashedParticipants = metrics.counter("coordinator_crashed_participants_total");
+        messagesReceived = metrics.counter("coordinator_messages_received_total");
+        voterSetMismatches = metrics.counter("coordinator_voter_set_mismatches_total");
+        messagesSent = new HashMap<>();
+        bytesSent = new HashMap<>();
+        tracer = TraceRecorder.fromSystemProperties('C', coordPort);
+        tracer.setRunId(new Random().nextLong());
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /*
+     *  Reads -Dconsensus.topology, which every process of a run has to share: "mesh", the default, for participants
+     *  that relay their votes to each other over a round per participant, or "star" for participants that send their
+     *  vote once to the coordinator and get every vote back in a single message. The star takes a connection and a few
+     *  messages per participant rather than a connection per pair and a message per pair each round. The relay goes
+     *  out twice the timeout after the options at the latest, so a participant that hangs without crashing only delays
+     *  it until then, and is left out of it as crashed.
+     */
+    public static boolean relaysVotesFromSystemProperties() {
+        String topology = System.getProperty("consensus.topology", "mesh");
+        if (topology.equals("star")) return true;
+        if (topology.equals("mesh")) return false;
+        throw new IllegalArgumentException("Unknown topology " + topology + ", expected mesh or star");
+    }
+
+    private static CoordinatorLogger initLogger(int loggerPort, int coordPort, int timeout) throws IOException {
+        CoordinatorLogger.initLogger(loggerPort,coordPort,timeout);
+        return CoordinatorLogger.getLogger();
     }
 
-    //  Listens out for client connections, making sure joins are sent.
+    /*
+     *  Listens out for client connections, making sure joins are sent. With a recovery window, connections are taken
+     *  until every participant has finished, so that a restarted participant can rejoin.
+     */
     public void startListening(int port) throws IOException
     {
-        ServerSocket listener = new ServerSocket(port);
+        TransportServer listener = transport.listen(port);
+        synchronized (this) {
+            this.listener = listener;
+        }
         logger.startedListening(port);
-        while (!checkAllConnected()) {
-            Socket client = listener.accept();
-            logger.connectionAccepted(client.getPort());
+        while (!checkAllConnected() || (recoveryWindow > 0 && !checkAllFinished())) {
+            Connection client;
+            try {
+                client = listener.accept();
+            } catch (IOException e) {
+                //  closed once the last participant finishes
+                if (checkAllFinished()) return;
+                throw e;
+            }
+            logger.connectionAccepted(client.getRemotePort());
             CoordinatorThread clientThread = new CoordinatorThread(client);
             clientThread.start();
         }
@@ -54,6 +179,10 @@ public class Coordinator {
         else return false;
     }
 
+    private synchronized boolean checkAllFinished() {
+        return numFinished == numParticipants;
+    }
+
     public static void main(String[] args) throws IOException {
         if (args.length < 5 ) throw new IllegalArgumentException("Can't have less than 5 args!");
 
@@ -65,19 +194,34 @@ public class Coordinator {
         List<String> options = Arrays.asList(Arrays.copyOfRange(args, 4, args.length));
 
         Coordinator coordinator = new Coordinator(coordPort,loggerPort,numParticipants,timeout, options);
-        coordinator.startListening(coordPort);
+        MetricsExporter.start(coordinator.getMetrics(), coordPort);
+        //  the accept loop only notices everyone has joined when another connection arrives, so it can't be waited on
+        new Thread(() -> {
+            try {
+                coordinator.startListening(coordPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        coordinator.waitUntilAllFinished();
+        coordinator.tracer.dump();
+        System.exit(0);
     }
 
 
-    private synchronized boolean register(Integer port, Socket portSocket, PrintWriter outWriter) {
+    private synchronized boolean register(Integer port, Connection portSocket) {
         if (this.connectedPorts.size() >= numParticipants)
             return false;
+        if (staticMembership != null && staticMembership.indexOfPort(port) < 0)
+            return false;
         if (connectedPorts.containsKey(port)) {
             return false;
         }
         try {
-            connectedPorts.put(port, outWriter);
+            connectedPorts.put(port, portSocket);
             connectedSockets.add(portSocket);
+            messagesSent.put(port, metrics.counter("coordinator_messages_sent_total", "peer", port));
+            bytesSent.put(port, metrics.counter("coordinator_bytes_sent_total", "peer", port));
         }
         catch (NullPointerException e) {
             return false;
@@ -85,24 +229,45 @@ public class Coordinator {
 
         if (connectedPorts.size() == numParticipants) {
             allConnected = true;
-            broadcastParticipantDetails();
-            broadcastVoteRequest();
+            if (staticMembership == null) {
+                broadcastParticipantDetails();
+                broadcastVoteRequest();
+            }
             notifyAll();
         }
 
         return true;
     }
 
-    private boolean isJoinMessage(String msg) {
-        if (MsgParser.parseMessage(msg) instanceof JoinMessage)
-            return true;
-        else
+    //  Takes back a participant restarted after losing its connection, unless it already counts as finished
+    private synchronized boolean rejoin(Integer port) {
+        if (recoveryWindow <= 0 || !connectedPorts.containsKey(port) || finishedPorts.contains(port))
             return false;
+        rejoinedPorts.add(port);
+        notifyAll();
+        return true;
+    }
+
+    //  Waits out the recovery window for the participant of a lost connection, returning whether it rejoined
+    private synchronized boolean awaitRejoin(Integer port) {
+        long deadline = System.currentTimeMillis() + recoveryWindow;
+        while (!rejoinedPorts.contains(port)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+                break;
+            }
+        }
+        return rejoinedPorts.remove(port);
     }
 
 
     /*  Send details (ports) of all other participants to each participant
-     *  Executed after all participants join. Broadcasts message "DETAILS <port1> <port2> ...."
+     *  Executed after all participants join. Broadcasts message "DETAILS <port1> <port2> ....", followed by
+     *  "FAULTS <f>" when -Dconsensus.faultBound limits the crashes to tolerate, and with them the rounds
      *
      *  @param participantPorts list of participant ports
      *
@@ -114,8 +279,11 @@ public class Coordinator {
         for (Integer i: connectedPorts.keySet()) {
             detailsMsg += " " + i.toString();
         }
+        if (faultBound >= 0) detailsMsg += " FAULTS " + faultBound;
 
         List<Integer> portList = new ArrayList<>(connectedPorts.keySet());
+        membership = new Membership(portList, voteOptions, faultBound);
+        aggregation = AggregationTree.fromSystemProperties(numParticipants);
 
         for (Integer port: portList) {
             logger.detailsSent(port, portList);
@@ -125,7 +293,7 @@ public class Coordinator {
 
     }
 
-    private synchronized void updateOutcomes(OutcomeMessage outcome) {
+    private synchronized void updateOutcomes(String outcome) {
         if (this.outcomeMessages.size() < this.numParticipants)
             this.outcomeMessages.add(outcome);
         else throw new IllegalStateException("Somehow received an extra outcome message!"); // todo decide whether to throw error
@@ -136,10 +304,10 @@ public class Coordinator {
     }
 
     private synchronized boolean decideFinalOutcome() {
-        String outcome = this.outcomeMessages.get(0).getOutcome();
+        String outcome = this.outcomeMessages.get(0);
 
-        for (OutcomeMessage outcomeMessage : this.outcomeMessages) {
-            if (!outcomeMessage.getOutcome().equals(outcome)) {
+        for (String outcomeMessage : this.outcomeMessages) {
+            if (!outcomeMessage.equals(outcome)) {
                 return false;
             }
         }
@@ -163,17 +331,185 @@ public class Coordinator {
             logger.voteOptionsSent(port, voteOptions);
         }
 
+        votingStartNanos = System.nanoTime();
+        if (relaysVotes) {
+            relayedVotes = new VoteState(membership);
+            Thread deadline = new Thread(this::relayAtDeadline);
+            deadline.setDaemon(true);
+            deadline.start();
+        }
         broadcastMessage(optionsMsg);
     }
 
+    //  A vote that arrives after the relay went out is left out, as its participant already counts as crashed
+    private synchronized void voteReceived(VoteMessage vote) {
+        if (votesRelayed) return;
+        for (Map.Entry<Integer, String> entry : vote.getVotes().entrySet()) {
+            relayedVotes.merge(entry.getKey(), entry.getValue());
+        }
+        relayIfAllVoted();
+    }
+
+    //  Relays the votes once each participant has either voted or finished without voting, which means it crashed
+    private synchronized void relayIfAllVoted() {
+        if (relayedVotes == null || votesRelayed) return;
+        BitSet known = relayedVotes.getKnown();
+        for (int i = 0; i < membership.size(); i++) {
+            if (!known.get(i) && !finishedPorts.contains(membership.port(i))) return;
+        }
+        relayVotes();
+    }
+
+    private synchronized boolean leftOutOfRelay(int port) {
+        return unrelayedPorts.contains(port);
+    }
+
+    private void relayAtDeadline() {
+        try {
+            Thread.sleep(2L * timeout);
+        } catch (InterruptedException e) {
+            return;
+        }
+        relayVotes();
+    }
+
+    /*
+     *  Relays the votes collected so far to every participant, as "SNAPSHOT 1 <known> <choices>". A participant that
+     *  hasn't voted by then counts as crashed, just as a silent peer does in the mesh, and every participant decides
+     *  on the relayed votes alone, so the ones still running agree even when one of them is hung or slow.
+     */
+    private synchronized void relayVotes() {
+        if (votesRelayed) return;
+        votesRelayed = true;
+        BitSet known = relayedVotes.getKnown();
+        for (int i = 0; i < membership.size(); i++) {
+            int port = membership.port(i);
+            if (known.get(i) || finishedPorts.contains(port)) continue;
+            unrelayedPorts.add(port);
+            logger.participantCrashed(port);
+            crashedParticipants.increment();
+        }
+        broadcastMessage("SNAPSHOT 1 " + relayedVotes.encodeSnapshot());
+    }
+
     private synchronized void broadcastMessage(String msg) {
-        for (Map.Entry<Integer,PrintWriter> entry: connectedPorts.entrySet()) {
-            entry.getValue().println(msg);
-            entry.getValue().flush();
+        //  frames from the coordinator come before the first round
+        String frame = tracer.tag(msg, 0);
+        for (Map.Entry<Integer,Connection> entry: connectedPorts.entrySet()) {
+            try {
+                entry.getValue().sendLine(frame);
+                tracer.sent(entry.getKey(), msg, 0);
+            } catch (IOException e) {
+                //  the participant's thread notices the broken connection when it next reads
+            }
         }
 
-        for (Socket socket: this.connectedSockets) {
-            logger.messageSent(socket.getPort(), msg);
+        for (Connection socket: this.connectedSockets) {
+            logger.messageSent(socket.getRemotePort(), msg);
+        }
+
+        for (Integer port : connectedPorts.keySet()) {
+            messagesSent.get(port).increment();
+            bytesSent.get(port).add(msg.length() + 1);
+        }
+    }
+
+    //  Whether every participant agreed on the same outcome; empty until then
+    public String getFinalOutcome() {
+        return finalOutcome;
+    }
+
+    private synchronized void participantFinished(int port) {
+        if (!finishedPorts.add(port)) return;
+        numFinished++;
+        //  a crashed participant's vote is never coming, so the relay can't wait for it
+        relayIfAllVoted();
+        //  with crashes not every participant reports, so settle on the outcomes that did arrive
+        if (numFinished == numParticipants && finalOutcome.isEmpty() && !outcomeMessages.isEmpty())
+            decideFinalOutcome();
+        if (numFinished == numParticipants && recoveryWindow > 0 && listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        notifyAll();
+    }
+
+    //  The participants whose votes an outcome was based on, as a set over the DETAILS order
+    private BitSet votersOf(OutcomeMessage outcome) {
+        if (outcome.getVoters() != null) return outcome.getVoters();
+        BitSet voters = new BitSet(membership.size());
+        for (Integer port : outcome.getPorts()) {
+            int index = membership.indexOfPort(port);
+            if (index >= 0) voters.set(index);
+        }
+        return voters;
+    }
+
+    /*
+     *  Checks an outcome's voters against those of the first outcome received. Participants that agree on the outcome
+     *  can still have heard different votes, when crashes cut some relays short, so differences are counted.
+     */
+    private synchronized void compareVoters(BitSet voters) {
+        if (firstVoters == null) firstVoters = voters;
+        else if (!firstVoters.equals(voters)) voterSetMismatches.increment();
+    }
+
+    //  Takes in every outcome a group leader forwarded for its group
+    private synchronized void summaryReceived(SummaryMessage summary) {
+        outcomeLatencies.record((System.nanoTime() - votingStartNanos) / 1000);
+        for (Map.Entry<String, BitSet> outcome : summary.getOutcomes().entrySet()) {
+            BitSet reporters = outcome.getValue();
+            for (int i = reporters.nextSetBit(0); i >= 0; i = reporters.nextSetBit(i + 1)) {
+                if (i >= membership.size()) break;
+                if (finishedPorts.contains(membership.port(i))) continue;
+                logger.outcomeReceived(membership.port(i), outcome.getKey());
+                updateOutcomes(outcome.getKey());
+                participantFinished(membership.port(i));
+            }
+        }
+    }
+
+    /*
+     *  Finishes the rest of a leader's group once it has reported, or crashed. Members it didn't report for are only
+     *  lost if they have no connection to the coordinator left; the rest can still report straight to the coordinator,
+     *  which they do when they find the leader gone.
+     */
+    private synchronized void groupFinished(int leaderPort) {
+        finishedGroups.add(leaderPort);
+        BitSet group = aggregation.groupOf(membership.indexOfPort(leaderPort));
+        for (int i = group.nextSetBit(0); i >= 0; i = group.nextSetBit(i + 1)) {
+            int member = membership.port(i);
+            if (member == leaderPort || closedMembers.contains(member) || !connectedPorts.containsKey(member))
+                participantFinished(member);
+        }
+    }
+
+    //  A member's connection closes once it has reported to its leader, so it is finished when its leader's group is
+    private synchronized void memberClosed(int port) {
+        closedMembers.add(port);
+        int leader = membership.port(aggregation.leaderOf(membership.indexOfPort(port)));
+        if (finishedGroups.contains(leader)) participantFinished(port);
+    }
+
+    //  @return whether the outcome counts, which it doesn't from a member its leader already reported for
+    private synchronized boolean outcomeCounted(int port, String outcome) {
+        if (finishedPorts.contains(port)) return false;
+        updateOutcomes(outcome);
+        return true;
+    }
+
+    //  Blocks until every participant has either sent its OUTCOME or lost its connection
+    public synchronized void waitUntilAllFinished() {
+        while (numFinished < numParticipants) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+                return;
+            }
         }
     }
 
@@ -189,20 +525,11 @@ public class Coordinator {
     }
 
     private class CoordinatorThread extends Thread {
-        Socket clientSocket;
-        BufferedReader inpReader;
-        PrintWriter outWriter;
+        Connection clientSocket;
 
 
-        public CoordinatorThread(Socket client) throws IOException {
+        public CoordinatorThread(Connection client) {
             clientSocket = client;
-            //  buffered reader for string input from participant
-            inpReader = new BufferedReader( new InputStreamReader( client.getInputStream() ) );
-
-            //  print writer for string output to participant
-            outWriter = new PrintWriter( new OutputStreamWriter( client.getOutputStream() ) );
-
-            outWriter.flush();
 
             //todo figure out other params this will need
         }
@@ -210,49 +537,104 @@ public class Coordinator {
         public void run() {
             try {
 
-                String firstMessage = inpReader.readLine();
-                logger.messageReceived(clientSocket.getPort(),firstMessage);
-
-                if (!isJoinMessage(firstMessage)) {
+                String firstMessage = clientSocket.readLine();
+                logger.messageReceived(clientSocket.getRemotePort(),firstMessage);
+                messagesReceived.increment();
+
+                Message first = firstMessage == null ? null : MsgParser.parseMessage(firstMessage);
+                int port;
+                if (first instanceof RejoinMessage) {
+                    //  a rejoining participant already has the details and options, so only its OUTCOME is left
+                    port = ((RejoinMessage) first).getSenderPort();
+                    if (!rejoin(port)) {
+                        clientSocket.close();
+                        return;
+                    }
+                } else if (first instanceof JoinMessage) {
+                    port = ((JoinMessage) first).getSenderPort();
+                    logger.joinReceived(port);
+
+                    if (!register(port, this.clientSocket)) {
+                        clientSocket.close();
+                        return;
+                    }
+
+                    //  with a static membership the participant is voting already, and only reports back
+                    if (staticMembership == null) waitUntilAllNotified();
+
+                } else {
                     clientSocket.close();
                     return;
                 }
 
-                JoinMessage joinMessage = (JoinMessage) MsgParser.parseMessage(firstMessage);
-                logger.joinReceived(joinMessage.getSenderPort());
+                String recMsg = readLine(clientSocket);
 
+                //  in a star topology the participant's vote comes before its outcome, to be relayed to the rest
+                if (relaysVotes && recMsg != null) {
+                    logger.messageReceived(clientSocket.getRemotePort(),recMsg);
+                    messagesReceived.increment();
 
-                if (!register(joinMessage.getSenderPort(), this.clientSocket, this.outWriter)) {
+                    Message vote = MsgParser.parseMessage(recMsg);
+                    tracer.received(port, vote);
+                    voteReceived((VoteMessage) vote);
+                    recMsg = readLine(clientSocket);
+                }
+
+                if (recMsg == null) {
                     clientSocket.close();
+                    //  the thread of the rejoined connection finishes the participant instead
+                    if (awaitRejoin(port)) return;
+                    //  a group member closes its connection once it has reported to its leader
+                    if (aggregation != null && !aggregation.isLeader(membership.indexOfPort(port))) {
+                        memberClosed(port);
+                        return;
+                    }
+                    if (!leftOutOfRelay(port)) {
+                        logger.participantCrashed(port);
+                        crashedParticipants.increment();
+                    }
+                    participantFinished(port);
+                    //  a crashed leader's members that are still connected report for themselves
+                    if (aggregation != null) groupFinished(port);
                     return;
                 }
 
-                waitUntilAllNotified();
+                logger.messageReceived(clientSocket.getRemotePort(),recMsg);
+                messagesReceived.increment();
 
-                String recMsg = "";
-                try {
-                    recMsg = inpReader.readLine();
-                } catch (SocketException se) {
-                    logger.participantCrashed(joinMessage.getSenderPort());
+                Message message = MsgParser.parseMessage(recMsg);
+                if (message instanceof SummaryMessage) {
+                    tracer.received(port, message);
+                    summaryReceived((SummaryMessage) message);
                     clientSocket.close();
+                    groupFinished(port);
                     return;
                 }
 
-                logger.messageReceived(clientSocket.getPort(),recMsg);
-
+                OutcomeMessage outcome = (OutcomeMessage) message;
+                tracer.received(port, outcome);
+                logger.outcomeReceived(port,outcome.getOutcome());
+                outcomeLatencies.record((System.nanoTime() - votingStartNanos) / 1000);
 
-                OutcomeMessage outcome = (OutcomeMessage) MsgParser.parseMessage(recMsg);
-                logger.outcomeReceived(joinMessage.getSenderPort(),outcome.getOutcome());
-
-                updateOutcomes(outcome);
+                //  a group member only reports here when its leader is gone
+                if (outcomeCounted(port, outcome.getOutcome())) compareVoters(votersOf(outcome));
 
                 clientSocket.close();
-                System.exit(0);
+                participantFinished(port);
 
             } catch (IOException ioe) {
                 ioe.printStackTrace();
                 //  todo
             }
         }
+
+        //  @return the next line, or null once the connection is lost
+        private String readLine(Connection connection) throws IOException {
+            try {
+                return connection.readLine();
+            } catch (SocketException se) {
+                return null;
+            }
+        }
     }
 }
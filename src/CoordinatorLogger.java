@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
@@ -9,6 +10,13 @@ public class CoordinatorLogger {
 	
 	private final PrintStream ps;
 	private final UDPLoggerClient udpLoggerClient;
+	private final BinaryLog binaryLog;
+	
+	/**
+	 * Whether lines written to the log file start with the wall-clock time in microseconds, which LogAnalyzer needs to
+	 * time rounds; enabled with -Dconsensus.log.timestamps=true. Lines sent to the Logger process are left as they are
+	 */
+	static final boolean TIMESTAMPS = Boolean.getBoolean("consensus.log.timestamps");
 	
 	/**
 	 * Initialises the Logger for the Coordinator
@@ -25,6 +33,18 @@ public class CoordinatorLogger {
 			throw new RuntimeException("CoordinatorLogger already initialised");
 	}
 	
+	/**
+	 * Creates a Logger for a Coordinator that shares its JVM with other processes, so it isn't registered as the singleton
+	 * 
+	 * @param loggerServerPort the UDP port where the Logger process is listening on
+	 * @param processId the ID of the Coordinator, i.e. the TCP port where it is listening on
+	 * @param timeout the timeout in milliseconds for the Coordinator
+	 * @param ps where the log lines are written
+	 */
+	public static CoordinatorLogger createLogger(int loggerServerPort, int processId, int timeout, PrintStream ps) {
+		return new CoordinatorLogger(loggerServerPort, processId, timeout, ps);
+	}
+	
 	/**
 	 * @return the singleton instance of the Logger for the Coordinator
 	 */
@@ -36,17 +56,38 @@ public class CoordinatorLogger {
 	
 	private CoordinatorLogger(int loggerServerPort, int processId, int timeout) throws IOException {
 		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
-		ps = new PrintStream("coordinator_" + System.currentTimeMillis() + ".log");
+		String name = "coordinator_" + System.currentTimeMillis();
+		if (BinaryLog.isEnabled()) {
+			ps = null;
+			binaryLog = new BinaryLog(new File(name + ".clog"), 'C', processId);
+		} else {
+			ps = new PrintStream(name + ".log");
+			binaryLog = null;
+		}
+	}
+	
+	private CoordinatorLogger(int loggerServerPort, int processId, int timeout, PrintStream ps) {
+		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
+		this.ps = ps;
+		this.binaryLog = null;
+	}
+	
+	/**
+	 * @return whether log lines have to be rendered as text, which they do unless logging in binary without a Logger process
+	 */
+	private boolean logsText() {
+		return binaryLog == null || udpLoggerClient.getLoggerServerPort() != 0;
 	}
 	
 	protected void logMessage(String message) {
-		ps.println(message);
+		if (ps != null)
+			ps.println(TIMESTAMPS ? TraceRecorder.nowMicros() + " " + message : message);
 		if (udpLoggerClient != null)
 			try {
 				udpLoggerClient.logToServer(message);
 			} catch (IOException e) {
-				ps.println("[C] Exception caught: " + e.getMessage());
-				ps.println("[C] Stack trace: " + e.getStackTrace());
+				(ps != null ? ps : System.err).println("[C] Exception caught: " + e.getMessage());
+				(ps != null ? ps : System.err).println("[C] Stack trace: " + e.getStackTrace());
 			}
 	}
 
@@ -56,7 +97,10 @@ public class CoordinatorLogger {
 	 * @param port the port where the Coordinator is listening on
 	 */
 	public void startedListening(int port) {
-		logMessage("[C] started listening on port " + port);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.STARTED_LISTENING, port, 0);
+		if (logsText())
+			logMessage("[C] started listening on port " + port);
 	}
 	
 	/**
@@ -65,7 +109,10 @@ public class CoordinatorLogger {
 	 * @param participantId the ID of the Participant that joined, i.e. the port where the Participant is listening on 
 	 */
 	public void joinReceived(int participantId) {
-		logMessage("[C] JOIN received from " + participantId);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.JOIN_RECEIVED, participantId, 0);
+		if (logsText())
+			logMessage("[C] JOIN received from " + participantId);
 	}
 	
 	/**
@@ -75,7 +122,10 @@ public class CoordinatorLogger {
 	 * @param participantIds the list of IDs of the Participants that joined
 	 */
 	public void detailsSent(int destinationParticipantId, List<Integer> participantIds) {
-		logMessage("[C] details sent to " + destinationParticipantId + ": " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writePorts(BinaryLog.DETAILS_SENT, destinationParticipantId, null, participantIds);
+		if (logsText())
+			logMessage("[C] details sent to " + destinationParticipantId + ": " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -85,7 +135,10 @@ public class CoordinatorLogger {
 	 * @param votingOptions the list of voting options
 	 */
 	public void voteOptionsSent(int destinationParticipantId, List<String> votingOptions) {
-		logMessage("[C] vote options sent to " + destinationParticipantId + ": " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writeStrings(BinaryLog.VOTE_OPTIONS_SENT, destinationParticipantId, votingOptions);
+		if (logsText())
+			logMessage("[C] vote options sent to " + destinationParticipantId + ": " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -95,7 +148,10 @@ public class CoordinatorLogger {
 	 * @param vote the voting option sent by the Participant
 	 */
 	public void outcomeReceived(int participantId, String vote) {
-		logMessage("[C] outcome " + vote + " received from " + participantId);
+		if (binaryLog != null)
+			binaryLog.writeString(BinaryLog.OUTCOME_RECEIVED, participantId, vote);
+		if (logsText())
+			logMessage("[C] outcome " + vote + " received from " + participantId);
 	}
 	
 	/**
@@ -104,7 +160,10 @@ public class CoordinatorLogger {
 	 * @param otherPort the remote port number to which this socket is connected; note that this is different from the Participant ID 
 	 */
 	public void connectionAccepted(int otherPort) {
-		logMessage("[C] accepted connection from port " + otherPort);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.CONNECTION_ACCEPTED, otherPort, 0);
+		if (logsText())
+			logMessage("[C] accepted connection from port " + otherPort);
 	}
 	
 	/**
@@ -114,7 +173,10 @@ public class CoordinatorLogger {
 	 * @param message the message sent
 	 */
 	public void messageSent(int destinationPort, String message) {
-		logMessage("[C] message sent to " + destinationPort + ": \"" + message + "\"");
+		if (binaryLog != null)
+			binaryLog.writeMessage(BinaryLog.MESSAGE_SENT, destinationPort, message);
+		if (logsText())
+			logMessage("[C] message sent to " + destinationPort + ": \"" + message + "\"");
 	}
 	
 	/**
@@ -124,7 +186,10 @@ public class CoordinatorLogger {
 	 * @param message the message received
 	 */
 	public void messageReceived(int senderPort, String message) {
-		logMessage("[C] message received from " + senderPort + ": \"" + message + "\"");
+		if (binaryLog != null)
+			binaryLog.writeMessage(BinaryLog.MESSAGE_RECEIVED, senderPort, message);
+		if (logsText())
+			logMessage("[C] message received from " + senderPort + ": \"" + message + "\"");
 	}
 	
 	/**
@@ -134,6 +199,9 @@ public class CoordinatorLogger {
 	 * @param crashedParticipantId the ID of the crashed Participant, i.e. the port where the crashed Participant was listening on
 	 */
 	public void participantCrashed(int crashedParticipantId) {
-		logMessage("[C] participant crashed: " + crashedParticipantId);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.PARTICIPANT_CRASHED, crashedParticipantId, 0);
+		if (logsText())
+			logMessage("[C] participant crashed: " + crashedParticipantId);
 	}
 }
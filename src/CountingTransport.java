@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+//  Wraps another Transport and counts the lines and bytes sent and received over it, newlines included
+public class CountingTransport implements Transport {
+    private final Transport transport;
+    private final LongAdder linesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder linesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    public CountingTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public TransportServer listen(int port) throws IOException {
+        TransportServer server = transport.listen(port);
+        return new TransportServer() {
+            @Override
+            public Connection accept() throws IOException {
+                return new CountingConnection(server.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException {
+        return new CountingConnection(transport.connect(port));
+    }
+
+    public long getLinesSent() {
+        return linesSent.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getLinesReceived() {
+        return linesReceived.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    private static int lengthOf(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + 1;
+    }
+
+    private class CountingConnection implements Connection {
+        private final Connection connection;
+
+        CountingConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            String line = connection.readLine();
+            if (line != null) {
+                linesReceived.increment();
+                bytesReceived.add(lengthOf(line));
+            }
+            return line;
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            connection.sendLine(line);
+            linesSent.increment();
+            bytesSent.add(lengthOf(line));
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+            connection.setReadTimeout(timeout);
+        }
+
+        @Override
+        public int getRemotePort() {
+            return connection.getRemotePort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+}
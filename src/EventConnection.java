@@ -0,0 +1,10 @@
+/*
+ *  A connection that can hand the lines it receives to a callback instead of being read by a thread of its own, so
+ *  that one event loop can serve the connections of many participants. Callbacks run on the loop's thread, one at a
+ *  time, so they must not block for long.
+ */
+public interface EventConnection extends Connection {
+
+    //  Delivers every line from now on to the handler, starting with any received but not yet read
+    void listen(LineHandler handler);
+}
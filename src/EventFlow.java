@@ -0,0 +1,30 @@
+/*
+ *  The interfaces of java.util.concurrent.Flow, which arrived in JDK 9 while the project builds for Java 8. They have
+ *  the same methods and follow the same rules, the Reactive Streams ones: a subscriber receives nothing until it has
+ *  requested it, and calls to one subscriber never overlap. On a newer JDK a Flow.Subscriber subscribes through a
+ *  wrapper that forwards each method to it.
+ */
+public final class EventFlow {
+    private EventFlow() {
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+}
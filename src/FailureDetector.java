@@ -0,0 +1,32 @@
+/*
+ *  Decides whether a peer should be suspected of having crashed, based on when messages from it were last seen.
+ *  Listener threads report every line they read from a peer (votes and heartbeats alike) through heartbeat(), and
+ *  ask isAvailable() whenever a read times out.  Implementations must be thread-safe.
+ */
+public interface FailureDetector {
+
+    //  Records that a message from the given peer arrived at the given time
+    void heartbeat(int peer, long nowMillis);
+
+    //  Whether the peer should still be considered alive at the given time
+    boolean isAvailable(int peer, long nowMillis);
+
+    /*
+     *  Builds the failure detector selected by the "consensus.failureDetector" system property: "phi" (default) for
+     *  phi-accrual detection, or "timeout" for the fixed-timeout behaviour.
+     *
+     *  @param timeout the participant timeout in milliseconds
+     *  @param heartbeatInterval the interval in milliseconds at which peers send heartbeats
+     */
+    static FailureDetector fromSystemProperties(int timeout, int heartbeatInterval) {
+        String type = System.getProperty("consensus.failureDetector", "phi");
+
+        if (type.equals("timeout")) {
+            return new TimeoutFailureDetector(timeout);
+        } else if (type.equals("phi")) {
+            double threshold = Double.parseDouble(System.getProperty("consensus.phiThreshold", "8.0"));
+            return new PhiAccrualFailureDetector(threshold, 200, Math.max(heartbeatInterval / 4, 5), timeout / 2, heartbeatInterval);
+        }
+        throw new IllegalArgumentException("Unknown failure detector: " + type);
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+
+/*
+ *  The sending end of a peer link under credit-based flow control. The sender starts with a window of credit in
+ *  bytes and spends it on every line; the receiver returns it with "CREDIT <bytes>" once it has consumed that much.
+ *  A line the credit doesn't cover waits in a queue, and goes out as credit comes back, so no more than the window is
+ *  ever in flight and a write never blocks on a receiver that has stopped reading.
+ *
+ *  Sending never blocks either, so the round engine asks isBackedUp() and awaitDrained() instead, and can slow down
+ *  rather than find itself stalled inside a write. Lines are counted as their length plus the newline, as the
+ *  receiver counts them.
+ *
+ *  Enabled with -Dconsensus.flow.window, in bytes, which every participant of a run must share. The window is best
+ *  kept under the socket send buffer, so that spending it never fills the kernel's buffers.
+ */
+public class FlowControlledConnection implements Connection {
+    private final Connection connection;
+    private final int window;
+    private long credit;
+    private final ArrayDeque<String> queued;
+    private long queuedBytes;
+    private boolean closed;
+
+    public FlowControlledConnection(Connection connection, int window) throws IOException {
+        this.connection = connection;
+        this.window = window;
+        this.credit = window;
+        this.queued = new ArrayDeque<>();
+
+        //  the receiver's credit comes back down the connection, which otherwise carries nothing this way
+        connection.setReadTimeout(0);
+        if (connection instanceof EventConnection) {
+            ((EventConnection) connection).listen(new LineHandler() {
+                @Override
+                public void lineReceived(String line) {
+                    creditReceived(line);
+                }
+
+                @Override
+                public void timedOut() {
+                }
+
+                @Override
+                public void closed() {
+                    markClosed();
+                }
+            });
+        } else {
+            Thread reader = new Thread(this::readCredit);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    //  @return the configured window, or 0 if flow control is off
+    public static int windowFromSystemProperties() {
+        return Integer.getInteger("consensus.flow.window", 0);
+    }
+
+    private void readCredit() {
+        try {
+            String line;
+            while ((line = connection.readLine()) != null) creditReceived(line);
+        } catch (IOException e) {
+            //  closed by either side
+        }
+        markClosed();
+    }
+
+    private void creditReceived(String line) {
+        Message message = MsgParser.parseMessage(line);
+        if (!(message instanceof CreditMessage)) return;
+        synchronized (this) {
+            credit = Math.min(credit + ((CreditMessage) message).getBytes(), window);
+            try {
+                while (!queued.isEmpty() && fits(queued.peek())) {
+                    String queuedLine = queued.poll();
+                    queuedBytes -= cost(queuedLine);
+                    credit -= cost(queuedLine);
+                    connection.sendLine(queuedLine);
+                }
+            } catch (IOException e) {
+                //  the receiver's listener notices the broken connection
+                queued.clear();
+                queuedBytes = 0;
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void markClosed() {
+        closed = true;
+        notifyAll();
+    }
+
+    private static int cost(String line) {
+        return line.length() + 1;
+    }
+
+    //  A line longer than the whole window still goes out, once nothing else is in flight
+    private boolean fits(String line) {
+        return credit >= cost(line) || credit == window;
+    }
+
+    @Override
+    public synchronized void sendLine(String line) throws IOException {
+        if (closed) throw new SocketException("Socket closed");
+        if (queued.isEmpty() && fits(line)) {
+            connection.sendLine(line);
+            credit -= cost(line);
+            return;
+        }
+        queued.add(line);
+        queuedBytes += cost(line);
+    }
+
+    //  Sends a line only if it can go out now, for lines such as heartbeats that are pointless once late
+    public synchronized boolean offerLine(String line) throws IOException {
+        if (closed || !queued.isEmpty() || !fits(line)) return false;
+        connection.sendLine(line);
+        credit -= cost(line);
+        return true;
+    }
+
+    //  Whether lines are waiting for credit
+    public synchronized boolean isBackedUp() {
+        return !queued.isEmpty();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    //  Waits until no lines are waiting for credit; @return false if they still are when the time is up
+    public synchronized boolean awaitDrained(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!queued.isEmpty() && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("The sending end of a flow-controlled link reads only credit");
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) {
+    }
+
+    @Override
+    public int getRemotePort() {
+        return connection.getRemotePort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        markClosed();
+        connection.close();
+    }
+}
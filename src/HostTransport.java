@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  The Transport shared by every participant of a ParticipantHost. Connections between participants of the host are
+ *  pairs of in-memory queues, so the host listens on no sockets of its own, and connecting to a port nobody in the
+ *  host listens on, such as the coordinator's, goes through the remote transport instead.
+ *
+ *  Lines are delivered by a single event loop thread, which keeps each direction of a connection in order. A listener
+ *  that registers a LineHandler is called from the loop, read timeouts included, so the host doesn't need a thread
+ *  per connection; a connection nobody registered a handler on queues its lines for readLine() as usual.
+ */
+public class HostTransport implements Transport {
+    private final Transport remote;
+    private final ScheduledExecutorService loop;
+    private final Map<Integer, HostServer> servers;
+    private final AtomicInteger nextEphemeralPort;
+
+    public HostTransport(Transport remote) {
+        this.remote = remote;
+        this.loop = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "host-event-loop");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.servers = new ConcurrentHashMap<>();
+        this.nextEphemeralPort = new AtomicInteger(50000);
+    }
+
+    @Override
+    public TransportServer listen(int port) throws IOException {
+        HostServer server = new HostServer(port);
+        if (servers.putIfAbsent(port, server) != null) throw new BindException("Address already in use: " + port);
+        return server;
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException {
+        HostServer server = servers.get(port);
+        if (server == null) return remote.connect(port);
+
+        HostConnection clientSide = new HostConnection(port);
+        HostConnection serverSide = new HostConnection(nextEphemeralPort.getAndIncrement());
+        clientSide.peer = serverSide;
+        serverSide.peer = clientSide;
+        if (!server.offer(serverSide)) throw new ConnectException("Connection refused: " + port);
+        return clientSide;
+    }
+
+    private class HostServer implements TransportServer {
+        private final int port;
+        private final ArrayDeque<Connection> pending = new ArrayDeque<>();
+        private boolean closed = false;
+
+        HostServer(int port) {
+            this.port = port;
+        }
+
+        synchronized boolean offer(Connection connection) {
+            if (closed) return false;
+            pending.add(connection);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            while (pending.isEmpty()) {
+                if (closed) throw new SocketException("Socket closed");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new SocketException("Interrupted while accepting");
+                }
+            }
+            return pending.poll();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            servers.remove(port, this);
+            notifyAll();
+        }
+    }
+
+    private class HostConnection implements EventConnection {
+        private final int remotePort;
+        private HostConnection peer;
+        //  Lines that arrived before a handler was registered, or on a connection read with readLine()
+        private final ArrayDeque<String> unread = new ArrayDeque<>();
+        private LineHandler handler;
+        private boolean closed = false;
+        private boolean peerClosed = false;
+        private long lastHeardNanos;
+        private ScheduledFuture<?> idleCheck;
+        private volatile int timeout = 0;
+
+        HostConnection(int remotePort) {
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public synchronized String readLine() throws IOException {
+            long deadline = timeout > 0 ? System.nanoTime() + timeout * 1_000_000L : Long.MAX_VALUE;
+            while (true) {
+                if (closed) throw new SocketException("Socket closed");
+                if (!unread.isEmpty()) return unread.poll();
+                if (peerClosed) return null;
+
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) throw new SocketTimeoutException("Read timed out");
+                try {
+                    if (deadline == Long.MAX_VALUE) wait();
+                    else wait(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    throw new SocketException("Interrupted while reading");
+                }
+            }
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            synchronized (this) {
+                if (closed) throw new SocketException("Socket closed");
+                if (peerClosed) throw new SocketException("Broken pipe");
+            }
+            loop.execute(() -> peer.deliver(line));
+        }
+
+        @Override
+        public void listen(LineHandler handler) {
+            loop.execute(() -> {
+                List<String> received;
+                boolean ended;
+                synchronized (this) {
+                    if (closed) return;
+                    this.handler = handler;
+                    received = new ArrayList<>(unread);
+                    unread.clear();
+                    ended = peerClosed;
+                    lastHeardNanos = System.nanoTime();
+                }
+                received.forEach(handler::lineReceived);
+                if (ended) handler.closed();
+                else scheduleIdleCheck(timeout * 1_000_000L);
+            });
+        }
+
+        //  Runs on the loop
+        private void deliver(String line) {
+            LineHandler handler;
+            synchronized (this) {
+                if (closed) return;
+                lastHeardNanos = System.nanoTime();
+                if (this.handler == null) {
+                    unread.add(line);
+                    notifyAll();
+                    return;
+                }
+                handler = this.handler;
+            }
+            handler.lineReceived(line);
+        }
+
+        //  Runs on the loop, once the other end has closed
+        private void deliverClose() {
+            LineHandler handler;
+            synchronized (this) {
+                if (closed) return;
+                peerClosed = true;
+                notifyAll();
+                handler = this.handler;
+            }
+            if (handler != null) handler.closed();
+        }
+
+        private synchronized void scheduleIdleCheck(long delayNanos) {
+            if (closed || timeout <= 0) return;
+            idleCheck = loop.schedule(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /*
+         *  Runs on the loop once per read timeout, or once the time since the last line could have reached it, so a
+         *  connection that keeps hearing from its peer costs one check per timeout rather than one per line.
+         */
+        private void checkIdle() {
+            long timeoutNanos = timeout * 1_000_000L;
+            long idleNanos;
+            synchronized (this) {
+                if (closed || peerClosed) return;
+                idleNanos = System.nanoTime() - lastHeardNanos;
+                if (idleNanos >= timeoutNanos) lastHeardNanos = System.nanoTime();
+            }
+            if (idleNanos >= timeoutNanos) {
+                handler.timedOut();
+                scheduleIdleCheck(timeoutNanos);
+            } else {
+                scheduleIdleCheck(timeoutNanos - idleNanos);
+            }
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                unread.clear();
+                if (idleCheck != null) idleCheck.cancel(false);
+                notifyAll();
+            }
+            loop.execute(peer::deliverClose);
+        }
+    }
+}
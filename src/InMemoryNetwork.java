@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  A simulated network for running a whole cluster inside one JVM. Every process gets its own Transport from
+ *  transportFor(port), so the network knows which connections belong to which process and can crash it.
+ *
+ *  Each direction of a connection is a FIFO queue of lines stamped with the time they become readable, so delivery
+ *  keeps TCP's ordering while adding the configured latency and jitter. A dropped line is simply never queued.
+ */
+public class InMemoryNetwork {
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double dropRate;
+    private final Random random;
+
+    private final Map<Integer, MemoryServer> servers;
+    private final Map<Integer, List<MemoryConnection>> connectionsByOwner;
+    private final Set<Integer> crashed;
+    private final AtomicInteger nextEphemeralPort;
+
+    /*
+     *  @param latencyMillis fixed one-way delay added to every line
+     *  @param jitterMillis upper bound of a uniformly random delay added on top of the latency
+     *  @param dropRate probability that a line is silently lost
+     *  @param seed seed for the jitter and drop decisions
+     */
+    public InMemoryNetwork(double latencyMillis, double jitterMillis, double dropRate, long seed) {
+        this.latencyNanos = (long) (latencyMillis * 1_000_000);
+        this.jitterNanos = (long) (jitterMillis * 1_000_000);
+        this.dropRate = dropRate;
+        this.random = new Random(seed);
+        this.servers = new ConcurrentHashMap<>();
+        this.connectionsByOwner = new ConcurrentHashMap<>();
+        this.crashed = ConcurrentHashMap.newKeySet();
+        this.nextEphemeralPort = new AtomicInteger(50000);
+    }
+
+    public InMemoryNetwork() {
+        this(0, 0, 0, 0);
+    }
+
+    //  The Transport used by the process listening on the given port
+    public Transport transportFor(int ownerPort) {
+        return new Transport() {
+            @Override
+            public TransportServer listen(int port) throws IOException {
+                return InMemoryNetwork.this.listen(ownerPort, port);
+            }
+
+            @Override
+            public Connection connect(int port) throws IOException {
+                return InMemoryNetwork.this.connect(ownerPort, port);
+            }
+        };
+    }
+
+    /*
+     *  Simulates the process owning the given port crashing: it stops listening, lines it sent that haven't arrived
+     *  yet are lost, and its peers read end-of-stream. Its own threads see every connection as closed.
+     */
+    public void crash(int ownerPort) {
+        crashed.add(ownerPort);
+        MemoryServer server = servers.remove(ownerPort);
+        if (server != null) server.crash();
+
+        List<MemoryConnection> owned = connectionsByOwner.remove(ownerPort);
+        if (owned == null) return;
+        synchronized (owned) {
+            for (MemoryConnection connection : owned) {
+                connection.abort();
+            }
+        }
+    }
+
+    public boolean isCrashed(int ownerPort) {
+        return crashed.contains(ownerPort);
+    }
+
+    private TransportServer listen(int ownerPort, int port) throws IOException {
+        if (crashed.contains(ownerPort)) throw new SocketException("Process " + ownerPort + " has crashed");
+        MemoryServer server = new MemoryServer();
+        if (servers.putIfAbsent(port, server) != null) throw new BindException("Address already in use: " + port);
+        return server;
+    }
+
+    private Connection connect(int ownerPort, int port) throws IOException {
+        if (crashed.contains(ownerPort)) throw new SocketException("Process " + ownerPort + " has crashed");
+        MemoryServer server = servers.get(port);
+        if (server == null) throw new ConnectException("Connection refused: " + port);
+
+        int ephemeralPort = nextEphemeralPort.getAndIncrement();
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        MemoryConnection clientSide = new MemoryConnection(toClient, toServer, port);
+        MemoryConnection serverSide = new MemoryConnection(toServer, toClient, ephemeralPort);
+
+        register(ownerPort, clientSide);
+        register(port, serverSide);
+        if (!server.offer(serverSide)) throw new ConnectException("Connection refused: " + port);
+        return clientSide;
+    }
+
+    private void register(int ownerPort, MemoryConnection connection) {
+        List<MemoryConnection> owned = connectionsByOwner.computeIfAbsent(ownerPort, p -> new ArrayList<>());
+        synchronized (owned) {
+            owned.add(connection);
+        }
+    }
+
+    private synchronized long nextDelay() {
+        return latencyNanos + (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+    }
+
+    private synchronized boolean nextDropped() {
+        return dropRate > 0 && random.nextDouble() < dropRate;
+    }
+
+    private static class MemoryServer implements TransportServer {
+        private final ArrayDeque<Connection> pending = new ArrayDeque<>();
+        private boolean closed = false;
+        private boolean crashed = false;
+
+        synchronized boolean offer(Connection connection) {
+            if (closed || crashed) return false;
+            pending.add(connection);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            while (pending.isEmpty()) {
+                if (closed) throw new SocketException("Socket closed");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new SocketException("Interrupted while accepting");
+                }
+            }
+            return pending.poll();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /*
+         *  Refuses connections from now on, dropping any not yet accepted. An accept already waiting keeps waiting until
+         *  the process closes the server itself, as the threads of a real crashed process would never see a failure.
+         */
+        synchronized void crash() {
+            crashed = true;
+            pending.clear();
+        }
+    }
+
+    //  One direction of a connection
+    private class Pipe {
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private final ArrayDeque<Long> deliverAt = new ArrayDeque<>();
+        private long lastDeliverAt = 0;
+        private boolean writerClosed = false;
+        private boolean readerClosed = false;
+
+        synchronized void write(String line) throws IOException {
+            if (writerClosed) throw new SocketException("Socket closed");
+            if (readerClosed) throw new SocketException("Broken pipe");
+            if (nextDropped()) return;
+
+            //  later lines may never overtake earlier ones, whatever their jitter
+            lastDeliverAt = Math.max(lastDeliverAt, System.nanoTime() + nextDelay());
+            lines.add(line);
+            deliverAt.add(lastDeliverAt);
+            notifyAll();
+        }
+
+        synchronized String read(int timeout) throws IOException {
+            long deadline = timeout > 0 ? System.nanoTime() + timeout * 1_000_000L : Long.MAX_VALUE;
+            while (true) {
+                if (readerClosed) throw new SocketException("Socket closed");
+                long now = System.nanoTime();
+                if (!lines.isEmpty() && deliverAt.peek() <= now) {
+                    deliverAt.poll();
+                    return lines.poll();
+                }
+                if (lines.isEmpty() && writerClosed) return null;
+                if (now >= deadline) throw new SocketTimeoutException("Read timed out");
+
+                long wakeAt = lines.isEmpty() ? deadline : Math.min(deadline, deliverAt.peek());
+                long waitNanos = wakeAt - now;
+                try {
+                    if (waitNanos >= Long.MAX_VALUE / 2) wait();
+                    else wait(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    throw new SocketException("Interrupted while reading");
+                }
+            }
+        }
+
+        //  graceful close: the reader gets everything already written, then end-of-stream
+        synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+
+        //  crash: lines still in flight are lost
+        synchronized void abortWriter() {
+            long now = System.nanoTime();
+            while (!lines.isEmpty() && deliverAt.peekLast() > now) {
+                lines.pollLast();
+                deliverAt.pollLast();
+            }
+            writerClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeReader() {
+            readerClosed = true;
+            lines.clear();
+            deliverAt.clear();
+            notifyAll();
+        }
+    }
+
+    private class MemoryConnection implements Connection {
+        private final Pipe in;
+        private final Pipe out;
+        private final int remotePort;
+        private volatile int timeout = 0;
+
+        MemoryConnection(Pipe in, Pipe out, int remotePort) {
+            this.in = in;
+            this.out = out;
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return in.read(timeout);
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            out.write(line);
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public void close() {
+            out.closeWriter();
+            in.closeReader();
+        }
+
+        void abort() {
+            out.abortWriter();
+            in.closeReader();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+public interface LineHandler {
+
+    void lineReceived(String line);
+
+    //  Called whenever the read timeout passes without a line arriving
+    void timedOut();
+
+    //  Called once the other side has closed the connection
+    void closed();
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ *  Breaks a run's latency down by round from its logs, in one pass over them. For every round it reports how long
+ *  participants took over it, which peer's votes arrived last and after how long, and how many messages went out and
+ *  came in; for the run, how long the coordinator waited from sending the vote options to the last outcome.
+ *
+ *  Usage: LogAnalyzer <runDir> <reportFile> <csvFile>
+ *
+ *  Reads the participant_*.log and coordinator*.log files in runDir or, if there are none, the logger server's
+ *  logger_server_*.log segments, whose lines carry their arrival time in milliseconds. The processes' own logs only
+ *  have times when written with -Dconsensus.log.timestamps=true; without them the report has the counts but no
+ *  timings.
+ *
+ *  Files are read through memory-mapped windows of WINDOW_SIZE bytes, one file at a time, and nothing is kept per
+ *  line, so memory grows with the number of processes and rounds rather than the size of the logs. A votes received
+ *  line counts towards the round in progress, or, between rounds, the next one, with no delay since the peer was
+ *  ahead of us. Peers send an empty line for a round in which they have no new votes, and those aren't logged, so the
+ *  slowest peer of a round is the slowest of those that had votes to send.
+ */
+public class LogAnalyzer {
+    static final long WINDOW_SIZE = 64L << 20;
+    private static final long NO_TIME = -1;
+
+    private final Map<Integer, ProcessState> processes;
+    private final List<RoundStats> rounds;
+    private final LatencyHistogram roundMicros;
+    private final Map<Integer, Integer> timesSlowest;
+    private long filesRead;
+    private long bytesRead;
+    private long linesRead;
+    private long unparsedLines;
+    private boolean timed;
+
+    //  The coordinator's view: vote options first sent, and the last outcome received
+    private long optionsSentMicros = NO_TIME;
+    private long lastOutcomeMicros = NO_TIME;
+    private int outcomesReceived;
+    private int crashesReported;
+
+    public LogAnalyzer() {
+        this.processes = new HashMap<>();
+        this.rounds = new ArrayList<>();
+        this.roundMicros = new LatencyHistogram();
+        this.timesSlowest = new HashMap<>();
+    }
+
+    //  One participant's progress through its rounds
+    private static class ProcessState {
+        final int port;
+        //  As many as Participant.numRounds(), once the participant has logged the ports: one more than the fault bound
+        //  its DETAILS carried, if any, and at most the number of participants
+        int numRounds = Integer.MAX_VALUE;
+        int faultBound = -1;
+        int round;
+        boolean inRound;
+        long roundStart = NO_TIME;
+        //  Votes received so far in the round, with the latest arrival
+        int lastPeer = -1;
+        long lastArrival = NO_TIME;
+
+        ProcessState(int port) {
+            this.port = port;
+        }
+    }
+
+    private static class RoundStats {
+        int participants;
+        long durationSum;
+        long durationMax = NO_TIME;
+        int durationMaxParticipant;
+        int slowestPeer = -1;
+        long slowestDelay = NO_TIME;
+        int slowestAt;
+        long messagesSent;
+        long voteMessagesReceived;
+        long crashesDetected;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) throw new IllegalArgumentException("Can't have less than 3 args!");
+
+        File runDir = new File(args[0]);
+        LogAnalyzer analyzer = new LogAnalyzer();
+        long start = System.nanoTime();
+        analyzer.analyze(runDir);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        try (PrintStream report = new PrintStream(new FileOutputStream(args[1]))) {
+            analyzer.writeReport(report);
+        }
+        try (PrintStream csv = new PrintStream(new BufferedOutputStream(new FileOutputStream(args[2])))) {
+            analyzer.writeCsv(csv);
+        }
+        System.out.printf(Locale.ROOT, "Read %d files, %.1f MB in %.2fs%n", analyzer.filesRead, analyzer.bytesRead / 1e6, seconds);
+    }
+
+    public void analyze(File runDir) throws IOException {
+        File[] logs = runDir.listFiles((dir, name) -> name.endsWith(".log")
+                && (name.startsWith("participant_") || name.startsWith("coordinator")));
+        if (logs != null && logs.length > 0) {
+            Arrays.sort(logs);
+            for (File log : logs) readLines(log, this::processLine);
+            return;
+        }
+
+        File[] segments = runDir.listFiles((dir, name) -> name.startsWith("logger_server_") && name.endsWith(".log"));
+        if (segments == null || segments.length == 0) throw new FileNotFoundException("No logs of a run in " + runDir);
+        //  <name>.<n>.log, in the order they were written
+        Arrays.sort(segments, Comparator.comparing((File f) -> f.getName().substring(0, f.getName().lastIndexOf('.', f.getName().length() - 5)))
+                .thenComparingInt(f -> segmentNumber(f.getName())));
+        for (File segment : segments) readLines(segment, this::processSegmentLine);
+    }
+
+    private static int segmentNumber(String name) {
+        String withoutSuffix = name.substring(0, name.length() - 4);
+        try {
+            return Integer.parseInt(withoutSuffix.substring(withoutSuffix.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    interface LineConsumer {
+        void line(String line);
+    }
+
+    /*
+     *  Hands every line of the file to the consumer, reading it through a window mapped over WINDOW_SIZE bytes at a
+     *  time. A line that straddles two windows is carried over from one to the next.
+     */
+    void readLines(File file, LineConsumer consumer) throws IOException {
+        filesRead++;
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            bytesRead += size;
+            for (long position = 0; position < size; position += WINDOW_SIZE) {
+                int length = (int) Math.min(WINDOW_SIZE, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++) {
+                    byte b = window.get(i);
+                    if (b == '\n') {
+                        emit(line, lineLength, consumer);
+                        lineLength = 0;
+                    } else {
+                        if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+        }
+        if (lineLength > 0) emit(line, lineLength, consumer);
+    }
+
+    private void emit(byte[] line, int length, LineConsumer consumer) {
+        //  a segment the logger server didn't get to trim ends in zeros
+        if (length == 0 || line[0] == 0) return;
+        linesRead++;
+        consumer.line(new String(line, 0, length, StandardCharsets.UTF_8));
+    }
+
+    //  "<processId> <sequence> <millis> <message>", as the logger server stores it
+    private void processSegmentLine(String line) {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 4) {
+            unparsedLines++;
+            return;
+        }
+        try {
+            processMessage(Long.parseLong(parts[2]) * 1000, parts[3]);
+        } catch (NumberFormatException e) {
+            unparsedLines++;
+        }
+    }
+
+    //  A process's own log line, which starts with its time in microseconds when written with timestamps
+    private void processLine(String line) {
+        long micros = NO_TIME;
+        if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
+            int space = line.indexOf(' ');
+            try {
+                micros = Long.parseLong(line.substring(0, space));
+                line = line.substring(space + 1);
+            } catch (RuntimeException e) {
+                unparsedLines++;
+                return;
+            }
+        }
+        processMessage(micros, line);
+    }
+
+    private void processMessage(long micros, String message) {
+        if (micros != NO_TIME) timed = true;
+        int close = message.indexOf("] ");
+        if (close < 0 || !message.startsWith("[")) {
+            unparsedLines++;
+            return;
+        }
+        String event = message.substring(close + 2);
+        try {
+            if (message.startsWith("[C]")) coordinatorEvent(micros, event);
+            else if (message.startsWith("[P")) participantEvent(Integer.parseInt(message.substring(2, close)), micros, event);
+            else unparsedLines++;
+        } catch (NumberFormatException e) {
+            unparsedLines++;
+        }
+    }
+
+    private void coordinatorEvent(long micros, String event) {
+        if (event.startsWith("vote options sent to ")) {
+            if (optionsSentMicros == NO_TIME) optionsSentMicros = micros;
+        } else if (event.startsWith("outcome ")) {
+            outcomesReceived++;
+            if (micros != NO_TIME) lastOutcomeMicros = Math.max(lastOutcomeMicros, micros);
+        } else if (event.startsWith("participant crashed: ")) {
+            crashesReported++;
+        }
+    }
+
+    private void participantEvent(int port, long micros, String event) {
+        ProcessState process = processes.computeIfAbsent(port, ProcessState::new);
+        //  lines between rounds count towards the next one, unless there isn't one
+        int nextRound = process.inRound ? process.round : process.round + 1;
+        if (event.startsWith("received participant ports: ")) {
+            int participants = event.split(",").length;
+            process.numRounds = process.faultBound < 0 ? participants : Math.min(process.faultBound + 1, participants);
+        } else if (event.startsWith("message received from ") && event.contains(": \"DETAILS ")) {
+            //  logged just before the ports
+            Message details = MsgParser.parseMessage(event.substring(event.indexOf(": \"") + 3, event.length() - 1));
+            if (details instanceof DetailsMessage) process.faultBound = ((DetailsMessage) details).getFaultBound();
+        } else if (event.startsWith("begin round ")) {
+            process.round = Integer.parseInt(event.substring("begin round ".length()));
+            process.inRound = true;
+            process.roundStart = micros;
+            process.lastPeer = -1;
+            process.lastArrival = NO_TIME;
+        } else if (event.startsWith("end round ")) {
+            endRound(process, Integer.parseInt(event.substring("end round ".length())), micros);
+        } else if (event.startsWith("message sent to ")) {
+            if (process.inRound) round(process.round).messagesSent++;
+        } else if (event.startsWith("votes received from ")) {
+            int peer = Integer.parseInt(event.substring("votes received from ".length(), event.indexOf(':')));
+            if (process.inRound) {
+                round(process.round).voteMessagesReceived++;
+                if (micros != NO_TIME && process.roundStart != NO_TIME && micros >= process.lastArrival) {
+                    process.lastArrival = micros;
+                    process.lastPeer = peer;
+                }
+            } else if (nextRound <= process.numRounds) {
+                //  the peer is a round ahead; its votes are waiting when our next round starts
+                round(nextRound).voteMessagesReceived++;
+            }
+        } else if (event.startsWith("participant crashed: ")) {
+            if (nextRound <= process.numRounds) round(nextRound).crashesDetected++;
+        }
+    }
+
+    private void endRound(ProcessState process, int roundNumber, long micros) {
+        RoundStats round = round(roundNumber);
+        round.participants++;
+        if (micros != NO_TIME && process.roundStart != NO_TIME) {
+            long duration = micros - process.roundStart;
+            round.durationSum += duration;
+            roundMicros.record(duration);
+            if (duration > round.durationMax) {
+                round.durationMax = duration;
+                round.durationMaxParticipant = process.port;
+            }
+            if (process.lastPeer >= 0) {
+                long delay = process.lastArrival - process.roundStart;
+                if (delay > round.slowestDelay) {
+                    round.slowestDelay = delay;
+                    round.slowestPeer = process.lastPeer;
+                    round.slowestAt = process.port;
+                }
+            }
+        }
+        process.inRound = false;
+    }
+
+    private RoundStats round(int round) {
+        while (rounds.size() <= round) rounds.add(new RoundStats());
+        return rounds.get(round);
+    }
+
+    private static String millis(long micros) {
+        return micros == NO_TIME ? "" : String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    public void writeCsv(PrintStream out) {
+        out.println("round,participants,mean_round_ms,max_round_ms,slowest_participant,slowest_peer,slowest_peer_ms,"
+                + "messages_sent,vote_messages_received,crashes_detected");
+        for (int r = 1; r < rounds.size(); r++) {
+            RoundStats round = rounds.get(r);
+            boolean hasDurations = round.durationMax != NO_TIME;
+            out.println(r + "," + round.participants
+                    + "," + (hasDurations ? millis(round.durationSum / Math.max(round.participants, 1)) : "")
+                    + "," + millis(round.durationMax)
+                    + "," + (hasDurations ? round.durationMaxParticipant : "")
+                    + "," + (round.slowestPeer >= 0 ? round.slowestPeer : "")
+                    + "," + millis(round.slowestDelay)
+                    + "," + round.messagesSent + "," + round.voteMessagesReceived + "," + round.crashesDetected);
+        }
+    }
+
+    public void writeReport(PrintStream out) {
+        long messagesSent = 0;
+        long voteMessagesReceived = 0;
+        List<Integer> slowestRounds = new ArrayList<>();
+        for (int r = 1; r < rounds.size(); r++) {
+            RoundStats round = rounds.get(r);
+            messagesSent += round.messagesSent;
+            voteMessagesReceived += round.voteMessagesReceived;
+            if (round.durationMax != NO_TIME) slowestRounds.add(r);
+            if (round.slowestPeer >= 0) timesSlowest.merge(round.slowestPeer, 1, Integer::sum);
+        }
+        slowestRounds.sort(Comparator.comparingLong((Integer r) -> rounds.get(r).durationMax).reversed());
+
+        out.printf(Locale.ROOT, "Logs: %d files, %.1f MB, %d lines (%d not understood)%n",
+                filesRead, bytesRead / 1e6, linesRead, unparsedLines);
+        out.printf("Participants: %d, rounds: %d%n", processes.size(), Math.max(rounds.size() - 1, 0));
+        out.printf("Messages sent in rounds: %d, vote messages received: %d%n", messagesSent, voteMessagesReceived);
+        out.printf("Outcomes received by the coordinator: %d, crashes it saw: %d%n", outcomesReceived, crashesReported);
+        if (!timed) {
+            out.println("The logs have no timestamps, so there are no timings; see -Dconsensus.log.timestamps");
+            return;
+        }
+
+        if (optionsSentMicros != NO_TIME && lastOutcomeMicros != NO_TIME)
+            out.printf("Vote options sent to last outcome received: %s ms%n", millis(lastOutcomeMicros - optionsSentMicros));
+        out.printf("Round duration: p50 %s ms, p90 %s ms, p99 %s ms, max %s ms%n",
+                millis(roundMicros.valueAtPercentile(50)), millis(roundMicros.valueAtPercentile(90)),
+                millis(roundMicros.valueAtPercentile(99)), millis(roundMicros.max()));
+
+        out.println("Slowest rounds:");
+        for (Integer r : slowestRounds.subList(0, Math.min(5, slowestRounds.size()))) {
+            RoundStats round = rounds.get(r);
+            out.printf("  round %d: %s ms at participant %d", r, millis(round.durationMax), round.durationMaxParticipant);
+            if (round.slowestPeer >= 0)
+                out.printf(", votes from %d up to %s ms late (at %d)", round.slowestPeer, millis(round.slowestDelay), round.slowestAt);
+            out.println();
+        }
+
+        List<Map.Entry<Integer, Integer>> peers = new ArrayList<>(timesSlowest.entrySet());
+        peers.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed());
+        out.println("Peers most often slowest:");
+        for (Map.Entry<Integer, Integer> peer : peers.subList(0, Math.min(5, peers.size())))
+            out.printf("  %d: %d rounds%n", peer.getKey(), peer.getValue());
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/*
+ *  The participants and voting options of one run, as announced in DETAILS and VOTE_OPTIONS. Each participant and
+ *  option is identified by its position in those messages, which is what VoteState and the compact encodings work
+ *  with. A Membership never changes, so one instance can be shared by every participant in a simulation.
+ */
+public class Membership {
+    private final List<Integer> ports;
+    private final List<String> options;
+    private final Map<Integer, Integer> portIndices;
+    private final Map<String, Integer> optionIndices;
+    //  The most crashes the run has to tolerate, or -1 for all but one
+    private final int faultBound;
+
+    public Membership(List<Integer> ports, List<String> options) {
+        this(ports, options, -1);
+    }
+
+    public Membership(List<Integer> ports, List<String> options, int faultBound) {
+        this.faultBound = faultBound;
+        this.ports = Collections.unmodifiableList(new ArrayList<>(ports));
+        this.options = Collections.unmodifiableList(new ArrayList<>(options));
+        this.portIndices = new HashMap<>();
+        this.optionIndices = new HashMap<>();
+        for (int i = 0; i < ports.size(); i++) {
+            portIndices.put(ports.get(i), i);
+        }
+        for (int i = 0; i < options.size(); i++) {
+            optionIndices.putIfAbsent(options.get(i), i);
+        }
+    }
+
+    /*
+     *  Reads a static membership file, which holds the same DETAILS and VOTE_OPTIONS lines the coordinator would
+     *  send. Blank lines and lines starting with # are ignored.
+     */
+    public static Membership load(File file) throws IOException {
+        List<Integer> ports = null;
+        List<String> options = null;
+        int faultBound = -1;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+            Message message = MsgParser.parseMessage(line);
+            if (message instanceof DetailsMessage) {
+                ports = ((DetailsMessage) message).getPorts();
+                faultBound = ((DetailsMessage) message).getFaultBound();
+            } else if (message instanceof OptionsMessage) options = ((OptionsMessage) message).getOptions();
+            else throw new IOException(file + " has a line that isn't DETAILS or VOTE_OPTIONS: " + line);
+        }
+        if (ports == null || options == null)
+            throw new IOException(file + " needs both a DETAILS and a VOTE_OPTIONS line");
+        return new Membership(ports, options, faultBound);
+    }
+
+    //  @return the membership in the file named by -Dconsensus.membership, or null if there isn't one
+    public static Membership fromSystemProperties() {
+        String file = System.getProperty("consensus.membership");
+        if (file == null) return null;
+        try {
+            return load(new File(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int size() {
+        return ports.size();
+    }
+
+    public int numOptions() {
+        return options.size();
+    }
+
+    public List<Integer> getPorts() {
+        return ports;
+    }
+
+    public List<String> getOptions() {
+        return options;
+    }
+
+    public int getFaultBound() {
+        return faultBound;
+    }
+
+    public int port(int index) {
+        return ports.get(index);
+    }
+
+    public String option(int index) {
+        return options.get(index);
+    }
+
+    //  @return the participant's position in DETAILS, or -1 if it isn't part of this run
+    public int indexOfPort(int port) {
+        Integer index = portIndices.get(port);
+        return index == null ? -1 : index;
+    }
+
+    //  @return the option's position in VOTE_OPTIONS, or -1 if it isn't one of the options
+    public int indexOfOption(String option) {
+        Integer index = optionIndices.get(option);
+        return index == null ? -1 : index;
+    }
+}
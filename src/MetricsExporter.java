@@ -0,0 +1,105 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ *  Makes a MetricsRegistry visible outside the process, without touching the hot path: either by rewriting a
+ *  snapshot file at a fixed interval, or by serving the snapshot over HTTP on a local port for a scraper to poll.
+ *
+ *  start() reads -Dconsensus.metrics.dir, which gets a <processId>.metrics file rewritten every
+ *  -Dconsensus.metrics.interval ms (default 1000) and once more as the process exits, and
+ *  -Dconsensus.metrics.portOffset, which serves the snapshot on processId + offset so that every process of a cluster
+ *  gets its own port. With neither set nothing is exported.
+ */
+public class MetricsExporter {
+    //  How long a scraper gets to send its request, so that an idle connection can't hold up the others
+    private static final int REQUEST_TIMEOUT_MILLIS = 1000;
+
+    private final MetricsRegistry registry;
+
+    public MetricsExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public static void start(MetricsRegistry registry, int processId) throws IOException {
+        MetricsExporter exporter = new MetricsExporter(registry);
+
+        String dir = System.getProperty("consensus.metrics.dir");
+        if (dir != null)
+            exporter.writeSnapshots(new File(dir, processId + ".metrics"), Long.getLong("consensus.metrics.interval", 1000L));
+
+        Integer portOffset = Integer.getInteger("consensus.metrics.portOffset");
+        if (portOffset != null)
+            exporter.serve(processId + portOffset);
+    }
+
+    /*
+     *  Rewrites the file with a fresh snapshot every interval, and a last time as the process exits so that the counts
+     *  of its final interval aren't lost
+     */
+    public void writeSnapshots(File file, long intervalMillis) {
+        daemon(() -> {
+            while (true) {
+                try {
+                    writeSnapshot(file);
+                    Thread.sleep(intervalMillis);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeSnapshot(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    //  Replaces the file atomically, so readers never see half of a snapshot
+    private synchronized void writeSnapshot(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), registry.snapshot().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //  Answers every HTTP request on the loopback port with the current snapshot
+    public void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        daemon(() -> {
+            while (true) {
+                try (Socket client = server.accept()) {
+                    client.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                    BufferedReader request = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+                    String line;
+                    while ((line = request.readLine()) != null && !line.isEmpty()) {
+                        //  the request itself doesn't matter; skip to the end of its headers
+                    }
+
+                    byte[] body = registry.snapshot().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = client.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length
+                            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    if (server.isClosed()) return;
+                }
+            }
+        }).start();
+    }
+
+    private static Thread daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable, "metrics-exporter");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
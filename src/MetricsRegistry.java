@@ -0,0 +1,53 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *  Named counters and latency histograms for one process. Looking a metric up by name costs a map lookup, so hot
+ *  paths fetch theirs once and keep the reference; updating a counter or histogram after that never locks.
+ *
+ *  Names may carry labels in the Prometheus style, e.g. messages_sent_total{peer="10002"}, and snapshot() renders
+ *  everything in the Prometheus text format.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LatencyHistogram> histograms;
+
+    public MetricsRegistry() {
+        this.counters = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LongAdder counter(String name, String label, Object value) {
+        return counter(name + "{" + label + "=\"" + value + "\"}");
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public String snapshot() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            out.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.valueAtPercentile(quantile * 100)).append('\n');
+            }
+            out.append(name).append("_max ").append(histogram.max()).append('\n');
+            out.append(name).append("_count ").append(histogram.count()).append('\n');
+        }
+        return out.toString();
+    }
+}
@@ -13,7 +13,9 @@ public class MsgParser {
 
         String firstToken = tokenizer.nextToken();
 
-        if (firstToken.equals("JOIN")) {
+        if (firstToken.equals("TRACE")) {
+            return parseTracedMessage(msg);
+        } else if (firstToken.equals("JOIN")) {
             if (tokenizer.hasMoreTokens()) return new JoinMessage(msg, Integer.parseInt(tokenizer.nextToken()));
             else return null;
         } else if (firstToken.equals("DETAILS")) {
@@ -29,16 +31,64 @@ public class MsgParser {
         }  else if (firstToken.equals("OUTCOME")) {
             if (tokenizer.hasMoreTokens()) return parseOutcomeMessage(msg,tokenizer);
             else return null;
+        } else if (firstToken.equals("HEARTBEAT")) {
+            if (tokenizer.hasMoreTokens()) return new HeartbeatMessage(msg, Integer.parseInt(tokenizer.nextToken()));
+            else return null;
+        } else if (firstToken.equals("REJOIN")) {
+            if (!tokenizer.hasMoreTokens()) return null;
+            int senderPort = Integer.parseInt(tokenizer.nextToken());
+            int rounds = tokenizer.hasMoreTokens() ? Integer.parseInt(tokenizer.nextToken()) : 0;
+            return new RejoinMessage(msg, senderPort, rounds);
+        } else if (firstToken.equals("SUMMARY")) {
+            if (tokenizer.countTokens() < 2) return null;
+            Map<String, BitSet> outcomes = new LinkedHashMap<>();
+            while (tokenizer.countTokens() >= 2) {
+                outcomes.put(tokenizer.nextToken(), VoteState.decodeBits(tokenizer.nextToken()));
+            }
+            return new SummaryMessage(msg, outcomes);
+        } else if (firstToken.equals("SNAPSHOT")) {
+            if (tokenizer.countTokens() < 3) return null;
+            return new SnapshotMessage(msg, Integer.parseInt(tokenizer.nextToken()), tokenizer.nextToken(), tokenizer.nextToken());
+        } else if (firstToken.equals("CREDIT")) {
+            if (tokenizer.hasMoreTokens()) return new CreditMessage(msg, Integer.parseInt(tokenizer.nextToken()));
+            else return null;
+        } else if (firstToken.equals("BALLOT")) {
+            return parseBallotMessage(msg);
         }
         else return null;
     }
 
+    //  "TRACE <runId> <round> <sentMicros> <frame>", which parses as the frame with its trace context attached
+    private static Message parseTracedMessage(String msg) {
+        String[] parts = msg.trim().split(" +", 5);
+        if (parts.length < 5) return null;
+
+        Message message = parseMessage(parts[4]);
+        if (message != null)
+            message.trace = new TraceContext(Long.parseUnsignedLong(parts[1], 16), Integer.parseInt(parts[2]),
+                    Long.parseLong(parts[3]));
+        return message;
+    }
+
+    //  "BALLOT <ballot> [frame]", which carries a frame of one of the many votes a ConsensusNode runs at once
+    private static Message parseBallotMessage(String msg) {
+        String[] parts = msg.trim().split(" +", 3);
+        if (parts.length < 2) return null;
+        return new BallotMessage(msg, parts[1], parts.length > 2 ? parseMessage(parts[2]) : null);
+    }
+
     private static Message parseOutcomeMessage(String msg, StringTokenizer tokenizer) {
         String outcome = "";
         List<Integer> ports = new ArrayList<>();
 
         outcome = tokenizer.nextToken();
 
+        if (tokenizer.hasMoreTokens()) {
+            String first = tokenizer.nextToken();
+            if (first.startsWith("#")) return new OutcomeMessage(msg, outcome, VoteState.decodeBits(first.substring(1)));
+            ports.add(Integer.parseInt(first));
+        }
+
         while (tokenizer.hasMoreTokens()) {
             ports.add(Integer.parseInt(tokenizer.nextToken()));
         }
@@ -78,11 +128,17 @@ public class MsgParser {
 
     private static DetailsMessage parseDetailsMessage(String message, StringTokenizer tokenizer) {
         List<Integer> ports = new ArrayList<>();
+        int faultBound = -1;
         do {
-            ports.add(Integer.parseInt(tokenizer.nextToken()));
+            String token = tokenizer.nextToken();
+            if (token.equals("FAULTS")) {
+                if (tokenizer.hasMoreTokens()) faultBound = Integer.parseInt(tokenizer.nextToken());
+                break;
+            }
+            ports.add(Integer.parseInt(token));
         } while (tokenizer.hasMoreTokens());
 
-        return new DetailsMessage(message,ports);
+        return new DetailsMessage(message,ports,faultBound);
     }
 
 
@@ -90,6 +146,36 @@ public class MsgParser {
 
 abstract class Message {
     String message;
+    //  Set when the frame was tagged by a TraceRecorder
+    TraceContext trace;
+
+    public TraceContext getTrace() {
+        return trace;
+    }
+}
+
+class TraceContext {
+    long runId;
+    int round;
+    long sentMicros;
+
+    public TraceContext(long runId, int round, long sentMicros) {
+        this.runId = runId;
+        this.round = round;
+        this.sentMicros = sentMicros;
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public long getSentMicros() {
+        return sentMicros;
+    }
 }
 
 class JoinMessage extends Message {
@@ -105,18 +191,155 @@ class JoinMessage extends Message {
     }
 }
 
+//  Sent periodically between participants so silence can be told apart from slowness: "HEARTBEAT <port>"
+class HeartbeatMessage extends Message {
+    int senderPort;
+
+    public HeartbeatMessage(String message, int senderPort) {
+        this.message = message;
+        this.senderPort = senderPort;
+    }
+
+    public int getSenderPort() {
+        return this.senderPort;
+    }
+}
+
+//  Sent by a participant restarted from its write-ahead log, in place of JOIN: "REJOIN <port> <rounds completed>"
+class RejoinMessage extends Message {
+    int senderPort;
+    int rounds;
+
+    public RejoinMessage(String message, int senderPort, int rounds) {
+        this.message = message;
+        this.senderPort = senderPort;
+        this.rounds = rounds;
+    }
+
+    public int getSenderPort() {
+        return senderPort;
+    }
+
+    public int getRounds() {
+        return rounds;
+    }
+}
+
+/*
+ *  A participant's whole vote state, sent down a connection that arrives after voting started, whether from a peer
+ *  rejoining or one that was slow to connect: "SNAPSHOT <rounds sent> <known> <choices>", with the known set and
+ *  choices encoded as by VoteState.encodeSnapshot()
+ */
+class SnapshotMessage extends Message {
+    int rounds;
+    String known;
+    String choices;
+
+    public SnapshotMessage(String message, int rounds, String known, String choices) {
+        this.message = message;
+        this.rounds = rounds;
+        this.known = known;
+        this.choices = choices;
+    }
+
+    public int getRounds() {
+        return rounds;
+    }
+
+    public String getKnown() {
+        return known;
+    }
+
+    public String getChoices() {
+        return choices;
+    }
+}
+
+//  Sent back along a peer link under flow control, returning credit for bytes consumed: "CREDIT <bytes>"
+class CreditMessage extends Message {
+    int bytes;
+
+    public CreditMessage(String message, int bytes) {
+        this.message = message;
+        this.bytes = bytes;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+}
+
+/*
+ *  The outcomes decided across a subtree of the aggregation tree, each with the set of participants (by DETAILS index)
+ *  that decided it: "SUMMARY <outcome> <participants> ...", the sets encoded as by VoteState.encodeBits()
+ */
+class SummaryMessage extends Message {
+    Map<String, BitSet> outcomes;
+
+    public SummaryMessage(String message, Map<String, BitSet> outcomes) {
+        this.message = message;
+        this.outcomes = outcomes;
+    }
+
+    public Map<String, BitSet> getOutcomes() {
+        return outcomes;
+    }
+
+    public static String encode(Map<String, BitSet> outcomes) {
+        StringBuilder msg = new StringBuilder("SUMMARY");
+        for (Map.Entry<String, BitSet> outcome : outcomes.entrySet()) {
+            msg.append(' ').append(outcome.getKey()).append(' ').append(VoteState.encodeBits(outcome.getValue()));
+        }
+        return msg.toString();
+    }
+}
+
+/*
+ *  A frame of one vote among those a ConsensusNode runs over the same connections, tagged with the vote's ballot id.
+ *  The frame is VOTE_OPTIONS, a VOTE, or null for a round in which the sender had no new votes to relay.
+ */
+class BallotMessage extends Message {
+    String ballot;
+    Message frame;
+
+    public BallotMessage(String message, String ballot, Message frame) {
+        this.message = message;
+        this.ballot = ballot;
+        this.frame = frame;
+    }
+
+    public String getBallot() {
+        return ballot;
+    }
+
+    public Message getFrame() {
+        return frame;
+    }
+}
+
+/*
+ *  "DETAILS <port1> <port2> ... [FAULTS <f>]", where f is the most crashes the run has to tolerate, which bounds the
+ *  number of rounds
+ */
 class DetailsMessage extends Message {
     List<Integer> ports;
+    int faultBound;
 
-    public DetailsMessage(String message, List<Integer> ports) {
+    public DetailsMessage(String message, List<Integer> ports, int faultBound) {
         this.message = message;
         this.ports = ports;
+        this.faultBound = faultBound;
     }
 
     public List<Integer> getPorts() {
         return ports;
     }
 
+    //  @return f, or -1 when the run has to tolerate all but one participant crashing
+    public int getFaultBound() {
+        return faultBound;
+    }
+
 }
 
 class OptionsMessage extends Message {
@@ -151,9 +374,16 @@ class VoteMessage extends Message {
     }
 }
 
+/*
+ *  "OUTCOME <outcome> <voter ports...>", or with -Dconsensus.outcome.format=bitset "OUTCOME <outcome> #<voters>", the
+ *  voters a set over the DETAILS order encoded as by VoteState.encodeBits(), which keeps the message a few bytes per
+ *  eight participants and lets the coordinator compare voter sets a word at a time
+ */
 class OutcomeMessage extends Message {
     String outcome;
     List<Integer> ports;
+    //  Set instead of the ports when the voters came as a bitset
+    BitSet voters;
 
     public OutcomeMessage(String message, String outcome, List<Integer> ports) {
         this.message = message;
@@ -161,6 +391,22 @@ class OutcomeMessage extends Message {
         this.ports = ports;
     }
 
+    public OutcomeMessage(String message, String outcome, BitSet voters) {
+        this.message = message;
+        this.outcome = outcome;
+        this.ports = Collections.emptyList();
+        this.voters = voters;
+    }
+
+    //  Whether participants should send their voters as a bitset
+    public static boolean sendsBitsets() {
+        return "bitset".equals(System.getProperty("consensus.outcome.format"));
+    }
+
+    public BitSet getVoters() {
+        return voters;
+    }
+
     public String getOutcome() {
         return outcome;
     }
@@ -1,19 +1,20 @@
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  *  Represents a participant in the consensus algorithm. Participants communicate with the coordinator and each other.
  *  Using a CoordinatorCommsThread to communicate with the coordinator.
  *  Each participant has a port number associated for communication with other participants, which will be used as the
- *  address of the participant ServerSocket, used to connect to all other participants and communicate directly
+ *  address of the participant ServerSocket, used to connect to all other participants and communicate directly.
+ *  All connections go through a Transport, which is TCP on localhost unless another one is passed in.
+ *  With -Dconsensus.topology=star the participants don't connect to each other, and their votes are relayed through
+ *  the coordinator instead.
  */
 public class Participant {
     int coordPort;
@@ -22,99 +23,350 @@ public class Participant {
     int timeout;
     volatile int numConnected;
     volatile List<Integer> participantPorts;
+    //  The most crashes the run has to tolerate, from the DETAILS, or -1 for all but one
+    volatile int faultBound;
     volatile List<String> voteOptions;
-    volatile List<Vote> votes;
+    //  Every vote this participant knows of, created once the vote options arrive
+    volatile VoteState voteState;
+    //  Votes and snapshots heard before voteState was created, which are merged into it once it is
+    final List<Message> earlyVotes;
 
     //  The final outcome of the voting process
     volatile String finalOutcome;
+    //  The participants whose votes the outcome was decided on, a snapshot that every report of the outcome lists
+    volatile BitSet finalVoters;
 
-    volatile List<PrintWriter> participantOutputs;
-    volatile List<Socket> acceptedSockets;
-
-    volatile List<Vote> newVotes;
+    //  Connections accepted from the other participants, which this participant sends its votes down
+    volatile List<Connection> acceptedConnections;
+    //  The sent counters of each connection, fetched once when the link is set up rather than on every send
+    final Map<Connection, SentCounters> sentCounters;
 
     //  The choice that this participant will vote for
     volatile String voteChoice;
 
 
     final Object coordThreadMonitor;
-    final Object listenerMonitor;
-    CountDownLatch listenerLatch;
 
-    ServerSocket participantServer;
+    //  Notified whenever a listener hears a round's message from its peer, or decides that the peer has crashed
+    final Object roundMonitor;
+    //  Number of round messages heard so far from each peer, keyed by the peer's port
+    final Map<Integer, Integer> roundsHeard;
+    final Set<Integer> crashedPeers;
+    //  The listener currently reading from each peer, which changes when a peer rejoins after a crash
+    final Map<Integer, PeerListener> peerListeners;
+
+    FailureDetector failureDetector;
+    RoundDeadlineEstimator deadlineEstimator;
+    //  System.nanoTime() at which each round started, indexed by round number
+    volatile long[] roundStartNanos;
+    //  How often heartbeats are sent to the other participants, also used as the socket read timeout
+    int heartbeatInterval;
+
+    final Transport transport;
+    TransportServer participantServer;
+    //  Set when this participant closes its own server, so the accept loop knows the failure that ends it was expected
+    volatile boolean serverClosed;
 
 
     volatile boolean choiceMade;
     volatile boolean votingComplete;
+
+    //  The participants and options read from -Dconsensus.membership, or null to get them from the coordinator
+    final Membership staticMembership;
+    //  Where this participant's state is logged for crash recovery, or null if it isn't
+    WriteAheadLog wal;
+    //  The round voting starts at, after the last completed one when recovering from the write-ahead log
+    int firstRound;
+    //  Number of round messages broadcast so far, which a rejoining peer is told so it can count ours from there
+    int roundsSent;
+    //  Number of peers expected to connect to this participant before voting starts
+    int expectedConnections;
+    //  Bytes a peer may have in flight to us, and we to it, under credit-based flow control; 0 when it's off
+    final int flowWindow;
+    //  How outcomes are reported, once the ports are known; null when every participant reports to the coordinator
+    AggregationTree aggregation;
+    //  Whether our vote goes to the coordinator to be relayed, rather than to every peer over the rounds
+    final boolean relaysVotes;
+    //  Set once the coordinator's relay has been heard, or given up on
+    boolean votesRelayed;
+    //  Set when the coordinator was lost before it relayed the votes, which leaves nothing to decide on
+    boolean relayLost;
+    //  Set once a CoordinatorCommsThread is connected, which a group member falls back on when its leader is gone
+    volatile boolean coordinatorConnected;
+    //  Set once a group member has made its report, so that only one thread makes it
+    boolean memberReported;
+    //  As a group leader, the outcomes reported by the group so far, with who reported each
+    final Map<String, BitSet> groupOutcomes;
     ParticipantLogger logger;
+    final List<ParticipantListener> listeners;
+    //  The votes known when the last round ended, so listeners can be told which ones each round brought
+    private BitSet tallied;
+
+    final MetricsRegistry metrics;
+    final LatencyHistogram roundDurations;
+    final LatencyHistogram roundWaits;
+    final LatencyHistogram parseTimes;
+    final LatencyHistogram mergeTimes;
+    final LatencyHistogram backpressureWaits;
+    final LongAdder suspectedCrashes;
+    final TraceRecorder tracer;
 
     public Participant(int coordPort, int loggerPort, int commsPort,int timeout) {
+        this(coordPort, loggerPort, commsPort, timeout, Transport.fromSystemProperties(), initLogger(loggerPort, commsPort, timeout));
+    }
+
+    /*
+     *  Creates a participant that communicates over the given transport and logs to the given logger, which lets
+     *  several participants share one JVM.
+     */
+    public Participant(int coordPort, int loggerPort, int commsPort, int timeout, Transport transport, ParticipantLogger logger) {
+        this.transport = transport;
+        this.logger = logger;
         this.timeout = timeout;
         this.commsPort = commsPort;
         this.coordPort = coordPort;
         this.loggerPort = loggerPort;
         this.participantPorts = new ArrayList<>();
         this.voteOptions = new ArrayList<>();
-        this.votes = new ArrayList<>();
-        this.participantOutputs = new ArrayList<>();
-        this.acceptedSockets = new ArrayList<>();
-        this.newVotes = new ArrayList<>();
+        this.acceptedConnections = new ArrayList<>();
+        this.sentCounters = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
         coordThreadMonitor = new Object();
 //        serverThreadsMonitor = new Object();
-        listenerMonitor = new Object();
-        this.listenerLatch = new CountDownLatch(0);
+        roundMonitor = new Object();
+        this.roundsHeard = new ConcurrentHashMap<>();
+        this.crashedPeers = ConcurrentHashMap.newKeySet();
+        this.peerListeners = new ConcurrentHashMap<>();
+        this.groupOutcomes = new LinkedHashMap<>();
+        this.heartbeatInterval = Integer.getInteger("consensus.heartbeatInterval", Math.max(timeout / 5, 10));
+        this.flowWindow = FlowControlledConnection.windowFromSystemProperties();
+        this.failureDetector = FailureDetector.fromSystemProperties(timeout, heartbeatInterval);
+        this.deadlineEstimator = new RoundDeadlineEstimator(
+                Double.parseDouble(System.getProperty("consensus.deadlinePercentile", "99.0")),
+                Long.getLong("consensus.deadlineMargin", 20L));
 
         this.finalOutcome = "";
+        this.earlyVotes = new ArrayList<>();
         this.voteChoice = "";
         this.choiceMade = false;
         this.votingComplete = false;
         this.numConnected = 0;
+
+        //  all durations are recorded in microseconds
+        this.metrics = new MetricsRegistry();
+        this.roundDurations = metrics.histogram("participant_round_duration_us");
+        this.roundWaits = metrics.histogram("participant_round_wait_us");
+        this.parseTimes = metrics.histogram("participant_message_parse_us");
+        this.mergeTimes = metrics.histogram("participant_vote_merge_us");
+        this.backpressureWaits = metrics.histogram("participant_backpressure_wait_us");
+        this.suspectedCrashes = metrics.counter("participant_suspected_crashes_total");
+        this.tracer = TraceRecorder.fromSystemProperties('P', commsPort);
+        this.firstRound = 1;
+        this.faultBound = -1;
+        this.tallied = new BitSet();
+        this.staticMembership = Membership.fromSystemProperties();
+        try {
+            this.wal = WriteAheadLog.fromSystemProperties(commsPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.relaysVotes = Coordinator.relaysVotesFromSystemProperties();
+        if (relaysVotes && (staticMembership != null || wal != null))
+            throw new IllegalArgumentException("A star topology can't be combined with a static membership or a write-ahead log");
+    }
+
+    private static ParticipantLogger initLogger(int loggerPort, int commsPort, int timeout) {
         try {
             ParticipantLogger.initLogger(loggerPort,commsPort,timeout);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        logger = ParticipantLogger.getLogger();
+        return ParticipantLogger.getLogger();
+    }
+
+
+
+    public void addListener(ParticipantListener listener) {
+        listeners.add(listener);
     }
 
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
 
+    private void closeServer() throws IOException {
+        serverClosed = true;
+        participantServer.close();
+    }
 
     public void initParticipantServer() throws IOException{
-        participantServer = new ServerSocket(this.commsPort);
+        participantServer = transport.listen(this.commsPort);
         new Thread(() -> initServerLoop(participantServer)).start();
+        new Thread(this::heartbeatLoop).start();
         logger.startedListening();
     }
 
-    private void initServerLoop(ServerSocket participantServer) {
-        while (serverLoopCheck()) {
-            Socket participant = null;
+    /*
+     *  Sends a heartbeat to every connected participant until voting completes, so that their failure detectors
+     *  keep hearing from this participant between rounds. Heartbeats aren't logged, as they carry no votes. They go
+     *  out without our monitor, holding only each connection's, so a peer whose socket blocks on write stalls its own
+     *  heartbeats rather than our rounds and merges.
+     */
+    private void heartbeatLoop() {
+        String heartbeat = "HEARTBEAT " + this.commsPort;
+        while (!votingComplete) {
+            List<Connection> links;
+            synchronized (this) {
+                links = new ArrayList<>(this.acceptedConnections);
+            }
+            for (Connection connection : links) {
+                try {
+                    synchronized (connection) {
+                        if (connection instanceof FlowControlledConnection) {
+                            //  a link backed up with votes needs no heartbeats, which would only queue behind them
+                            if (!((FlowControlledConnection) connection).offerLine(heartbeat)) continue;
+                        } else {
+                            connection.sendLine(heartbeat);
+                        }
+                    }
+                    messageSent(connection, heartbeat);
+                } catch (IOException e) {
+                    //  the listener on the other end notices the broken connection
+                }
+            }
+            try {
+                Thread.sleep(heartbeatInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
 
+    /*
+     *  Accepts connections until the server is closed, rather than just the initial one from each peer, so that a
+     *  peer restarted after a crash can connect again, and a group leader can take its members' outcome reports.
+     */
+    private void initServerLoop(TransportServer participantServer) {
+        while (true) {
+            Connection participant;
             try {
                 participant = participantServer.accept();
-                logger.connectionAccepted(participant.getPort());
-                synchronized (this) {
-                    participantOutputs.add(new PrintWriter(new OutputStreamWriter(participant.getOutputStream())));
-                    acceptedSockets.add(participant);
-                }
+            } catch (IOException e) {
+                //  the server is closed once voting completes (and, for a group leader, its reports are in); any other
+                //  failure leaves peers unable to connect, so is reported
+                if (!serverClosed) e.printStackTrace();
+                return;
+            }
+            logger.connectionAccepted(participant.getRemotePort());
 
+            if (roundStartNanos != null) {
+                new Thread(() -> handleLateConnection(participant)).start();
+                continue;
+            }
+            Connection link;
+            try {
+                link = sendingEnd(participant, participant.getRemotePort());
             } catch (IOException e) {
                 e.printStackTrace();
+                continue;
             }
             synchronized (this) {
+                acceptedConnections.add(link);
                 numConnected++;
+                notifyAll();
             }
         }
+    }
+
+    /*
+     *  The end of an accepted connection that our votes go out on, flow-controlled when that's on, with its sent
+     *  counters fetched once and labelled by the given port: the peer's listening port when a REJOIN named it, and
+     *  otherwise the connection's remote port, as the logs name the recipient
+     */
+    private Connection sendingEnd(Connection connection, int peer) throws IOException {
+        Connection link = flowWindow > 0 ? new FlowControlledConnection(connection, flowWindow) : connection;
+        sentCounters.put(link, new SentCounters(peer));
+        return link;
+    }
+
+    /*
+     *  A connection accepted after voting started is normally a peer rejoining, which says so with a REJOIN. One that
+     *  says nothing is a peer that is merely slow to connect. Either way the peer is sent a snapshot of every vote we
+     *  know, so it catches up in one message rather than over the rounds it missed.
+     */
+    private void handleLateConnection(Connection connection) {
+        String line;
+        try {
+            connection.setReadTimeout(timeout);
+            line = connection.readLine();
+        } catch (SocketTimeoutException ste) {
+            line = "";
+        } catch (IOException e) {
+            line = null;
+        }
+
+        try {
+            if (line == null) {
+                connection.close();
+                return;
+            }
+            Message message = MsgParser.parseMessage(line);
+            if (message instanceof SummaryMessage) {
+                logger.messageReceived(connection.getRemotePort(), line);
+                groupReported((SummaryMessage) message);
+                connection.close();
+            } else if (message instanceof RejoinMessage) {
+                logger.messageReceived(connection.getRemotePort(), line);
+                peerRejoined((RejoinMessage) message, connection);
+            } else {
+                synchronized (this) {
+                    Connection link = sendingEnd(connection, connection.getRemotePort());
+                    sendSnapshot(link);
+                    acceptedConnections.add(link);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /*
+     *  Takes a peer back after its crash: we count its messages from the rounds it says it completed, and its snapshot
+     *  tells it how many we have sent.
+     */
+    private synchronized void peerRejoined(RejoinMessage rejoin, Connection connection) throws IOException {
+        int peer = rejoin.getSenderPort();
+        synchronized (roundMonitor) {
+            crashedPeers.remove(peer);
+            roundsHeard.put(peer, rejoin.getRounds());
+            roundMonitor.notifyAll();
+        }
+        //  under our monitor, so no broadcast can slip in between the snapshot and the connection joining the rest
+        Connection link = sendingEnd(connection, peer);
+        sendSnapshot(link);
+        acceptedConnections.add(link);
+        connectToPort(peer);
     }
 
-    private synchronized boolean serverLoopCheck() {
-        //  while the participant ports list hasn't been initialized or the number of connected clients is less than the size of the participant ports list - 1
-        if (participantPorts.size() == 0 || numConnected < participantPorts.size() - 1) return true;
-        else return false;
+    /*
+     *  Sends our whole vote state, along with how many round messages we have sent so the peer counts our next one
+     *  as the right round.
+     */
+    private synchronized void sendSnapshot(Connection connection) throws IOException {
+        sendMessage(connection, "SNAPSHOT " + roundsSent + " " + voteState.encodeSnapshot());
     }
 
-    private synchronized void setVoteOptions(OptionsMessage msg) {
-        this.voteOptions = msg.getOptions();
+    private void processSnapshot(SnapshotMessage snapshot) {
+        if (heldUntilVoteState(snapshot)) return;
+        BitSet learned = voteState.mergeSnapshot(snapshot.getKnown(), snapshot.getChoices());
+        if (wal != null) {
+            for (Vote vote : voteState.votesOf(learned)) wal.vote(vote.getParticipantPort(), vote.getVote());
+        }
+    }
+
+    private synchronized void setVoteOptions(List<String> options) {
+        this.voteOptions = options;
+        if (wal != null) wal.options(voteOptions);
         decideVoteChoice();
     }
 
@@ -126,7 +378,16 @@ public class Participant {
         Random random = new Random();
         int index = random.nextInt((this.voteOptions.size()));
         this.voteChoice = this.voteOptions.get(index);
-        this.votes.add(new Vote(this.commsPort, voteChoice));
+        this.voteState = new VoteState(new Membership(participantPorts, voteOptions));
+        this.voteState.merge(this.commsPort, voteChoice);
+        //  our own vote goes out in the first round by itself, so it isn't relayed again
+        this.voteState.drainFresh();
+        mergeEarlyVotes();
+        if (wal != null) {
+            //  our vote has to be durable before anyone hears it, or a restart could vote differently
+            wal.choice(voteChoice);
+            commitWal();
+        }
         this.choiceMade = true;
         this.notifyAll();
 
@@ -137,10 +398,17 @@ public class Participant {
      *  All participants should have initialized server sockets by now, so this initializes connections with the server
      *  sockets present at each thread.
      */
-    private synchronized void setParticipantDetails(DetailsMessage details) {
-        this.participantPorts = details.getPorts();
-        this.listenerLatch = new CountDownLatch(this.participantPorts.size() - 1);
-        connectToAllParticipants();
+    private synchronized void setParticipantDetails(List<Integer> ports, int faultBound) {
+        setPorts(ports, faultBound);
+        if (!relaysVotes) connectToAllParticipants();
+    }
+
+    private synchronized void setPorts(List<Integer> ports, int faultBound) {
+        this.participantPorts = ports;
+        this.faultBound = faultBound;
+        this.expectedConnections = relaysVotes ? 0 : participantPorts.size() - 1;
+        this.aggregation = AggregationTree.fromSystemProperties(ports.size());
+        if (wal != null) wal.details(participantPorts, faultBound);
     }
 
     private void connectToAllParticipants() {
@@ -150,64 +418,229 @@ public class Participant {
         });
     }
 
-    private synchronized void connectToPort(Integer portNum) {
+    private synchronized boolean connectToPort(Integer portNum) {
+        return connectToPort(portNum, null);
+    }
+
+    /*
+     *  @param greeting the first line to send, if any
+     *  @return whether the connection was made
+     */
+    private synchronized boolean connectToPort(Integer portNum, String greeting) {
         try {
-            Socket coordinatorSocket = new Socket("localhost", portNum);
-            logger.connectionEstablished(portNum);
-            new ListenerThread(coordinatorSocket).start();
+            openConnection(portNum, greeting);
+            return true;
         } catch (IOException e) {
-            e.printStackTrace();
+            //  nobody listening on the port any more, so the participant must have crashed since joining
+            peerCrashed(portNum);
+            return false;
         }
     }
 
+    //  Connects to a peer and starts listening to it
+    private void openConnection(Integer portNum, String greeting) throws IOException {
+        Connection participantConnection = transport.connect(portNum);
+        logger.connectionEstablished(portNum);
+        if (greeting != null) sendMessage(participantConnection, greeting);
+        new PeerListener(participantConnection).start();
+    }
+
     public void connectToCoordinator() throws IOException {
-        Socket coordinatorSocket = null;
+        connectToCoordinator(null);
+    }
+
+    /*
+     *  A participant that already has the details and options only needs the coordinator to report its outcome to, so
+     *  gives up twice the timeout after voting ends; the coordinator then counts as crashed, and the outcome goes
+     *  unreported. Without them, there is nothing to do but keep trying.
+     *
+     *  @param greeting the first line to send if this participant already has the details and options, else null
+     */
+    private void connectToCoordinator(String greeting) {
+        Connection coordinatorSocket = null;
         boolean connectedToCoord = false;
+        long deadline = Long.MAX_VALUE;
         while (!connectedToCoord) {
             try {
-                coordinatorSocket = new Socket("localhost", this.coordPort);
+                coordinatorSocket = transport.connect(this.coordPort);
                 connectedToCoord = true;
                 break;
             } catch (IOException ioe) {
-                continue;
+                if (greeting != null) {
+                    if (votingComplete && deadline == Long.MAX_VALUE)
+                        deadline = System.currentTimeMillis() + 2L * timeout;
+                    if (System.currentTimeMillis() >= deadline) {
+                        logger.participantCrashed(coordPort);
+                        return;
+                    }
+                }
+                //  not listening yet, so don't spin on the CPU the rest of the cluster is starting up on
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+
+        new CoordinatorCommsThread(coordinatorSocket, greeting).start();
+
+    }
+
+    /*
+     *  Starts from a static membership file instead of the coordinator's DETAILS and VOTE_OPTIONS, connecting straight
+     *  to the peers it lists. The coordinator only collects the outcome, so it is connected to in the background and
+     *  needn't even be up yet. Peers started at about the same time may not be listening yet either, so each is
+     *  retried for up to twice the timeout before it counts as crashed.
+     */
+    private void bootstrap() {
+        List<Integer> ports = staticMembership.getPorts();
+        logger.detailsReceived(ports);
+        listeners.forEach(l -> l.detailsReceived(ports));
+        setPorts(ports, staticMembership.getFaultBound());
+        logger.voteOptionsReceived(staticMembership.getOptions());
+        setVoteOptions(staticMembership.getOptions());
+
+        new Thread(() -> connectToCoordinator("JOIN " + commsPort)).start();
+
+        List<Integer> pending = new ArrayList<>(ports);
+        pending.remove((Integer) commsPort);
+        long deadline = System.currentTimeMillis() + 2L * timeout;
+        while (!pending.isEmpty()) {
+            for (Iterator<Integer> it = pending.iterator(); it.hasNext(); ) {
+                Integer port = it.next();
+                try {
+                    openConnection(port, null);
+                    it.remove();
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() < deadline) continue;
+                    peerCrashed(port);
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) break;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
             }
         }
+    }
 
-        new CoordinatorCommsThread(coordinatorSocket, this.listenerLatch).start();
+    /*
+     *  Restores the state of an unfinished run from the write-ahead log and takes it up again: the coordinator and
+     *  every peer still running are told this participant is back, and voting resumes after the last round completed.
+     *  Everything known is relayed again in the first round back, so peers learn any votes lost with the crash.
+     */
+    private void rejoin() {
+        synchronized (this) {
+            this.participantPorts = wal.getPorts();
+            this.faultBound = wal.getFaultBound();
+            this.voteOptions = wal.getOptions();
+            if (wal.getChoice() == null) {
+                decideVoteChoice();
+            } else {
+                this.voteChoice = wal.getChoice();
+                this.voteState = new VoteState(new Membership(participantPorts, voteOptions));
+                voteState.merge(commsPort, voteChoice);
+                wal.getVotes().forEach(voteState::merge);
+                mergeEarlyVotes();
+                this.choiceMade = true;
+            }
+            this.firstRound = wal.getRounds() + 1;
+            this.roundsSent = wal.getRounds();
+            notifyAll();
+        }
+
+        try {
+            new CoordinatorCommsThread(transport.connect(coordPort), "REJOIN " + commsPort + " " + wal.getRounds()).start();
+        } catch (IOException e) {
+            //  the coordinator has finished; the outcome is still decided, it just goes unreported
+        }
 
+        String rejoin = "REJOIN " + commsPort + " " + wal.getRounds();
+        int reconnected = 0;
+        for (Integer port : participantPorts) {
+            if (port != commsPort && connectToPort(port, rejoin)) reconnected++;
+        }
+        synchronized (this) {
+            this.expectedConnections = reconnected;
+        }
+    }
+
+    private void commitWal() {
+        try {
+            wal.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private List<Integer> getSavedVotePorts() {
-        List<Integer> savedVotePorts = new ArrayList<>();
-        for (Vote vote: this.votes) {
-            savedVotePorts.add(vote.getParticipantPort());
+        return voteState.portsOf(getSavedVoters());
+    }
+
+    /*
+     *  A peer that got VOTE_OPTIONS before us can already be voting, so its votes may arrive before our state exists.
+     *  They are kept until it does rather than waited on, since under a HostTransport the handler runs on the event
+     *  loop every hosted participant shares, which may be the one bringing our VOTE_OPTIONS.
+     *
+     *  @return whether the message was kept for later
+     */
+    private synchronized boolean heldUntilVoteState(Message votes) {
+        if (voteState != null) return false;
+        earlyVotes.add(votes);
+        return true;
+    }
+
+    //  Called under our monitor once voteState is created, so nothing more is held
+    private void mergeEarlyVotes() {
+        for (Message early : earlyVotes) {
+            if (early instanceof SnapshotMessage) processSnapshot((SnapshotMessage) early);
+            else processVoteMessage((VoteMessage) early);
         }
-        return savedVotePorts;
+        earlyVotes.clear();
     }
 
-    private List<Vote> fromVoteMessage(VoteMessage voteMessage) {
-        List<Vote> msgVotes = new ArrayList<>();
-        for (Map.Entry<Integer,String> vote: voteMessage.getVotes().entrySet()) {
-            msgVotes.add(new Vote(vote.getKey(),vote.getValue()));
+    //  Not synchronized: VoteState takes concurrent merges, so listeners merge their peers' votes in parallel
+    private void processVoteMessage(VoteMessage voteMsg) {
+        if (heldUntilVoteState(voteMsg)) return;
+
+        long start = System.nanoTime();
+        for (Map.Entry<Integer,String> vote: voteMsg.getVotes().entrySet()) {
+            if (voteState.merge(vote.getKey(), vote.getValue()) && wal != null)
+                wal.vote(vote.getKey(), vote.getValue());
         }
-        return msgVotes;
+        mergeTimes.record((System.nanoTime() - start) / 1000);
     }
 
-    private synchronized void processVoteMessage(VoteMessage voteMsg) {
-        List<Vote> receivedVotes = fromVoteMessage(voteMsg);
-        for (Vote vote: receivedVotes) {
-            if (!getSavedVotePorts().contains(vote.getParticipantPort())) {
-                newVotes.add(vote);
-                this.votes.add(vote);
-            }
+
+    //  Lines are sent under the connection's monitor, since heartbeats go out on the same connections without ours
+    private void sendMessage(Connection connection,String msg) throws IOException {
+        synchronized (connection) {
+            connection.sendLine(msg);
         }
+        logger.messageSent(connection.getRemotePort(),msg);
+        messageSent(connection, msg);
+    }
+
+    //  Sent messages are counted per link, under the port the logs name as the recipient
+    private void messageSent(Connection connection, String msg) {
+        SentCounters counters = sentCounters.get(connection);
+        //  a connection we opened, to a peer or the coordinator, is labelled by the listening port we dialled
+        if (counters == null) counters = sentCounters.computeIfAbsent(connection, c -> new SentCounters(c.getRemotePort()));
+        counters.messages.increment();
+        counters.bytes.add(msg.length() + 1);
     }
 
+    private class SentCounters {
+        final LongAdder messages;
+        final LongAdder bytes;
 
-    private void sendMessage(PrintWriter outWriter,String msg) {
-        outWriter.println(msg);
-        outWriter.flush();
-        logger.messageSent(acceptedSockets.get(participantOutputs.indexOf(outWriter)).getPort(),msg);
+        SentCounters(int peer) {
+            this.messages = metrics.counter("participant_messages_sent_total", "peer", peer);
+            this.bytes = metrics.counter("participant_bytes_sent_total", "peer", peer);
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -219,13 +652,21 @@ public class Participant {
         int partTimeout = Integer.parseInt(args[3]);
 
         Participant participant = new Participant(coordPort,loggerPort,partPort,partTimeout);
-        participant.initParticipantServer();
-        participant.connectToCoordinator();
+        MetricsExporter.start(participant.getMetrics(), partPort);
+        participant.run();
+    }
 
-        synchronized (participant) {
-            while (!participant.choiceMade) {
+    //  Runs this participant through one vote, returning once it has decided an outcome
+    public void run() throws IOException {
+        initParticipantServer();
+        if (wal != null && wal.canRecover()) rejoin();
+        else if (staticMembership != null) bootstrap();
+        else connectToCoordinator();
+
+        synchronized (this) {
+            while (!choiceMade) {
                 try {
-                    participant.wait();
+                    wait();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -233,18 +674,22 @@ public class Participant {
         }
 
         //  notified so voting begins
-        participant.startVoting();
+        startVoting();
+    }
+
+    //  Takes the votes learned since the last round, which are the ones to relay in the next
+    private List<Vote> drainNewVotes() {
+        return voteState.votesOf(voteState.drainFresh());
     }
 
-    private synchronized String generateVoteMessage() {
-        if (this.newVotes.size() == 0) return "";
+    private String generateVoteMessage(List<Vote> newVotes) {
+        if (newVotes.size() == 0) return "";
         else {
-            String msg = "VOTE";
+            StringBuilder msg = new StringBuilder("VOTE");
             for (Vote newVote: newVotes) {
-                msg += " " + newVote.getParticipantPort() + " " + newVote.getVote();
+                msg.append(' ').append(newVote.getParticipantPort()).append(' ').append(newVote.getVote());
             }
-            newVotes.clear();
-            return msg;
+            return msg.toString();
         }
     }
 
@@ -255,81 +700,333 @@ public class Participant {
          *  At the same time, receive the voting messages from the participantClientThreads
          *  (can notify the client threads of a new round to receive their input for that round and only that input)
          *  If number of received messages == no. other participants or timeout period reached finalize the received input
+         *
+         *  A participant recovered from its write-ahead log starts after the last round it completed, relaying
+         *  everything it knows in its first round back.
          */
-        synchronized (listenerMonitor) {
-            listenerMonitor.notifyAll();
+        if (relaysVotes) {
+            if (!awaitRelay()) {
+                abandonVoting();
+                return;
+            }
+            endRound(1);
+            decideFinalOutcome();
+            endVoting();
+            return;
         }
-        logger.beginRound(1);
 
+        awaitAllConnected();
+        this.roundStartNanos = new long[numRounds() + 1];
+
+        for (int round = firstRound; round <= numRounds(); round++) {
+            List<Vote> votesSent;
+            if (round == 1) {
+                votesSent = new ArrayList<>();
+                votesSent.add(new Vote(this.commsPort,this.voteChoice));
+            } else {
+                votesSent = drainNewVotes();
+            }
 
-        broadcastMessage("VOTE " + this.commsPort + " " + this.voteChoice);
+            roundStartNanos[round] = System.nanoTime();
+            logger.beginRound(round);
+            int startedRound = round;
+            listeners.forEach(l -> l.roundStarted(startedRound));
 
-        List<Vote> votesSent = new ArrayList<>();
-        votesSent.add(new Vote(this.commsPort,this.voteChoice));
-        for (Integer port: this.participantPorts) {
-            if (port != this.commsPort)
-                logger.votesSent(port, votesSent);
+            awaitLinks(timeout);
+            broadcastMessage(generateVoteMessage(votesSent), round);
+
+            for (Integer port: this.participantPorts) {
+                if (port != this.commsPort)
+                    logger.votesSent(port, votesSent);
+            }
+
+            //  All listener threads finished their round if await passed
+            awaitRound(round, round == 1 ? timeout : 2*timeout);
+            endRound(round);
         }
-        votesSent.clear();
 
+        decideFinalOutcome();
+        endVoting();
+        //  a member without a coordinator connection reports now, as nothing else will
+        if (!reportsToCoordinator() && !coordinatorConnected) reportAsMember(null);
+    }
+
+    /*
+     *  Waits for the CoordinatorCommsThread to hear the coordinator's relay of the votes, or to give up on it.
+     *
+     *  @return whether the relay was heard
+     */
+    private synchronized boolean awaitRelay() {
+        while (!votesRelayed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        return !relayLost;
+    }
 
+    //  Ends voting without an outcome, as deciding on our own vote alone could disagree with everyone else
+    private synchronized void abandonVoting() {
+        this.votingComplete = true;
+        synchronized (coordThreadMonitor) {
+            coordThreadMonitor.notifyAll();
+        }
         try {
-            this.listenerLatch.await(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
+            closeServer();
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    //  Replaces what we know with the coordinator's relay, which leaves out our own vote if it came after the deadline
+    private synchronized void relayReceived(SnapshotMessage relay) {
+        VoteState relayed = new VoteState(voteState.getMembership());
+        relayed.mergeSnapshot(relay.getKnown(), relay.getChoices());
+        this.voteState = relayed;
+    }
 
+    private synchronized int ownIndex() {
+        return participantPorts.indexOf(commsPort);
+    }
 
-        logger.endRound(1);
+    //  Whether this participant sends its outcome to the coordinator, rather than to its group leader
+    private synchronized boolean reportsToCoordinator() {
+        return aggregation == null || aggregation.isLeader(ownIndex());
+    }
 
+    /*
+     *  Reports a group member's outcome to its leader, or straight to the coordinator over the given connection when
+     *  the leader can't be reached, having crashed or stopped waiting for its group. Made once, by the
+     *  CoordinatorCommsThread when the coordinator is connected, and otherwise by the voting thread with no fallback.
+     */
+    private void reportAsMember(Connection coordinator) {
+        synchronized (this) {
+            if (memberReported) return;
+            memberReported = true;
+        }
+        if (!reportToLeader() && coordinator != null) {
+            String outcomeMsg = createFinalOutcomeMessage();
+            try {
+                coordinator.sendLine(tracer.tag(outcomeMsg, 0));
+                tracer.sent(coordPort, outcomeMsg, 0);
+                logger.outcomeNotified(finalOutcome, getSavedVotePorts());
+            } catch (IOException e) {
+                logger.participantCrashed(coordPort);
+            }
+        }
         try {
-            Thread.sleep(timeout*3/4);
-        } catch (InterruptedException e) {
+            tracer.dump();
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        votesSent = newVotes;
-        String voteMessage = generateVoteMessage();
-
-        //  remaining voting rounds
-        for (int i = 1; i < this.participantPorts.size(); i++) {
-            synchronized (listenerMonitor) {
-                listenerMonitor.notifyAll();
-            }
-            logger.beginRound(i+1);
+    /*
+     *  Sends a group member's outcome to its leader, as a summary of just itself, over a connection of its own.
+     *
+     *  @return whether the leader could be reached
+     */
+    private boolean reportToLeader() {
+        int leader = participantPorts.get(aggregation.leaderOf(ownIndex()));
+        BitSet self = new BitSet();
+        self.set(ownIndex());
+        String summary = SummaryMessage.encode(Collections.singletonMap(finalOutcome, self));
+        try {
+            Connection connection = transport.connect(leader);
+            sendMessage(connection, summary);
+            connection.close();
+            logger.outcomeNotified(finalOutcome, getSavedVotePorts());
+            return true;
+        } catch (IOException e) {
+            logger.participantCrashed(leader);
+            return false;
+        }
+    }
 
-            broadcastMessage(voteMessage);
+    private synchronized void groupReported(SummaryMessage summary) {
+        for (Map.Entry<String, BitSet> outcome : summary.getOutcomes().entrySet()) {
+            groupOutcomes.computeIfAbsent(outcome.getKey(), o -> new BitSet()).or(outcome.getValue());
+        }
+        notifyAll();
+    }
 
-            for (Integer port: this.participantPorts) {
-                if (port != this.commsPort)
-                    logger.votesSent(port, votesSent);
+    /*
+     *  As a group leader, waits until every member of the group has reported its outcome or crashed, or until twice
+     *  the timeout has passed, as long as a member's last round can take, and returns the summary to forward.
+     */
+    private synchronized String awaitGroupSummary() {
+        BitSet self = new BitSet();
+        self.set(ownIndex());
+        groupOutcomes.computeIfAbsent(finalOutcome, o -> new BitSet()).or(self);
+
+        BitSet group = aggregation.groupOf(ownIndex());
+        long deadline = System.currentTimeMillis() + 2L * timeout;
+        while (true) {
+            BitSet missing = (BitSet) group.clone();
+            for (BitSet reporters : groupOutcomes.values()) missing.andNot(reporters);
+            for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                if (crashedPeers.contains(participantPorts.get(i))) missing.clear(i);
             }
-            votesSent.clear();
-
+            long remaining = deadline - System.currentTimeMillis();
+            if (missing.isEmpty() || remaining <= 0) break;
             try {
-                this.listenerLatch.await(2*timeout, TimeUnit.MILLISECONDS);
+                wait(remaining);
             } catch (InterruptedException e) {
                 e.printStackTrace();
+                break;
             }
-            //  All listener threads finished their round if await passed
+        }
+        return SummaryMessage.encode(groupOutcomes);
+    }
+
+    private void endRound(int round) {
+        roundDurations.record((System.nanoTime() - roundStartNanos[round]) / 1000);
+        tracer.span(TraceRecorder.ROUND, round, roundStartNanos[round]);
+        logger.endRound(round);
+        listeners.forEach(l -> l.roundEnded(round));
+        if (!listeners.isEmpty()) tallyRound(round);
+        if (wal != null) {
+            wal.round(round);
+            commitWal();
+        }
+    }
 
-            logger.endRound(i+1);
+    private void tallyRound(int round) {
+        BitSet known = voteState.getKnown();
+        BitSet learned = (BitSet) known.clone();
+        learned.andNot(tallied);
+        tallied = known;
+        List<Vote> votes = voteState.votesOf(learned);
+        int[] tally = voteState.tally();
+        listeners.forEach(l -> l.roundTallied(round, votes, voteOptions, tally));
+    }
+
+    /*
+     *  Peers count our messages to tell rounds apart, so the first round must not start until every peer that is going
+     *  to connect has done so; otherwise a peer that connects late silently misses a round.
+     */
+    private synchronized void awaitAllConnected() {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (numConnected < expectedConnections) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return;
             try {
-                Thread.sleep(timeout*3/4);
+                wait(remaining);
             } catch (InterruptedException e) {
                 e.printStackTrace();
+                return;
             }
+        }
+    }
 
-            voteMessage = generateVoteMessage();
+    /*
+     *  Under flow control, holds a round's broadcast back while peers still owe credit for earlier rounds, for up to
+     *  the given time. No monitor is held meanwhile, so a slow peer slows our rounds down rather than stalling the
+     *  listeners and heartbeats along with them.
+     */
+    private void awaitLinks(long maxWaitMillis) {
+        if (flowWindow == 0) return;
+        List<Connection> links;
+        synchronized (this) {
+            links = new ArrayList<>(acceptedConnections);
         }
 
-        decideFinalOutcome();
-        endVoting();
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        boolean backedUp = false;
+        for (Connection link : links) {
+            FlowControlledConnection flow = (FlowControlledConnection) link;
+            if (!flow.isBackedUp()) continue;
+            backedUp = true;
+            flow.awaitDrained(Math.max(deadline - System.currentTimeMillis(), 0));
+        }
+        if (backedUp) backpressureWaits.record((System.nanoTime() - start) / 1000);
+    }
+
+    /*
+     *  Waits until every peer that hasn't crashed has delivered its message for the given round, or until the round
+     *  deadline passes. The deadline adapts to how late each pending peer's messages have been so far, and is never
+     *  longer than the fixed wait the timeout allows.
+     */
+    private void awaitRound(int round, long fixedWaitMillis) {
+        long waitMillis = deadlineEstimator.deadlineMillis(pendingPeers(round), fixedWaitMillis);
+        long deadline = roundStartNanos[round] + waitMillis * 1_000_000L;
+        long start = System.nanoTime();
+        synchronized (roundMonitor) {
+            while (!roundComplete(round)) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remaining <= 0) break;
+                try {
+                    roundMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        roundWaits.record((System.nanoTime() - start) / 1000);
+        tracer.span(TraceRecorder.ROUND_WAIT, round, start);
+    }
+
+    private boolean roundComplete(int round) {
+        return pendingPeers(round).isEmpty();
+    }
+
+    private List<Integer> pendingPeers(int round) {
+        List<Integer> pending = new ArrayList<>();
+        for (Integer port : this.participantPorts) {
+            if (port == this.commsPort || crashedPeers.contains(port)) continue;
+            if (roundsHeard.getOrDefault(port, 0) < round) pending.add(port);
+        }
+        return pending;
+    }
+
+    /*
+     *  Every participant sends exactly one message per round, including an empty line when it has no new votes. With at
+     *  most f crashes, f+1 rounds are enough for agreement: at least one of them sees no new crash, so by its end every
+     *  participant still running knows the same votes, and the rounds after it relay nothing new. Without a bound f
+     *  is all but one participant, which takes a round per participant.
+     */
+    private int numRounds() {
+        int rounds = this.participantPorts.size();
+        return faultBound < 0 ? rounds : Math.min(faultBound + 1, rounds);
+    }
+
+    private void roundMessageHeard(int peer) {
+        long arrival = System.nanoTime();
+        synchronized (roundMonitor) {
+            int round = roundsHeard.merge(peer, 1, Integer::sum);
+            //  a peer that is ahead of us has a message waiting when our round starts, which counts as no delay
+            long[] starts = this.roundStartNanos;
+            if (starts != null && round < starts.length && starts[round] != 0)
+                deadlineEstimator.recordArrival(peer, Math.max(arrival - starts[round], 0));
+            roundMonitor.notifyAll();
+        }
+    }
+
+    private void peerCaughtUp(int peer, int rounds) {
+        synchronized (roundMonitor) {
+            roundsHeard.merge(peer, rounds, Math::max);
+            roundMonitor.notifyAll();
+        }
+    }
+
+    private void peerCrashed(int peer) {
+        if (!crashedPeers.add(peer)) return;
+        suspectedCrashes.increment();
+        logger.participantCrashed(peer);
+        listeners.forEach(l -> l.participantCrashed(peer));
+        synchronized (roundMonitor) {
+            roundMonitor.notifyAll();
+        }
     }
 
     private String printAllVotes() {
         String votes = "";
-        for (Vote vote : this.votes) {
+        for (Vote vote : this.voteState.getVotes()) {
             votes += vote.toString();
         }
 
@@ -348,10 +1045,11 @@ public class Participant {
         }
 
         try {
-            this.participantServer.close();
+            //  a group leader keeps taking connections until its members have reported, and closes it then
+            if (aggregation == null || !reportsToCoordinator()) closeServer();
 
-            for (Socket socket : this.acceptedSockets) {
-                socket.close();
+            for (Connection connection : this.acceptedConnections) {
+                connection.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -359,40 +1057,28 @@ public class Participant {
     }
 
     private synchronized void decideFinalOutcome() {
-        Map<String,Integer> optionFreq = new HashMap<>();
-
-        for (String option: this.voteOptions) {
-            optionFreq.put(option,0);
-        }
-
-        for (Vote vote: this.votes) {
-            optionFreq.replace(vote.getVote(), (optionFreq.get(vote.getVote()) + 1));
-        }
-
-        int largestFreq = 0;
-
-        for (Integer i: optionFreq.values()) {
-            if (i > largestFreq) largestFreq = i;
-        }
-
-        List<String> winningOptions = new ArrayList<>();
-
-        for (String option: optionFreq.keySet()) {
-            if (optionFreq.get(option) == largestFreq) winningOptions.add(option);
+        //  votes can still be merged meanwhile, so the decision and its reports all go by one snapshot of them
+        this.finalVoters = voteState.getKnown();
+        this.finalOutcome = voteState.decide(finalVoters);
+        if (wal != null) {
+            wal.outcome(finalOutcome);
+            try {
+                wal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-
-        Collections.sort(winningOptions);
-
-        this.finalOutcome = winningOptions.get(0);
         logger.outcomeDecided(finalOutcome,this.getSavedVotePorts());
+        listeners.forEach(l -> l.outcomeDecided(finalOutcome, getSavedVotePorts()));
     }
 
-    private synchronized void broadcastMessage(String msg) {
-        List<PrintWriter> pwToRm = new ArrayList<>();
-
-        for (PrintWriter outWriter: this.participantOutputs) {
+    private synchronized void broadcastMessage(String msg, int round) {
+        roundsSent++;
+        String frame = tracer.tag(msg, round);
+        for (Connection connection: this.acceptedConnections) {
             try {
-                sendMessage(outWriter,msg);
+                sendMessage(connection,frame);
+                tracer.sent(connection.getRemotePort(), msg, round);
             } catch (Exception e) {
                 //  suppress
             }
@@ -401,132 +1087,280 @@ public class Participant {
     }
 
 
-    private class ListenerThread extends Thread {
-        Socket otherServer;
-        BufferedReader inpReader;
-        PrintWriter outWriter;
-
-        public ListenerThread(Socket participantSocket) throws IOException {
-            this.otherServer = participantSocket;
-            //  buffered reader for string input from coordinator
-            this.inpReader = new BufferedReader( new InputStreamReader( participantSocket.getInputStream() ) );
+    /*
+     *  Listens to one peer. Each non-heartbeat line is the peer's message for its next round; the peer is only declared
+     *  crashed once the failure detector suspects it, or the connection drops before all of its rounds have been heard.
+     *
+     *  Runs as a thread of its own blocking on the connection, unless the connection can deliver its lines to a
+     *  callback, in which case the transport's event loop drives it and no thread is needed.
+     */
+    private class PeerListener implements LineHandler, Runnable {
+        final Connection otherServer;
+        final int peer;
+        final LongAdder messagesReceived;
+        final LongAdder bytesReceived;
+        volatile boolean done;
+        //  Bytes consumed from the peer that it hasn't been given credit for yet
+        int unacknowledged;
+
+        public PeerListener(Connection participantConnection) throws IOException {
+            this.otherServer = participantConnection;
+            this.peer = otherServer.getRemotePort();
+            this.messagesReceived = metrics.counter("participant_messages_received_total", "peer", peer);
+            this.bytesReceived = metrics.counter("participant_bytes_received_total", "peer", peer);
+            //  reads time out regularly so the failure detector gets a say, rather than the timeout deciding alone
+            otherServer.setReadTimeout(heartbeatInterval);
+            peerListeners.put(peer, this);
+        }
 
-            //  print writer for string output to coordinator
-            this.outWriter = new PrintWriter( new OutputStreamWriter( participantSocket.getOutputStream() ) );
-            otherServer.setSoTimeout(timeout);
+        public void start() {
+            if (roundsHeard.getOrDefault(peer, 0) >= numRounds()) {
+                stop();
+                return;
+            }
+            failureDetector.heartbeat(peer, System.currentTimeMillis());
+            if (otherServer instanceof EventConnection) ((EventConnection) otherServer).listen(this);
+            else new Thread(this).start();
+        }
 
-            outWriter.flush();
+        //  A listener replaced by one for the peer's rejoined connection has no say in whether the peer crashed
+        private void connectionLost(int peer) {
+            if (!votingComplete && peerListeners.get(peer) == this) peerCrashed(peer);
         }
 
+        //  Reads continuously, so heartbeats are seen between rounds as well as during them
         @Override
         public void run() {
-            String recMsg = "";
-            try {
-                //  waits for voting to start
-                synchronized (listenerMonitor) {
-                    listenerMonitor.wait();
+            while (!done) {
+                String recMsg;
+                try {
+                    recMsg = otherServer.readLine();
+                } catch (SocketTimeoutException ste) {
+                    timedOut();
+                    continue;
+                } catch (IOException e) {
+                    closed();
+                    break;
                 }
 
-                while(!votingComplete) {
-                    //start timer here, which interrupts the bufferedreader
-                    //  will probably use the countdownlatch instead
-                    try {
-                        recMsg = inpReader.readLine();
-                    } catch (SocketTimeoutException ste) {
-                        logger.participantCrashed(otherServer.getPort());
-                        listenerLatch.countDown();
-                        otherServer.close();
-                        return;
-                    } catch (SocketException se) {
-                        logger.participantCrashed(otherServer.getPort());
-                        listenerLatch.countDown();
-                        otherServer.close();
-                        return;
-                    }
-
-                    if (recMsg != null && !recMsg.isEmpty()) {
-                        logger.messageReceived(otherServer.getPort(),recMsg);
-                        VoteMessage recVote = (VoteMessage) MsgParser.parseMessage(recMsg);
-                        processVoteMessage(recVote);
-                        logger.votesReceived(otherServer.getPort(), recVote.constructVoteList());
-                    }
+                if (recMsg == null) closed();
+                else lineReceived(recMsg);
+            }
+        }
 
-                    listenerLatch.countDown();
+        @Override
+        public void lineReceived(String recMsg) {
+            if (done) return;
+            process(recMsg);
+            consumed(recMsg.length() + 1);
+        }
 
-                    synchronized (listenerMonitor) {
-                        listenerMonitor.wait();
-                    }
+        private void process(String recMsg) {
+            failureDetector.heartbeat(peer, System.currentTimeMillis());
+            messagesReceived.increment();
+            bytesReceived.add(recMsg.length() + 1);
+
+            if (!recMsg.isEmpty()) {
+                long parseStart = System.nanoTime();
+                Message message = MsgParser.parseMessage(recMsg);
+                parseTimes.record((System.nanoTime() - parseStart) / 1000);
+                if (message instanceof HeartbeatMessage) return;
+                tracer.received(peer, message);
+
+                logger.messageReceived(peer,recMsg);
+                if (message instanceof SnapshotMessage) {
+                    //  we rejoined or connected late, and the rounds the peer already sent won't come again
+                    SnapshotMessage snapshot = (SnapshotMessage) message;
+                    processSnapshot(snapshot);
+                    peerCaughtUp(peer, snapshot.getRounds());
+                    if (roundsHeard.getOrDefault(peer, 0) >= numRounds()) stop();
+                    return;
                 }
+                VoteMessage recVote = (VoteMessage) message;
+                processVoteMessage(recVote);
+                logger.votesReceived(peer, recVote.constructVoteList());
+            }
 
-                otherServer.close();
+            roundMessageHeard(peer);
+            if (roundsHeard.getOrDefault(peer, 0) >= numRounds()) stop();
+        }
+
+        //  Under flow control, returns credit to the peer once half its window has been consumed
+        private void consumed(int bytes) {
+            if (flowWindow == 0) return;
+            unacknowledged += bytes;
+            if (unacknowledged >= flowWindow / 2) grantCredit();
+        }
 
+        private void grantCredit() {
+            if (done || unacknowledged == 0) return;
+            try {
+                otherServer.sendLine("CREDIT " + unacknowledged);
+                unacknowledged = 0;
+            } catch (IOException e) {
+                //  the connection is going, which the next read finds out
+            }
+        }
+
+        @Override
+        public void timedOut() {
+            if (done) return;
+            //  a peer holding back a line larger than the credit it has left waits for this
+            grantCredit();
+            if (!votingComplete && failureDetector.isAvailable(peer, System.currentTimeMillis())) return;
+            connectionLost(peer);
+            stop();
+        }
+
+        @Override
+        public void closed() {
+            if (done) return;
+            connectionLost(peer);
+            stop();
+        }
+
+        private void stop() {
+            done = true;
+            try {
+                otherServer.close();
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
             }
         }
     }
 
     private class CoordinatorCommsThread extends Thread {
-        Socket coordinatorSocket;
-        CountDownLatch listenerLatch;
-        BufferedReader inpReader;
-        PrintWriter outWriter;
+        Connection coordinatorSocket;
+        //  The first line to send when this participant already has the details and options, or null to JOIN and wait
+        //  for them
+        String greeting;
 
-        public CoordinatorCommsThread(Socket coordinatorSocket, CountDownLatch listenerLatch) throws IOException {
+        public CoordinatorCommsThread(Connection coordinatorSocket, String greeting) {
             this.coordinatorSocket = coordinatorSocket;
-            //  buffered reader for string input from coordinator
-            this.inpReader = new BufferedReader( new InputStreamReader( coordinatorSocket.getInputStream() ) );
-
-            //  print writer for string output to coordinator
-            this.outWriter = new PrintWriter( new OutputStreamWriter( coordinatorSocket.getOutputStream() ) );
-
-            this.listenerLatch = listenerLatch;
-
-            outWriter.flush();
+            this.greeting = greeting;
+            coordinatorConnected = true;
         }
  
         @Override
         public void run() {
-
-            outWriter.println("JOIN " + commsPort);
-            outWriter.flush();
-            logger.joinSent(coordPort);
-
             String recMsg = "";
 
-
             try {
-                recMsg = inpReader.readLine();
-                logger.messageReceived(coordinatorSocket.getPort(),recMsg);
+                if (greeting != null) {
+                    coordinatorSocket.sendLine(greeting);
+                    logger.messageSent(coordPort, greeting);
+                    reportOutcome();
+                    return;
+                }
+
+                coordinatorSocket.sendLine("JOIN " + commsPort);
+                logger.joinSent(coordPort);
+
+                recMsg = coordinatorSocket.readLine();
+                logger.messageReceived(coordinatorSocket.getRemotePort(),recMsg);
 
                 DetailsMessage detMsg = (DetailsMessage) MsgParser.parseMessage(recMsg);
+                if (detMsg.getTrace() != null)
+                    tracer.setRunId(detMsg.getTrace().getRunId());
+                tracer.received(coordPort, detMsg);
                 logger.detailsReceived(detMsg.getPorts());
+                listeners.forEach(l -> l.detailsReceived(detMsg.getPorts()));
 
-                setParticipantDetails(detMsg);
+                setParticipantDetails(detMsg.getPorts(), detMsg.getFaultBound());
 
-                recMsg = inpReader.readLine();
-                logger.messageReceived(coordinatorSocket.getPort(),recMsg);
+                recMsg = coordinatorSocket.readLine();
+                logger.messageReceived(coordinatorSocket.getRemotePort(),recMsg);
 
                 OptionsMessage optMsg = (OptionsMessage) MsgParser.parseMessage(recMsg);
+                tracer.received(coordPort, optMsg);
                 logger.voteOptionsReceived(optMsg.getOptions());
 
-                setVoteOptions(optMsg);
+                setVoteOptions(optMsg.getOptions());
+                if (relaysVotes && !relayVote()) {
+                    coordinatorSocket.close();
+                    return;
+                }
 
-                waitForVotingToEnd();
+                reportOutcome();
 
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
 
-                outWriter.println(createFinalOutcomeMessage());
-                outWriter.flush();
+        /*
+         *  Sends our vote to the coordinator and waits for its relay of the votes, which takes the place of the rounds
+         *  and so is logged as round 1. The coordinator relays twice the timeout after the options went out at the
+         *  latest, so we wait twice as long as that before the coordinator counts as crashed. Then no outcome is
+         *  decided, since the others may have had a relay without our vote in it.
+         *
+         *  @return whether the relay was heard
+         */
+        private boolean relayVote() {
+            boolean heard = false;
+            roundStartNanos = new long[2];
+            roundStartNanos[1] = System.nanoTime();
+            logger.beginRound(1);
+            listeners.forEach(l -> l.roundStarted(1));
+            try {
+                String vote = "VOTE " + commsPort + " " + voteChoice;
+                sendMessage(coordinatorSocket, tracer.tag(vote, 1));
+                tracer.sent(coordPort, vote, 1);
+                logger.votesSent(coordPort, Collections.singletonList(new Vote(commsPort, voteChoice)));
+
+                coordinatorSocket.setReadTimeout(4 * timeout);
+                String recMsg = coordinatorSocket.readLine();
+                if (recMsg != null) {
+                    logger.messageReceived(coordinatorSocket.getRemotePort(),recMsg);
+                    Message relay = MsgParser.parseMessage(recMsg);
+                    tracer.received(coordPort, relay);
+                    relayReceived((SnapshotMessage) relay);
+                    heard = true;
+                }
+            } catch (IOException ioe) {
+                //  timed out or lost, either way the coordinator is gone
+            } finally {
+                if (!heard) logger.participantCrashed(coordPort);
+                synchronized (Participant.this) {
+                    relayLost = !heard;
+                    votesRelayed = true;
+                    Participant.this.notifyAll();
+                }
+            }
+            return heard;
+        }
 
-                logger.outcomeNotified(finalOutcome, getSavedVotePorts());
+        private void reportOutcome() throws IOException {
+            waitForVotingToEnd();
 
+            //  a group member keeps its connection until it has reported, in case its leader is gone
+            if (!reportsToCoordinator()) {
+                reportAsMember(coordinatorSocket);
                 coordinatorSocket.close();
+                return;
+            }
 
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+            String outcomeMsg;
+            if (aggregation == null) {
+                outcomeMsg = createFinalOutcomeMessage();
+            } else {
+                outcomeMsg = awaitGroupSummary();
+                closeServer();
+            }
+            //  the connection is gone if this participant was crashed, or the coordinator was, while voting, and then
+            //  there is no one left to report to
+            try {
+                coordinatorSocket.sendLine(tracer.tag(outcomeMsg, 0));
+                tracer.sent(coordPort, outcomeMsg, 0);
+
+                logger.outcomeNotified(finalOutcome, getSavedVotePorts());
+            } catch (IOException e) {
+                logger.participantCrashed(coordPort);
             }
+
+            coordinatorSocket.close();
+            //  the OUTCOME is the last thing this participant does, so its trace is complete
+            tracer.dump();
         }
     }
 
@@ -534,13 +1368,21 @@ public class Participant {
         if (this.finalOutcome.isEmpty())
             throw new IllegalStateException("Shouldn't call this method until the final outcome is decided!");
 
-        String msg = "OUTCOME";
-        msg += " " + this.finalOutcome;
-        for (Vote vote : this.votes) {
-            msg += " " + vote.getParticipantPort();
+        StringBuilder msg = new StringBuilder("OUTCOME ").append(this.finalOutcome);
+        if (OutcomeMessage.sendsBitsets()) {
+            //  the voters as a set over the DETAILS order, rather than a port each
+            msg.append(" #").append(VoteState.encodeBits(getSavedVoters()));
+        } else {
+            for (Integer port : getSavedVotePorts()) {
+                msg.append(' ').append(port);
+            }
         }
 
-        return msg;
+        return msg.toString();
+    }
+
+    private BitSet getSavedVoters() {
+        return finalVoters;
     }
 
     private void waitForVotingToEnd() {
@@ -0,0 +1,53 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Runs many logical participants in one JVM, for packing a large cluster onto few machines. The participants share a
+ *  HostTransport, so connections among them are in-memory and driven by one event loop rather than a socket and a
+ *  listener thread each; only their connections to the coordinator are TCP. Each participant logs to its own
+ *  participant_<port>_<millis>.log, as it would in a process of its own.
+ *
+ *  Usage: ParticipantHost <coordPort> <loggerPort> <firstPort> <count> <timeout>
+ *
+ *  Hosts the participants numbered firstPort to firstPort + count - 1, which join the coordinator like any others.
+ *  Logging to a Logger process no longer holds up the event loop, but each participant sends its log messages on a
+ *  thread of its own, so large hosts are best run with a loggerPort of 0.
+ */
+public class ParticipantHost {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 5) throw new IllegalArgumentException("Can't have less than 5 args!");
+
+        int coordPort = Integer.parseInt(args[0]);
+        int loggerPort = Integer.parseInt(args[1]);
+        int firstPort = Integer.parseInt(args[2]);
+        int count = Integer.parseInt(args[3]);
+        int timeout = Integer.parseInt(args[4]);
+
+        Transport transport = new HostTransport(Transport.fromSystemProperties());
+        List<Thread> threads = new ArrayList<>();
+        List<PrintStream> logs = new ArrayList<>();
+        for (int port = firstPort; port < firstPort + count; port++) {
+            //  buffered, as hundreds of participants writing a line at a time would spend the event loop on syscalls
+            PrintStream log = new PrintStream(new BufferedOutputStream(
+                    new FileOutputStream("participant_" + port + "_" + System.currentTimeMillis() + ".log")));
+            logs.add(log);
+            Participant participant = new Participant(coordPort, loggerPort, port, timeout, transport,
+                    ParticipantLogger.createLogger(loggerPort, port, timeout, log));
+            threads.add(new Thread(() -> {
+                try {
+                    participant.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "participant-" + port));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        logs.forEach(PrintStream::close);
+    }
+}
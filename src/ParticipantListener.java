@@ -0,0 +1,30 @@
+import java.util.List;
+
+/*
+ *  Callbacks for tools that observe a Participant from inside its JVM, such as benchmarks. They run on the
+ *  participant's own threads, so implementations should return quickly and must be thread-safe.
+ */
+public interface ParticipantListener {
+
+    default void detailsReceived(List<Integer> participantPorts) {
+    }
+
+    default void roundStarted(int round) {
+    }
+
+    default void roundEnded(int round) {
+    }
+
+    /*
+     *  Called at the end of each round, after roundEnded, with the votes first known of in that round and how many
+     *  votes each option has so far, indexed like the options.
+     */
+    default void roundTallied(int round, List<Vote> learned, List<String> options, int[] tally) {
+    }
+
+    default void participantCrashed(int peer) {
+    }
+
+    default void outcomeDecided(String outcome, List<Integer> participantPorts) {
+    }
+}
@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
@@ -10,6 +11,13 @@ public class ParticipantLogger {
 	private final PrintStream ps;
 	private final UDPLoggerClient udpLoggerClient;
 	private final int thisParticipant;
+	private final BinaryLog binaryLog;
+	
+	/**
+	 * Whether lines written to the log file start with the wall-clock time in microseconds, which LogAnalyzer needs to
+	 * time rounds; enabled with -Dconsensus.log.timestamps=true. Lines sent to the Logger process are left as they are
+	 */
+	static final boolean TIMESTAMPS = Boolean.getBoolean("consensus.log.timestamps");
 	
 	/**
 	 * Initialises the Logger for this Participant
@@ -26,6 +34,18 @@ public class ParticipantLogger {
 			throw new RuntimeException("ParticipantLogger already initialised");
 	}
 	
+	/**
+	 * Creates a Logger for a Participant that shares its JVM with other processes, so it isn't registered as the singleton
+	 * 
+	 * @param loggerServerPort the UDP port where the Logger process is listening on
+	 * @param processId the ID of the Participant, i.e. the TCP port where it is listening on
+	 * @param timeout the timeout in milliseconds for the Participant
+	 * @param ps where the log lines are written
+	 */
+	public static ParticipantLogger createLogger(int loggerServerPort, int processId, int timeout, PrintStream ps) {
+		return new ParticipantLogger(loggerServerPort, processId, timeout, ps);
+	}
+	
 	/**
 	 * @return the singleton instance of the Logger for this Participant
 	 */
@@ -38,17 +58,39 @@ public class ParticipantLogger {
 	private ParticipantLogger(int loggerServerPort, int processId, int timeout) throws IOException {
 		thisParticipant = processId;
 		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
-		ps = new PrintStream("participant_" + thisParticipant + "_" + System.currentTimeMillis() + ".log");
+		String name = "participant_" + processId + "_" + System.currentTimeMillis();
+		if (BinaryLog.isEnabled()) {
+			ps = null;
+			binaryLog = new BinaryLog(new File(name + ".clog"), 'P', processId);
+		} else {
+			ps = new PrintStream(name + ".log");
+			binaryLog = null;
+		}
+	}
+	
+	private ParticipantLogger(int loggerServerPort, int processId, int timeout, PrintStream ps) {
+		thisParticipant = processId;
+		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
+		this.ps = ps;
+		this.binaryLog = null;
+	}
+	
+	/**
+	 * @return whether log lines have to be rendered as text, which they do unless logging in binary without a Logger process
+	 */
+	private boolean logsText() {
+		return binaryLog == null || udpLoggerClient.getLoggerServerPort() != 0;
 	}
 	
 	protected void logMessage(String message) {
-		ps.println(message);
+		if (ps != null)
+			ps.println(TIMESTAMPS ? TraceRecorder.nowMicros() + " " + message : message);
 		if (udpLoggerClient != null)
 			try {
 				udpLoggerClient.logToServer(message);
 			} catch (IOException e) {
-				ps.println("[P" + thisParticipant + "] Exception caught: " + e.getMessage());
-				ps.println("[P" + thisParticipant + "] Stack trace: " + e.getStackTrace());
+				(ps != null ? ps : System.err).println("[P" + thisParticipant + "] Exception caught: " + e.getMessage());
+				(ps != null ? ps : System.err).println("[P" + thisParticipant + "] Stack trace: " + e.getStackTrace());
 			}
 	}
 
@@ -58,7 +100,10 @@ public class ParticipantLogger {
 	 * @param coordinatorId the ID of the Coordinator, i.e. the port where the Coordinator is listening on
 	 */
 	public void joinSent(int coordinatorId) {
-		logMessage("[P" + thisParticipant + "] JOIN sent to Coordinator on port " + coordinatorId);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.JOIN_SENT, coordinatorId, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] JOIN sent to Coordinator on port " + coordinatorId);
 	}
 	
 	/**
@@ -67,7 +112,10 @@ public class ParticipantLogger {
 	 * @param participantIds the list of Participant IDs 
 	 */
 	public void detailsReceived(List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] received participant ports: " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writePorts(BinaryLog.DETAILS_RECEIVED, 0, null, participantIds);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] received participant ports: " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -76,7 +124,10 @@ public class ParticipantLogger {
 	 * @param votingOptions the list of voting options
 	 */
 	public void voteOptionsReceived(List<String> votingOptions) {
-		logMessage("[P" + thisParticipant + "] received vote options: " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writeStrings(BinaryLog.VOTE_OPTIONS_RECEIVED, 0, votingOptions);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] received vote options: " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -85,7 +136,10 @@ public class ParticipantLogger {
 	 * @param round the number of the new round, e.g. 1 for the first round, 2 for the second and so on
 	 */
 	public void beginRound(int round) {
-		logMessage("[P" + thisParticipant + "] begin round " + round);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.BEGIN_ROUND, round, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] begin round " + round);
 	}
 	
 	/**
@@ -94,7 +148,13 @@ public class ParticipantLogger {
 	 * @param round the number of the round, e.g. 1 for the first round, 2 for the second and so on
 	 */
 	public void endRound(int round) {
-		logMessage("[P" + thisParticipant + "] end round " + round);
+		if (binaryLog != null) {
+			binaryLog.write(BinaryLog.END_ROUND, round, 0);
+			//  so that a crash loses at most the round in progress
+			binaryLog.flush();
+		}
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] end round " + round);
 	}
 	
 	/**
@@ -104,7 +164,10 @@ public class ParticipantLogger {
 	 * @param votes the list of votes sent
 	 */
 	public void votesSent(int destinationParticipantId, List<Vote> votes) {
-		logMessage("[P" + thisParticipant + "] votes sent to " + destinationParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writeVotes(BinaryLog.VOTES_SENT, destinationParticipantId, votes);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] votes sent to " + destinationParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -114,7 +177,10 @@ public class ParticipantLogger {
 	 * @param votes the list of votes received
 	 */
 	public void votesReceived(int senderParticipantId, List<Vote> votes) {
-		logMessage("[P" + thisParticipant + "] votes received from " + senderParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (binaryLog != null)
+			binaryLog.writeVotes(BinaryLog.VOTES_RECEIVED, senderParticipantId, votes);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] votes received from " + senderParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
 	}
 	
 	/**
@@ -124,7 +190,10 @@ public class ParticipantLogger {
 	 * @param participantIds the list of IDs of Participants that were taken into account in settling the vote
 	 */
 	public void outcomeDecided(String vote, List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] outcome vote decided: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
+		if (binaryLog != null)
+			binaryLog.writePorts(BinaryLog.OUTCOME_DECIDED, 0, vote, participantIds);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] outcome vote decided: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
 	}
 	
 	/**
@@ -134,7 +203,10 @@ public class ParticipantLogger {
 	 * @param participantIds the list of IDs of Participants that were taken into account in settling the vote
 	 */
 	public void outcomeNotified(String vote, List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] outcome vote sent to Coordinator: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
+		if (binaryLog != null)
+			binaryLog.writePorts(BinaryLog.OUTCOME_NOTIFIED, 0, vote, participantIds);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] outcome vote sent to Coordinator: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
 	}
 	
 	/**
@@ -144,14 +216,20 @@ public class ParticipantLogger {
 	 * @param crashedParticipantId the ID of the crashed Participant, i.e. the port where the crashed Participant was listening on
 	 */
 	public void participantCrashed(int crashedParticipantId) {
-		logMessage("[P" + thisParticipant + "] participant crashed: " + crashedParticipantId);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.PARTICIPANT_CRASHED, crashedParticipantId, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] participant crashed: " + crashedParticipantId);
 	}
 	
 	/**
 	 * To be invoked when this Participant starts listening for incoming TCP connections
 	 */
 	public void startedListening() {
-		logMessage("[P" + thisParticipant + "] started listening on port " + thisParticipant);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.STARTED_LISTENING, thisParticipant, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] started listening on port " + thisParticipant);
 	}
 	
 	/**
@@ -160,7 +238,10 @@ public class ParticipantLogger {
 	 * @param otherPort the remote port number to which this socket is connected; note that this is different from the ID of the other Participant
 	 */
 	public void connectionAccepted(int otherPort) {
-		logMessage("[P" + thisParticipant + "] accepted connection from port " + otherPort);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.CONNECTION_ACCEPTED, otherPort, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] accepted connection from port " + otherPort);
 	}
 	
 	/**
@@ -169,7 +250,10 @@ public class ParticipantLogger {
 	 * @param otherPort the TCP port where the other process is listening on
 	 */
 	public void connectionEstablished(int otherPort) {
-		logMessage("[P" + thisParticipant + "] connection established to port " + otherPort);
+		if (binaryLog != null)
+			binaryLog.write(BinaryLog.CONNECTION_ESTABLISHED, otherPort, 0);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] connection established to port " + otherPort);
 	}
 	
 	/**
@@ -179,7 +263,10 @@ public class ParticipantLogger {
 	 * @param message the message sent
 	 */
 	public void messageSent(int destinationPort, String message) {
-		logMessage("[P" + thisParticipant + "] message sent to " + destinationPort + ": \"" + message + "\"");
+		if (binaryLog != null)
+			binaryLog.writeMessage(BinaryLog.MESSAGE_SENT, destinationPort, message);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] message sent to " + destinationPort + ": \"" + message + "\"");
 	}
 	
 	/**
@@ -189,6 +276,9 @@ public class ParticipantLogger {
 	 * @param message the received message
 	 */
 	public void messageReceived(int senderPort, String message) {
-		logMessage("[P" + thisParticipant + "] message received from " + senderPort + ": \"" + message + "\"");
+		if (binaryLog != null)
+			binaryLog.writeMessage(BinaryLog.MESSAGE_RECEIVED, senderPort, message);
+		if (logsText())
+			logMessage("[P" + thisParticipant + "] message received from " + senderPort + ": \"" + message + "\"");
 	}
 }
@@ -0,0 +1,111 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *  Phi-accrual failure detector (Hayashibara et al.).  Instead of a fixed timeout, it keeps a sliding window of the
+ *  inter-arrival times seen from each peer and reports phi = -log10(P(a message arrives later than now)), assuming
+ *  the intervals are normally distributed.  A peer is suspected once phi exceeds the threshold, so a peer on a loaded
+ *  host that is consistently a bit late is tolerated, while one that stops sending is caught quickly.
+ */
+public class PhiAccrualFailureDetector implements FailureDetector {
+    private final double threshold;
+    private final int maxSampleSize;
+    private final double minStdDeviation;
+    private final long acceptablePause;
+    private final long firstHeartbeatEstimate;
+    private final Map<Integer, HeartbeatHistory> histories;
+
+    /*
+     *  @param threshold phi value above which a peer is suspected; 8 means roughly a 1 in 10^8 chance of a mistake
+     *  @param maxSampleSize how many inter-arrival times are kept per peer
+     *  @param minStdDeviation lower bound on the standard deviation, so perfectly regular peers aren't suspected on
+     *                         the first bit of jitter
+     *  @param acceptablePause extra milliseconds added to the mean, to ride out GC pauses and similar stalls
+     *  @param firstHeartbeatEstimate expected interval in milliseconds, used to seed the window of a new peer
+     */
+    public PhiAccrualFailureDetector(double threshold, int maxSampleSize, double minStdDeviation,
+                                     long acceptablePause, long firstHeartbeatEstimate) {
+        if (threshold <= 0) throw new IllegalArgumentException("Phi threshold must be positive");
+        if (maxSampleSize <= 0) throw new IllegalArgumentException("Sample size must be positive");
+        this.threshold = threshold;
+        this.maxSampleSize = maxSampleSize;
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+        this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+        this.histories = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void heartbeat(int peer, long nowMillis) {
+        HeartbeatHistory history = histories.computeIfAbsent(peer, p -> new HeartbeatHistory());
+        synchronized (history) {
+            if (history.lastArrival < 0) {
+                //  seed the window so the first few intervals aren't judged against an empty distribution
+                long stdDeviation = firstHeartbeatEstimate / 4;
+                history.add(firstHeartbeatEstimate - stdDeviation);
+                history.add(firstHeartbeatEstimate + stdDeviation);
+            } else {
+                history.add(nowMillis - history.lastArrival);
+            }
+            history.lastArrival = nowMillis;
+        }
+    }
+
+    @Override
+    public boolean isAvailable(int peer, long nowMillis) {
+        return phi(peer, nowMillis) < threshold;
+    }
+
+    public double phi(int peer, long nowMillis) {
+        HeartbeatHistory history = histories.get(peer);
+        if (history == null) return 0.0;
+
+        synchronized (history) {
+            if (history.lastArrival < 0) return 0.0;
+            double elapsed = nowMillis - history.lastArrival;
+            double mean = history.mean() + acceptablePause;
+            double stdDeviation = Math.max(history.stdDeviation(), minStdDeviation);
+            return phi(elapsed, mean, stdDeviation);
+        }
+    }
+
+    //  Logistic approximation of the normal CDF, as used by Akka and Cassandra; accurate to within 0.01%
+    private static double phi(double elapsed, double mean, double stdDeviation) {
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) return -Math.log10(e / (1.0 + e));
+        else return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private class HeartbeatHistory {
+        final long[] intervals = new long[maxSampleSize];
+        int size = 0;
+        int next = 0;
+        long sum = 0;
+        long squaredSum = 0;
+        long lastArrival = -1;
+
+        void add(long interval) {
+            if (size == intervals.length) {
+                long dropped = intervals[next];
+                sum -= dropped;
+                squaredSum -= dropped * dropped;
+            } else {
+                size++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            squaredSum += interval * interval;
+        }
+
+        double mean() {
+            return (double) sum / size;
+        }
+
+        double stdDeviation() {
+            double mean = mean();
+            return Math.sqrt(Math.max((double) squaredSum / size - mean * mean, 0.0));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *  Picks how long a participant waits for a round, from how late each peer's round messages have arrived so far.
+ *  For every peer it keeps a histogram of arrival offsets, i.e. the time between this participant starting a round
+ *  and that peer's message for the round arriving. The deadline is the highest configured percentile across the
+ *  peers still being waited on, plus a safety margin, capped by the fixed deadline the command-line timeout gives.
+ *  A peer with no history yet falls back to the fixed deadline.
+ */
+public class RoundDeadlineEstimator {
+    private final double percentile;
+    private final long marginMicros;
+    private final Map<Integer, LatencyHistogram> arrivalOffsets;
+
+    /*
+     *  @param percentile the arrival-offset percentile to wait for, between 0 and 100
+     *  @param marginMillis added to the percentile, to absorb jitter the history hasn't seen yet
+     */
+    public RoundDeadlineEstimator(double percentile, long marginMillis) {
+        this.percentile = percentile;
+        this.marginMicros = marginMillis * 1000;
+        this.arrivalOffsets = new ConcurrentHashMap<>();
+    }
+
+    //  Records that the given peer's message arrived offsetNanos after this participant started the round
+    public void recordArrival(int peer, long offsetNanos) {
+        arrivalOffsets.computeIfAbsent(peer, p -> new LatencyHistogram()).record(offsetNanos / 1000);
+    }
+
+    /*
+     *  @param peers the peers whose messages are still expected this round
+     *  @param fixedDeadlineMillis the deadline used before any history exists, and the upper bound afterwards
+     *  @return how many milliseconds to wait for the round
+     */
+    public long deadlineMillis(Collection<Integer> peers, long fixedDeadlineMillis) {
+        long deadlineMicros = 0;
+        for (Integer peer : peers) {
+            LatencyHistogram offsets = arrivalOffsets.get(peer);
+            if (offsets == null || offsets.count() == 0) return fixedDeadlineMillis;
+            deadlineMicros = Math.max(deadlineMicros, offsets.valueAtPercentile(percentile));
+        }
+
+        long adaptiveMillis = (deadlineMicros + marginMicros + 999) / 1000;
+        return Math.min(adaptiveMillis, fixedDeadlineMillis);
+    }
+
+    public LatencyHistogram arrivalOffsets(int peer) {
+        return arrivalOffsets.get(peer);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.Collections;
+import java.util.List;
+
+/*
+ *  What one node knows of a vote at the end of a round: the votes it learned in that round and the option leading its
+ *  tally, with ties broken as the decision breaks them. The last event of a vote is the decision itself, after which
+ *  the leader is the outcome and the voters are every vote it was decided from.
+ */
+public class RoundEvent {
+    public enum Kind { ROUND, DECIDED }
+
+    private final Kind kind;
+    private final String ballot;
+    private final int round;
+    private final List<Vote> learned;
+    private final String leader;
+    private final int leaderVotes;
+    private final int knownVotes;
+    private final int leaderRounds;
+    private final List<Integer> voters;
+
+    /*
+     *  @param ballot the vote's ballot id on a ConsensusNode, or null for a participant's single vote
+     *  @param leaderRounds how many rounds in a row, this one included, the leader has led
+     *  @param voters for a decision, the ports of every vote it was decided from; otherwise empty
+     */
+    public RoundEvent(Kind kind, String ballot, int round, List<Vote> learned, String leader, int leaderVotes,
+                      int knownVotes, int leaderRounds, List<Integer> voters) {
+        this.kind = kind;
+        this.ballot = ballot;
+        this.round = round;
+        this.learned = Collections.unmodifiableList(learned);
+        this.leader = leader;
+        this.leaderVotes = leaderVotes;
+        this.knownVotes = knownVotes;
+        this.leaderRounds = leaderRounds;
+        this.voters = Collections.unmodifiableList(voters);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isFinal() {
+        return kind == Kind.DECIDED;
+    }
+
+    public String getBallot() {
+        return ballot;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public List<Vote> getLearned() {
+        return learned;
+    }
+
+    public String getLeader() {
+        return leader;
+    }
+
+    public int getLeaderVotes() {
+        return leaderVotes;
+    }
+
+    public int getKnownVotes() {
+        return knownVotes;
+    }
+
+    public int getLeaderRounds() {
+        return leaderRounds;
+    }
+
+    public List<Integer> getVoters() {
+        return voters;
+    }
+
+    @Override
+    public String toString() {
+        return (ballot == null ? "" : ballot + " ") + kind + " round " + round + ": " + leader + " leads with "
+                + leaderVotes + "/" + knownVotes + " for " + leaderRounds + " rounds, learned " + learned;
+    }
+}
@@ -0,0 +1,256 @@
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *  Publishes a node's RoundEvents as they happen, so that downstream systems can act on a leader that has held for a
+ *  few rounds instead of waiting for the decision. A participant's events come from adding the publisher as one of
+ *  its listeners, and a ConsensusNode has a publisher of its own, whose stream carries every vote's events.
+ *
+ *  Each subscriber gets a buffer of bufferCapacity events and receives them on the executor as it requests them, so
+ *  a slow subscriber never holds up the rounds. When its buffer is full, the oldest event of a round is dropped to
+ *  make room, as a later one supersedes it; only when the buffer holds nothing but decisions is a decision dropped.
+ *  Drops are counted in getDropped(). Every subscriber is called on the same executor, so subscribers that block need
+ *  an executor with threads to spare. The stream completes once the publisher is closed, which for a participant is
+ *  after its decision.
+ */
+public class RoundEventPublisher implements EventFlow.Publisher<RoundEvent>, ParticipantListener {
+    public static final int DEFAULT_BUFFER_CAPACITY = 256;
+
+    private final Executor executor;
+    private final int bufferCapacity;
+    private final List<RoundSubscription> subscriptions;
+    //  The leader of each vote under way, and how many rounds it has led, keyed by ballot (null for a participant's)
+    private final Map<String, Leader> leaders;
+    private final LongAdder dropped;
+    private boolean closed;
+
+    public RoundEventPublisher() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BUFFER_CAPACITY);
+    }
+
+    public RoundEventPublisher(Executor executor, int bufferCapacity) {
+        if (bufferCapacity < 1) throw new IllegalArgumentException("A subscriber's buffer must hold at least one event");
+        this.executor = executor;
+        this.bufferCapacity = bufferCapacity;
+        this.subscriptions = new ArrayList<>();
+        this.leaders = new HashMap<>();
+        this.dropped = new LongAdder();
+    }
+
+    private static class Leader {
+        String option;
+        int votes;
+        int rounds;
+        int round;
+    }
+
+    @Override
+    public void subscribe(EventFlow.Subscriber<? super RoundEvent> subscriber) {
+        RoundSubscription subscription = new RoundSubscription(subscriber);
+        boolean complete;
+        synchronized (this) {
+            complete = closed;
+            if (!complete) subscriptions.add(subscription);
+        }
+        subscriber.onSubscribe(subscription);
+        if (complete) subscription.complete();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /*
+     *  Publishes the end of a round.
+     *
+     *  @param tally the votes known for each option, indexed like the options
+     *  @param options the vote's options
+     */
+    public void roundTallied(String ballot, int round, List<Vote> learned, List<String> options, int[] tally) {
+        int winner = -1;
+        int known = 0;
+        for (int option = 0; option < tally.length; option++) {
+            known += tally[option];
+            //  the decision's rule, so the leader is what would be decided now
+            if (winner < 0 || tally[option] > tally[winner]
+                    || (tally[option] == tally[winner] && options.get(option).compareTo(options.get(winner)) < 0))
+                winner = option;
+        }
+        String option = winner < 0 ? null : options.get(winner);
+
+        RoundEvent event;
+        synchronized (this) {
+            Leader leader = leaders.computeIfAbsent(ballot, b -> new Leader());
+            leader.rounds = Objects.equals(leader.option, option) ? leader.rounds + 1 : 1;
+            leader.option = option;
+            leader.votes = winner < 0 ? 0 : tally[winner];
+            leader.round = round;
+            event = new RoundEvent(RoundEvent.Kind.ROUND, ballot, round, learned, option, leader.votes, known,
+                    leader.rounds, Collections.emptyList());
+        }
+        submit(event);
+    }
+
+    //  Publishes a vote's decision, which is the last of its events
+    public void decided(String ballot, String outcome, List<Integer> voters) {
+        RoundEvent event;
+        synchronized (this) {
+            Leader leader = leaders.remove(ballot);
+            if (leader == null) leader = new Leader();
+            boolean held = outcome.equals(leader.option);
+            event = new RoundEvent(RoundEvent.Kind.DECIDED, ballot, leader.round, Collections.emptyList(), outcome,
+                    held ? leader.votes : 0, voters.size(), held ? leader.rounds : 0, voters);
+        }
+        submit(event);
+    }
+
+    //  Participants call back through the ParticipantListener methods, and have a single vote each
+    @Override
+    public void roundTallied(int round, List<Vote> learned, List<String> options, int[] tally) {
+        roundTallied(null, round, learned, options, tally);
+    }
+
+    @Override
+    public void outcomeDecided(String outcome, List<Integer> participantPorts) {
+        decided(null, outcome, participantPorts);
+        close();
+    }
+
+    private void submit(RoundEvent event) {
+        List<RoundSubscription> current;
+        synchronized (this) {
+            if (closed) return;
+            current = new ArrayList<>(subscriptions);
+        }
+        for (RoundSubscription subscription : current) subscription.offer(event);
+    }
+
+    //  Completes every subscriber's stream once it has received the events already buffered for it
+    public void close() {
+        List<RoundSubscription> current;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            current = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+        }
+        for (RoundSubscription subscription : current) subscription.complete();
+    }
+
+    private synchronized void remove(RoundSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /*
+     *  One subscriber's buffer and demand. Events are delivered by one drain task at a time on the executor, so the
+     *  subscriber's methods are never called concurrently.
+     */
+    private class RoundSubscription implements EventFlow.Subscription {
+        final EventFlow.Subscriber<? super RoundEvent> subscriber;
+        final ArrayDeque<RoundEvent> buffer;
+        long demand;
+        boolean completing;
+        boolean cancelled;
+        boolean draining;
+
+        RoundSubscription(EventFlow.Subscriber<? super RoundEvent> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ArrayDeque<>();
+        }
+
+        void offer(RoundEvent event) {
+            synchronized (this) {
+                if (cancelled || completing) return;
+                if (buffer.size() == bufferCapacity) dropOne();
+                buffer.add(event);
+            }
+            schedule();
+        }
+
+        //  The oldest round event goes first, as the events after it supersede it
+        private void dropOne() {
+            for (Iterator<RoundEvent> it = buffer.iterator(); it.hasNext(); ) {
+                if (!it.next().isFinal()) {
+                    it.remove();
+                    dropped.increment();
+                    return;
+                }
+            }
+            buffer.poll();
+            dropped.increment();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completing = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                executor.execute(() -> subscriber.onError(new IllegalArgumentException("Requested " + n + " events")));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+            }
+            remove(this);
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (draining || cancelled) return;
+                boolean deliverable = demand > 0 && !buffer.isEmpty();
+                if (!deliverable && !(completing && buffer.isEmpty())) return;
+                draining = true;
+            }
+            executor.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                RoundEvent event;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (buffer.isEmpty() && completing) {
+                        cancelled = true;
+                        draining = false;
+                        break;
+                    }
+                    if (buffer.isEmpty() || demand == 0) {
+                        draining = false;
+                        return;
+                    }
+                    event = buffer.poll();
+                    demand--;
+                }
+                try {
+                    subscriber.onNext(event);
+                } catch (Throwable t) {
+                    //  a subscriber that throws is done with, as if it had cancelled
+                    cancel();
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+            subscriber.onComplete();
+        }
+    }
+}
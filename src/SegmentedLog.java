@@ -0,0 +1,124 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ *  Append-only log made of memory-mapped segment files. Each segment is preallocated to a fixed size and mapped once,
+ *  so appending an entry is a copy into memory rather than a write call; when an entry doesn't fit, the segment is
+ *  trimmed to what was used and a new one is started.
+ *
+ *  Segments are named <name>.<n>.log and hold one "<processId> <sequence> <millis> <message>" line per entry. Next to
+ *  each is <name>.<n>.idx, an index of fixed INDEX_ENTRY_SIZE entries (process id, sequence, offset into the
+ *  segment), so one process's entries can be read without scanning the logs.
+ *
+ *  Usage: SegmentedLog <name> <processId>, which prints the entries of one process from the segments of <name>
+ */
+public class SegmentedLog implements Closeable {
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    private final String name;
+    private final int segmentSize;
+    private int segmentNumber;
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+
+    /*
+     *  @param name the path that segment file names start with
+     *  @param segmentSize bytes preallocated for each segment
+     */
+    public SegmentedLog(String name, int segmentSize) throws IOException {
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.segmentNumber = -1;
+        roll();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) throw new IllegalArgumentException("Can't have less than 2 args!");
+
+        for (String entry : read(args[0], Integer.parseInt(args[1]))) {
+            System.out.println(entry);
+        }
+    }
+
+    public synchronized void append(int processId, int sequence, String message) throws IOException {
+        byte[] entry = (processId + " " + sequence + " " + System.currentTimeMillis() + " " + message + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        if (entry.length > segmentSize) throw new IOException("Log entry larger than a segment");
+
+        if (log.remaining() < entry.length || index.remaining() < INDEX_ENTRY_SIZE) roll();
+
+        index.putInt(processId).putInt(sequence).putLong(log.position());
+        log.put(entry);
+    }
+
+    //  Trims the current segment and its index to their used length and maps a fresh pair
+    private void roll() throws IOException {
+        closeSegment();
+
+        segmentNumber++;
+        logChannel = FileChannel.open(segmentFile(name, segmentNumber, ".log").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexChannel = FileChannel.open(segmentFile(name, segmentNumber, ".idx").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        //  mapping past the end of the file grows it to the full size up front
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        //  every entry line is longer than its index entry, so an index as large as the segment can't fill up first
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    private void closeSegment() throws IOException {
+        if (logChannel == null) return;
+        log.force();
+        index.force();
+        logChannel.truncate(log.position());
+        indexChannel.truncate(index.position());
+        logChannel.close();
+        indexChannel.close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+        logChannel = null;
+    }
+
+    private static File segmentFile(String name, int segmentNumber, String extension) {
+        return new File(name + "." + segmentNumber + extension);
+    }
+
+    //  Looks up every entry of the given process through the segment indexes, oldest first
+    public static List<String> read(String name, int processId) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (int segment = 0; segmentFile(name, segment, ".idx").exists(); segment++) {
+            try (FileChannel indexChannel = FileChannel.open(segmentFile(name, segment, ".idx").toPath(), StandardOpenOption.READ);
+                 FileChannel logChannel = FileChannel.open(segmentFile(name, segment, ".log").toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                MappedByteBuffer log = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logChannel.size());
+
+                while (index.remaining() >= INDEX_ENTRY_SIZE) {
+                    int entryProcess = index.getInt();
+                    index.getInt();
+                    int offset = (int) index.getLong();
+                    //  an index preallocated by a server that didn't get to trim it ends in zeroed entries
+                    if (entryProcess == 0) break;
+                    if (entryProcess == processId) entries.add(readLine(log, offset));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static String readLine(MappedByteBuffer log, int offset) {
+        int end = offset;
+        while (end < log.limit() && log.get(end) != '\n') end++;
+        byte[] line = new byte[end - offset];
+        for (int i = 0; i < line.length; i++) line[i] = log.get(offset + i);
+        return new String(line, StandardCharsets.UTF_8);
+    }
+}
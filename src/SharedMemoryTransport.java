@@ -0,0 +1,442 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ *  Carries lines between processes on the same machine through memory-mapped files, one single-producer,
+ *  single-consumer ring buffer per direction, so a message costs a copy into shared memory instead of a trip through
+ *  the loopback TCP stack.
+ *
+ *  Connections are still set up over loopback TCP. The connecting side creates a file holding both rings under the
+ *  ring directory and names it in a first "SHM <path>" line; the accepting side maps the file, deletes it and answers
+ *  "SHM", and from then on only the rings carry lines. A connecting side that can't create the file says "TCP" instead,
+ *  and an accepting side answers "TCP" to a path that isn't one of its own ring files, consensus_<port>_*.ring in the
+ *  ring directory, or that it can't map; either way the connection carries its lines over the socket as usual, so
+ *  processes whose rings can't be mapped still reach each other, and a peer can't have any other file mapped or deleted.
+ *
+ *  The socket stays open as a doorbell. A reader spins briefly on an empty ring, then flags itself asleep and blocks
+ *  reading the socket, and a writer that sees the flag after publishing sends it a byte. A process that dies has its
+ *  socket closed by the kernel, so its peers still read end-of-stream, or fail to write, as they would with TCP.
+ *
+ *  Enabled with -Dconsensus.transport=shm; -Dconsensus.shm.dir (default /dev/shm) is where the rings are created and
+ *  -Dconsensus.shm.ringSize (default 1MB) is the size of each ring.
+ */
+public class SharedMemoryTransport implements Transport {
+    //  Layout of a ring file: a header holding the ring size, then two rings, each a header and its data
+    private static final int FILE_HEADER = 64;
+    private static final int RING_HEADER = 128;
+    //  Offsets in a ring's header, with the fields each side writes on a cache line of their own
+    private static final int HEAD = 0;
+    private static final int READER_ASLEEP = 8;
+    private static final int READER_CLOSED = 16;
+    private static final int TAIL = 64;
+    private static final int WRITER_CLOSED = 72;
+
+    //  Spinning only pays when the writer has a processor of its own to publish from meanwhile
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    private static final int FULL_RING_PROBE_MILLIS = 10;
+
+    private final File dir;
+    private final int ringSize;
+
+    /*
+     *  @param dir where ring files are created, ideally on a memory-backed file system
+     *  @param ringSize bytes in each direction's ring, rounded up to a power of two
+     */
+    public SharedMemoryTransport(File dir, int ringSize) {
+        this.dir = dir;
+        this.ringSize = Integer.highestOneBit(Math.max(ringSize, 1024) - 1) << 1;
+    }
+
+    public static SharedMemoryTransport fromSystemProperties() {
+        return new SharedMemoryTransport(new File(System.getProperty("consensus.shm.dir", "/dev/shm")),
+                Integer.getInteger("consensus.shm.ringSize", 1 << 20));
+    }
+
+    /*
+     *  Handshakes run on a thread of the server's own, so a connect completes without waiting for the accepting process
+     *  to call accept(), as it would with TCP; a process may well be connecting out while holding up its own accepts.
+     */
+    @Override
+    public TransportServer listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        //  handshaken connections, then the IOException that closed the server
+        BlockingQueue<Object> accepted = new LinkedBlockingQueue<>();
+        Thread handshakes = new Thread(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    accepted.add(e);
+                    return;
+                }
+                try {
+                    accepted.add(handshake(socket, port));
+                } catch (IOException e) {
+                    //  the connecting side went away mid-handshake, which mustn't stop the server accepting
+                    try {
+                        socket.close();
+                    } catch (IOException closing) {
+                        //  already gone
+                    }
+                }
+            }
+        }, "shm-handshakes-" + port);
+        handshakes.setDaemon(true);
+        handshakes.start();
+
+        return new TransportServer() {
+            @Override
+            public Connection accept() throws IOException {
+                Object next;
+                try {
+                    next = accepted.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while accepting");
+                }
+                if (next instanceof IOException) {
+                    //  left for any later accept() too
+                    accepted.add(next);
+                    throw (IOException) next;
+                }
+                return (Connection) next;
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private Connection handshake(Socket socket, int port) throws IOException {
+        socket.setSoTimeout(5000);
+        String greeting = readRawLine(socket.getInputStream());
+        socket.setSoTimeout(0);
+        if (greeting == null) throw new EOFException("Connection closed during the handshake");
+        if (!greeting.startsWith("SHM ")) return new TcpTransport.TcpConnection(socket);
+
+        File file = new File(greeting.substring(4));
+        MappedByteBuffer rings = null;
+        if (isRingFile(file, port)) {
+            try {
+                rings = map(file, 0);
+                //  both sides have it mapped, so the name is no longer needed
+                file.delete();
+            } catch (IOException e) {
+                //  answered with TCP below, and the connecting side deletes its file
+            }
+        }
+        socket.getOutputStream().write((rings != null ? "SHM\n" : "TCP\n").getBytes(StandardCharsets.UTF_8));
+        if (rings == null) return new TcpTransport.TcpConnection(socket);
+        return new RingConnection(socket, rings, false);
+    }
+
+    //  Whether a path names a ring file created by connect(port): consensus_<port>_*.ring directly in the ring directory
+    private boolean isRingFile(File file, int port) throws IOException {
+        String name = file.getName();
+        if (!name.startsWith("consensus_" + port + "_") || !name.endsWith(".ring")) return false;
+        //  the canonical path resolves any links and "..", so it only matches a file that really is in the directory
+        return file.getCanonicalFile().equals(new File(dir.getCanonicalFile(), name)) && file.isFile();
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        File file;
+        MappedByteBuffer rings;
+        try {
+            file = File.createTempFile("consensus_" + port + "_", ".ring", dir);
+            rings = map(file, 2 * (RING_HEADER + ringSize));
+        } catch (IOException e) {
+            socket.getOutputStream().write("TCP\n".getBytes(StandardCharsets.UTF_8));
+            return new TcpTransport.TcpConnection(socket);
+        }
+        rings.putInt(0, ringSize);
+        String answer;
+        try {
+            socket.getOutputStream().write(("SHM " + file.getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.setSoTimeout(5000);
+            answer = readRawLine(socket.getInputStream());
+            socket.setSoTimeout(0);
+            if (answer == null) throw new EOFException("Connection closed during the handshake");
+        } catch (IOException e) {
+            file.delete();
+            socket.close();
+            throw e;
+        }
+        if (!answer.equals("SHM")) {
+            //  the accepting side couldn't map the rings, or wouldn't
+            file.delete();
+            return new TcpTransport.TcpConnection(socket);
+        }
+        RingConnection connection = new RingConnection(socket, rings, true);
+        connection.file = file;
+        return connection;
+    }
+
+    //  Maps a ring file, creating it at the given size, or mapping it at the size its header gives when size is 0
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                channel.read(header, 0);
+                int capacity = header.getInt(0);
+                //  mapping past the end of the file would grow it, so the header has to match the file's size
+                if (capacity <= 0 || Integer.bitCount(capacity) != 1 || FILE_HEADER + 2L * (RING_HEADER + capacity) > channel.size())
+                    throw new IOException("Not a ring file: " + file);
+                size = 2 * (RING_HEADER + capacity);
+            }
+            //  the mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER + size);
+        }
+    }
+
+    //  Reads one line a byte at a time, so nothing past it is taken off the socket
+    private static String readRawLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return null;
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /*
+     *  Java 8 has no fence short of Unsafe. A volatile write followed by a volatile read keeps every memory access
+     *  before them ahead of every access after them, which HotSpot implements with a full fence; that orders the
+     *  plain accesses to the mapped rings, which other processes read.
+     */
+    private static volatile int fence;
+
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) throw new IllegalStateException();
+    }
+
+    //  One direction of a connection; positions are byte counts since the start, so they only ever grow
+    private static class Ring {
+        private final ByteBuffer buffer;
+        private final int base;
+        private final int data;
+        private final int mask;
+
+        Ring(ByteBuffer buffer, int base, int capacity) {
+            this.buffer = buffer;
+            this.base = base;
+            this.data = base + RING_HEADER;
+            this.mask = capacity - 1;
+        }
+
+        long get(int field) {
+            return buffer.getLong(base + field);
+        }
+
+        void set(int field, long value) {
+            buffer.putLong(base + field, value);
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        //  Records are a length then the line, padded to a multiple of four so a length never wraps around the end
+        static int recordSize(int length) {
+            return 4 + ((length + 3) & ~3);
+        }
+
+        //  @return whether the record fitted
+        boolean offer(byte[] line) {
+            long tail = get(TAIL);
+            int size = recordSize(line.length);
+            if (capacity() - (tail - get(HEAD)) < size) return false;
+            fence();
+
+            buffer.putInt(data + (int) (tail & mask), line.length);
+            copy(tail + 4, line, true);
+            //  the line must be in place before the reader can see the new tail
+            fence();
+            set(TAIL, tail + size);
+            fence();
+            return true;
+        }
+
+        //  @return the next line, or null if the ring is empty
+        byte[] poll() {
+            long head = get(HEAD);
+            if (head == get(TAIL)) return null;
+            fence();
+
+            byte[] line = new byte[buffer.getInt(data + (int) (head & mask))];
+            copy(head + 4, line, false);
+            //  the line must be read before the writer can reuse its space
+            fence();
+            set(HEAD, head + recordSize(line.length));
+            return line;
+        }
+
+        boolean isEmpty() {
+            return get(HEAD) == get(TAIL);
+        }
+
+        private void copy(long position, byte[] line, boolean write) {
+            ByteBuffer view = buffer.duplicate();
+            int offset = (int) (position & mask);
+            int first = Math.min(line.length, capacity() - offset);
+            view.position(data + offset);
+            if (write) view.put(line, 0, first);
+            else view.get(line, 0, first);
+            if (first < line.length) {
+                view.position(data);
+                if (write) view.put(line, first, line.length - first);
+                else view.get(line, first, line.length - first);
+            }
+        }
+    }
+
+    private static class RingConnection implements Connection {
+        private final Socket socket;
+        private final InputStream doorbell;
+        private final OutputStream bell;
+        private final Ring in;
+        private final Ring out;
+        private final byte[] chimes;
+        //  Reading and writing go through different rings, so a reader asleep on the doorbell never holds up a writer
+        private final Object readLock = new Object();
+        private final Object writeLock = new Object();
+        //  The ring file, kept by the connecting side until the accepting side has mapped it
+        File file;
+        private volatile int timeout = 0;
+        private volatile boolean closed = false;
+
+        RingConnection(Socket socket, MappedByteBuffer mapped, boolean connectingSide) throws IOException {
+            this.socket = socket;
+            //  a ring is one byte that mustn't wait for the previous one to be acknowledged
+            socket.setTcpNoDelay(true);
+            this.doorbell = socket.getInputStream();
+            this.bell = socket.getOutputStream();
+            int capacity = mapped.getInt(0);
+            Ring first = new Ring(mapped, FILE_HEADER, capacity);
+            Ring second = new Ring(mapped, FILE_HEADER + RING_HEADER + capacity, capacity);
+            this.out = connectingSide ? first : second;
+            this.in = connectingSide ? second : first;
+            this.chimes = new byte[64];
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            synchronized (readLock) {
+                return read();
+            }
+        }
+
+        private String read() throws IOException {
+            long deadline = timeout > 0 ? System.nanoTime() + timeout * 1_000_000L : Long.MAX_VALUE;
+            int spins = 0;
+            while (true) {
+                if (closed) throw new SocketException("Socket closed");
+                byte[] line = in.poll();
+                if (line != null) return new String(line, StandardCharsets.UTF_8);
+                if (in.get(WRITER_CLOSED) != 0 && in.isEmpty()) return null;
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new SocketTimeoutException("Read timed out");
+                if (spins++ < SPINS) {
+                    if (spins > SPINS / 2) Thread.yield();
+                    continue;
+                }
+                spins = 0;
+                if (!sleep(deadline)) {
+                    //  the writer's socket is gone, so whatever it wrote before dying is all there will be
+                    line = in.poll();
+                    return line == null ? null : new String(line, StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        //  Blocks on the doorbell until rung or the deadline; @return false if the other side's socket closed
+        private boolean sleep(long deadline) throws IOException {
+            in.set(READER_ASLEEP, 1);
+            fence();
+            try {
+                //  a line published before the flag was seen is never rung for
+                if (!in.isEmpty() || in.get(WRITER_CLOSED) != 0) return true;
+                long remaining = deadline - System.nanoTime();
+                socket.setSoTimeout(deadline == Long.MAX_VALUE ? 0 : (int) Math.max(remaining / 1_000_000L, 1));
+                try {
+                    return doorbell.read(chimes) >= 0;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                }
+            } finally {
+                in.set(READER_ASLEEP, 0);
+                fence();
+            }
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            synchronized (writeLock) {
+                write(bytes);
+            }
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            if (Ring.recordSize(bytes.length) > out.capacity()) throw new IOException("Line longer than the ring");
+
+            long probeAt = System.nanoTime();
+            while (true) {
+                if (closed) throw new SocketException("Socket closed");
+                if (out.get(READER_CLOSED) != 0) throw new SocketException("Broken pipe");
+                if (out.offer(bytes)) break;
+                //  a full ring means a slow reader or a dead one; ringing now and then finds out which
+                if (System.nanoTime() - probeAt > FULL_RING_PROBE_MILLIS * 1_000_000L) {
+                    ring();
+                    probeAt = System.nanoTime();
+                }
+                Thread.yield();
+            }
+            if (out.get(READER_ASLEEP) != 0) ring();
+        }
+
+        private void ring() throws IOException {
+            bell.write(1);
+            bell.flush();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            out.set(WRITER_CLOSED, 1);
+            in.set(READER_CLOSED, 1);
+            fence();
+            //  wakes a reader asleep on the other end, which then sees the flag
+            socket.close();
+            if (file != null) file.delete();
+        }
+    }
+}
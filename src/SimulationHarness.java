@@ -0,0 +1,203 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/*
+ *  Runs a Coordinator and a whole cluster of Participants inside this JVM, connected by an InMemoryNetwork with
+ *  simulated latency, drops and crashes, and reports whether they agreed and how long it took. Crashing participants
+ *  are picked at random, and each crashes at the start of a random round. When -Dconsensus.faultBound sets the most
+ *  crashes the run has to tolerate, no more than that many participants crash, so that a disagreement is always one
+ *  the protocol promised to prevent.
+ *
+ *  Usage: SimulationHarness <numParticipants> <timeout> <latencyMs> <jitterMs> <dropRate> <crashes> <option1> ...
+ *
+ *  Logs are discarded unless -Dconsensus.harness.logDir names a directory to write them to. Every participant still
+ *  runs its usual threads, one listener per peer, so clusters of a few hundred are practical; the
+ *  ConsensusSimulator is the tool for larger ones.
+ */
+public class SimulationHarness {
+    static final int COORDINATOR_PORT = 10000;
+
+    private final int numParticipants;
+    private final int timeout;
+    private final int crashes;
+    private final List<String> options;
+    private final InMemoryNetwork network;
+    private final Random random;
+    private final File logDir;
+    private IntFunction<ParticipantListener> listenerFactory;
+    private UnaryOperator<Transport> transportWrapper;
+
+    public SimulationHarness(int numParticipants, int timeout, InMemoryNetwork network, int crashes,
+                             List<String> options, long seed, File logDir) {
+        this.numParticipants = numParticipants;
+        this.timeout = timeout;
+        this.network = network;
+        this.crashes = crashes;
+        this.options = options;
+        this.random = new Random(seed);
+        this.logDir = logDir;
+        this.listenerFactory = port -> null;
+        this.transportWrapper = UnaryOperator.identity();
+    }
+
+    //  Gives each participant, identified by its port, a listener of its own; null means none
+    public void setListenerFactory(IntFunction<ParticipantListener> listenerFactory) {
+        this.listenerFactory = listenerFactory;
+    }
+
+    //  Wraps every process's transport, e.g. to count traffic
+    public void setTransportWrapper(UnaryOperator<Transport> transportWrapper) {
+        this.transportWrapper = transportWrapper;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 7) throw new IllegalArgumentException("Can't have less than 7 args!");
+
+        int numParticipants = Integer.parseInt(args[0]);
+        int timeout = Integer.parseInt(args[1]);
+        double latency = Double.parseDouble(args[2]);
+        double jitter = Double.parseDouble(args[3]);
+        double dropRate = Double.parseDouble(args[4]);
+        int crashes = Integer.parseInt(args[5]);
+        List<String> options = Arrays.asList(Arrays.copyOfRange(args, 6, args.length));
+
+        long seed = Long.getLong("consensus.harness.seed", System.nanoTime());
+        String logDir = System.getProperty("consensus.harness.logDir");
+
+        InMemoryNetwork network = new InMemoryNetwork(latency, jitter, dropRate, seed);
+        SimulationHarness harness = new SimulationHarness(numParticipants, timeout, network, crashes, options, seed,
+                logDir == null ? null : new File(logDir));
+        Result result = harness.run();
+        System.out.println(result);
+        System.exit(result.agreed() ? 0 : 1);
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+
+        Coordinator coordinator = new Coordinator(COORDINATOR_PORT, 0, numParticipants, timeout, options,
+                transportWrapper.apply(network.transportFor(COORDINATOR_PORT)), CoordinatorLogger.createLogger(0, COORDINATOR_PORT, timeout, logStream("coordinator")));
+        Thread coordinatorThread = daemon(() -> {
+            try {
+                coordinator.startListening(COORDINATOR_PORT);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        coordinatorThread.start();
+
+        Map<Integer, Integer> crashRounds = chooseCrashes();
+        Set<Integer> crashed = crashRounds.keySet();
+        List<Participant> participants = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= numParticipants; i++) {
+            int port = COORDINATOR_PORT + i;
+            Participant participant = new Participant(COORDINATOR_PORT, 0, port, timeout, transportWrapper.apply(network.transportFor(port)),
+                    ParticipantLogger.createLogger(0, port, timeout, logStream("participant_" + port)));
+            ParticipantListener listener = listenerFactory.apply(port);
+            if (listener != null) participant.addListener(listener);
+            if (crashRounds.containsKey(port)) {
+                int crashRound = crashRounds.get(port);
+                participant.addListener(new ParticipantListener() {
+                    @Override
+                    public void roundStarted(int round) {
+                        if (round == crashRound) network.crash(port);
+                    }
+                });
+            }
+            participants.add(participant);
+            threads.add(daemon(() -> {
+                try {
+                    participant.run();
+                } catch (Exception e) {
+                    //  expected of participants whose network has been crashed under them
+                    if (!network.isCrashed(port)) e.printStackTrace();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        for (int i = 0; i < numParticipants; i++) {
+            if (!crashed.contains(COORDINATOR_PORT + i + 1)) threads.get(i).join();
+        }
+        coordinator.waitUntilAllFinished();
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        coordinator.tracer.dump();
+        Map<Integer, String> outcomes = new TreeMap<>();
+        for (Participant participant : participants) {
+            if (!crashed.contains(participant.commsPort)) outcomes.put(participant.commsPort, participant.finalOutcome);
+        }
+        return new Result(numParticipants, crashed, outcomes, coordinator.getFinalOutcome(), elapsedMillis);
+    }
+
+    /*
+     *  Picks the participants to crash, at most the fault bound when there is one, and for each a round in which it
+     *  crashes as it starts, before its message for the round goes out. Only the f+1 rounds a fault bound of f allows
+     *  are run, so crashes are only scheduled in those.
+     */
+    private Map<Integer, Integer> chooseCrashes() {
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 1; i <= numParticipants; i++) ports.add(COORDINATOR_PORT + i);
+        Collections.shuffle(ports, random);
+
+        int faultBound = Integer.getInteger("consensus.faultBound", -1);
+        int numCrashes = faultBound < 0 ? crashes : Math.min(crashes, faultBound);
+        int numRounds = faultBound < 0 ? numParticipants : Math.min(faultBound + 1, numParticipants);
+        Map<Integer, Integer> crashRounds = new TreeMap<>();
+        for (Integer port : ports.subList(0, Math.min(numCrashes, ports.size()))) {
+            crashRounds.put(port, 1 + random.nextInt(numRounds));
+        }
+        return crashRounds;
+    }
+
+    private PrintStream logStream(String name) throws IOException {
+        if (logDir == null) {
+            return new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        }
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(logDir, name + ".log"))), true);
+    }
+
+    private static Thread daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public static class Result {
+        final int numParticipants;
+        final Set<Integer> crashed;
+        final Map<Integer, String> outcomes;
+        final String coordinatorOutcome;
+        final long elapsedMillis;
+
+        Result(int numParticipants, Set<Integer> crashed, Map<Integer, String> outcomes, String coordinatorOutcome, long elapsedMillis) {
+            this.numParticipants = numParticipants;
+            this.crashed = crashed;
+            this.outcomes = outcomes;
+            this.coordinatorOutcome = coordinatorOutcome;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        //  Whether every participant that didn't crash decided the same, non-empty outcome
+        public boolean agreed() {
+            return !coordinatorOutcome.isEmpty() && new HashSet<>(outcomes.values()).size() == 1;
+        }
+
+        @Override
+        public String toString() {
+            return "participants=" + numParticipants + " crashed=" + crashed + " outcome=" + coordinatorOutcome
+                    + " agreed=" + agreed() + " elapsedMs=" + elapsedMillis;
+        }
+    }
+}
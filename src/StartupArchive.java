@@ -0,0 +1,202 @@
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/*
+ *  Builds the fast-startup profile: the classes packed into consensus.jar, and consensus.jsa, a class data sharing
+ *  archive of every class a coordinator and its participants load in one vote. A JVM started with the archive maps
+ *  those classes in already parsed and verified instead of loading them one by one, which is most of the time a
+ *  participant spends before it listens.
+ *
+ *  Usage: StartupArchive <archiveDir>
+ *
+ *  The archive comes from a training run: a JVM started with -XX:ArchiveClassesAtExit runs a coordinator and three
+ *  participants through a vote, logging to a logger server of its own, and the archive is written as it exits.
+ *  Dynamic archives need JDK 13 or later, although the classes themselves still build for Java 8, and the archive
+ *  only serves the JVM that wrote it, with the jar at the same path. launch.sh starts a process with the profile.
+ */
+public class StartupArchive {
+    public static final String JAR = "consensus.jar";
+    public static final String ARCHIVE = "consensus.jsa";
+    private static final int TRAINING_PARTICIPANTS = 3;
+
+    private final File dir;
+
+    public StartupArchive(File dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) throw new IllegalArgumentException("Can't have less than 1 args!");
+
+        if (args[0].equals("--train")) {
+            train(Integer.parseInt(args[1]));
+            return;
+        }
+        StartupArchive archive = new StartupArchive(new File(args[0]));
+        archive.build();
+        System.out.println("Wrote " + archive.getJar() + " and " + archive.getArchive());
+    }
+
+    public File getJar() {
+        return new File(dir, JAR);
+    }
+
+    public File getArchive() {
+        return new File(dir, ARCHIVE);
+    }
+
+    public static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    public static String javaCommand() {
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    public void build() throws IOException, InterruptedException {
+        if (javaVersion() < 13)
+            throw new UnsupportedOperationException("Dynamic class data sharing archives need JDK 13 or later");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+
+        packClasses();
+        getArchive().delete();
+
+        File trainingDir = Files.createTempDirectory(dir.toPath(), "training").toFile();
+        int coordPort = 20000 + new Random().nextInt(20000);
+        Process training = new ProcessBuilder(javaCommand(), "-XX:ArchiveClassesAtExit=" + getArchive().getAbsolutePath(),
+                "-cp", getJar().getAbsolutePath(), StartupArchive.class.getName(), "--train", Integer.toString(coordPort))
+                .directory(trainingDir)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "training.out"))
+                .start();
+        int exitCode = training.waitFor();
+        deleteTree(trainingDir);
+        if (exitCode != 0 || !getArchive().isFile())
+            throw new IOException("Training run failed with exit code " + exitCode + ", see " + new File(dir, "training.out"));
+    }
+
+    //  Only classes loaded from a jar are archived, so the class path directory this class came from is packed into one
+    private void packClasses() throws IOException {
+        Path classes;
+        try {
+            classes = Paths.get(StartupArchive.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (java.net.URISyntaxException e) {
+            throw new IOException("Can't locate the class path", e);
+        }
+        if (!Files.isDirectory(classes)) {
+            Files.copy(classes, getJar().toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(getJar()), manifest);
+             Stream<Path> files = Files.walk(classes)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                String name = classes.relativize(file).toString().replace(File.separatorChar, '/');
+                if (!name.endsWith(".class")) continue;
+                jar.putNextEntry(new JarEntry(name));
+                Files.copy(file, jar);
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+
+    /*
+     *  The training run. The processes are started as their mains start them, the coordinator and first participant
+     *  with the singleton loggers and the rest with loggers of their own, so that the classes of both paths are loaded.
+     */
+    private static void train(int coordPort) throws Exception {
+        DatagramSocket loggerSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread loggerServer = new Thread(() -> acknowledgeAll(loggerSocket, null));
+        loggerServer.setDaemon(true);
+        loggerServer.start();
+        int loggerPort = loggerSocket.getLocalPort();
+        int timeout = 500;
+
+        Coordinator coordinator = new Coordinator(coordPort, loggerPort, TRAINING_PARTICIPANTS, timeout, Arrays.asList("A", "B"));
+        MetricsExporter.start(coordinator.getMetrics(), coordPort);
+        new Thread(() -> {
+            try {
+                coordinator.startListening(coordPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        List<Thread> participants = new ArrayList<>();
+        for (int i = 1; i <= TRAINING_PARTICIPANTS; i++) {
+            int port = coordPort + i;
+            Participant participant = i == 1
+                    ? new Participant(coordPort, loggerPort, port, timeout)
+                    : new Participant(coordPort, loggerPort, port, timeout, Transport.fromSystemProperties(),
+                            ParticipantLogger.createLogger(loggerPort, port, timeout, new PrintStream(new ByteArrayOutputStream())));
+            MetricsExporter.start(participant.getMetrics(), port);
+            Thread thread = new Thread(() -> {
+                try {
+                    participant.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            participants.add(thread);
+            thread.start();
+        }
+        for (Thread participant : participants) participant.join();
+        coordinator.waitUntilAllFinished();
+        coordinator.tracer.dump();
+        //  the archive is written on the way out
+        System.exit(0);
+    }
+
+    /*
+     *  Acts as the logger server, acknowledging every message; each one is also handed to the listener, if there is
+     *  one, as it arrives. Returns once the socket is closed.
+     */
+    static void acknowledgeAll(DatagramSocket socket, MessageListener listener) {
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                long arrivalNanos = System.nanoTime();
+                String[] parts = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split(" ", 3);
+                if (parts.length < 3) continue;
+                if (listener != null) listener.messageLogged(arrivalNanos, parts[2]);
+                byte[] ack = ("ACK " + parts[1]).getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            }
+        } catch (IOException e) {
+            //  closed
+        }
+    }
+
+    interface MessageListener {
+        void messageLogged(long arrivalNanos, String message);
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.*;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *  Measures how long Participant and Coordinator processes take to start, with and without the fast-startup profile.
+ *  Times run from just before the process is launched to the arrival of its log messages at this benchmark, which
+ *  stands in as the logger server: "started listening" for both, and "JOIN sent" for participants, which join a
+ *  coordinator socket the benchmark holds open. Each process is killed once it has been timed.
+ *
+ *  Usage: StartupBenchmark <archiveDir> <repetitions> <reportFile>
+ *
+ *  The profile is built into archiveDir first, as StartupArchive builds it. Every repetition times each process once
+ *  with class data sharing off, once with only the JDK's own archive, which is the JVM's default, and once with the
+ *  profile's archive, so that disk caches and other load affect all three alike. Appends one JSON object per process
+ *  and configuration to the report file.
+ */
+public class StartupBenchmark {
+    private static final String[] CONFIGURATIONS = {"off", "default", "archive"};
+    private static final long PROCESS_TIMEOUT_MILLIS = 30000;
+
+    private final StartupArchive archive;
+    private final File runDir;
+    private int nextPort;
+    //  The launch being timed, to which logged messages are reported
+    private volatile Launch current;
+
+    public StartupBenchmark(StartupArchive archive, File runDir, int firstPort) {
+        this.archive = archive;
+        this.runDir = runDir;
+        this.nextPort = firstPort;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) throw new IllegalArgumentException("Can't have less than 3 args!");
+
+        File dir = new File(args[0]);
+        int repetitions = Integer.parseInt(args[1]);
+        File report = new File(args[2]);
+
+        StartupArchive archive = new StartupArchive(dir);
+        archive.build();
+        File runDir = new File(dir, "run");
+        if (!runDir.isDirectory() && !runDir.mkdirs()) throw new IOException("Can't create " + runDir);
+
+        StartupBenchmark benchmark = new StartupBenchmark(archive, runDir, 20000 + new Random().nextInt(20000));
+        for (String json : benchmark.run(repetitions)) {
+            System.out.println(json);
+            try (PrintStream out = new PrintStream(new FileOutputStream(report, true))) {
+                out.println(json);
+            }
+        }
+    }
+
+    public List<String> run(int repetitions) throws Exception {
+        Map<String, LatencyHistogram> listening = new LinkedHashMap<>();
+        Map<String, LatencyHistogram> joined = new LinkedHashMap<>();
+        for (String process : new String[]{"Participant", "Coordinator"}) {
+            for (String configuration : CONFIGURATIONS) {
+                listening.put(process + " " + configuration, new LatencyHistogram());
+                if (process.equals("Participant")) joined.put(process + " " + configuration, new LatencyHistogram());
+            }
+        }
+
+        try (DatagramSocket loggerSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Thread loggerServer = new Thread(() -> StartupArchive.acknowledgeAll(loggerSocket, this::messageLogged));
+            loggerServer.setDaemon(true);
+            loggerServer.start();
+            int loggerPort = loggerSocket.getLocalPort();
+
+            //  the first launches pay for reading the jar and archive from disk, so are left out
+            for (int repetition = -1; repetition < repetitions; repetition++) {
+                for (String configuration : CONFIGURATIONS) {
+                    Launch participant = launchParticipant(configuration, loggerPort);
+                    Launch coordinator = launchCoordinator(configuration, loggerPort);
+                    if (repetition < 0) continue;
+                    listening.get("Participant " + configuration).record(participant.listeningMicros);
+                    joined.get("Participant " + configuration).record(participant.joinedMicros);
+                    listening.get("Coordinator " + configuration).record(coordinator.listeningMicros);
+                }
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : listening.entrySet()) {
+            String[] key = entry.getKey().split(" ");
+            StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                    "{\"process\":\"%s\",\"configuration\":\"%s\",\"repetitions\":%d,\"listeningMs\":%s",
+                    key[0], key[1], repetitions, percentiles(entry.getValue())));
+            if (joined.containsKey(entry.getKey())) json.append(",\"joinSentMs\":").append(percentiles(joined.get(entry.getKey())));
+            results.add(json.append('}').toString());
+        }
+        return results;
+    }
+
+    private static String percentiles(LatencyHistogram micros) {
+        return String.format(Locale.ROOT, "{\"p50\":%.1f,\"p90\":%.1f,\"max\":%.1f}",
+                micros.valueAtPercentile(50) / 1000.0, micros.valueAtPercentile(90) / 1000.0, micros.max() / 1000.0);
+    }
+
+    private Launch launchParticipant(String configuration, int loggerPort) throws Exception {
+        int coordPort = nextPort++;
+        int port = nextPort++;
+        //  holds the coordinator's port open, so the participant's JOIN has somewhere to go
+        ServerSocket coordinator = new ServerSocket(coordPort, 50, InetAddress.getLoopbackAddress());
+        try {
+            return launch(configuration, true, "Participant", coordPort, loggerPort, port, 500);
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    private Launch launchCoordinator(String configuration, int loggerPort) throws Exception {
+        int coordPort = nextPort++;
+        return launch(configuration, false, "Coordinator", coordPort, loggerPort, 1, 500, "A", "B");
+    }
+
+    private Launch launch(String configuration, boolean joins, String mainClass, Object... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(StartupArchive.javaCommand());
+        if (configuration.equals("off")) command.add("-Xshare:off");
+        if (configuration.equals("archive")) command.add("-XX:SharedArchiveFile=" + archive.getArchive().getAbsolutePath());
+        command.add("-cp");
+        command.add(archive.getJar().getAbsolutePath());
+        command.add(mainClass);
+        for (Object arg : args) command.add(arg.toString());
+
+        Launch launch = new Launch(joins);
+        current = launch;
+        ProcessBuilder builder = new ProcessBuilder(command).directory(runDir).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(runDir, "processes.out")));
+        launch.startNanos = System.nanoTime();
+        Process process = builder.start();
+        try {
+            if (!launch.timed.await(PROCESS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new IOException(mainClass + " didn't log its startup within " + PROCESS_TIMEOUT_MILLIS + "ms, see " + new File(runDir, "processes.out"));
+        } finally {
+            process.destroyForcibly();
+            process.waitFor();
+            current = null;
+        }
+        return launch;
+    }
+
+    private void messageLogged(long arrivalNanos, String message) {
+        Launch launch = current;
+        if (launch == null) return;
+        if (message.contains("started listening")) launch.listened(arrivalNanos);
+        else if (message.contains("JOIN sent")) launch.joined(arrivalNanos);
+    }
+
+    private static class Launch {
+        final boolean joins;
+        final CountDownLatch timed;
+        volatile long startNanos;
+        long listeningMicros;
+        long joinedMicros;
+
+        Launch(boolean joins) {
+            this.joins = joins;
+            this.timed = new CountDownLatch(joins ? 2 : 1);
+        }
+
+        synchronized void listened(long arrivalNanos) {
+            if (listeningMicros > 0) return;
+            listeningMicros = (arrivalNanos - startNanos) / 1000;
+            timed.countDown();
+        }
+
+        synchronized void joined(long arrivalNanos) {
+            if (!joins || joinedMicros > 0) return;
+            joinedMicros = (arrivalNanos - startNanos) / 1000;
+            timed.countDown();
+        }
+    }
+}
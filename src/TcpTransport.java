@@ -0,0 +1,67 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+//  Plain TCP on localhost, one socket per connection
+public class TcpTransport implements Transport {
+
+    @Override
+    public TransportServer listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        return new TransportServer() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException {
+        return new TcpConnection(new Socket("localhost", port));
+    }
+
+    static class TcpConnection implements Connection {
+        final Socket socket;
+        final BufferedReader inpReader;
+        final PrintWriter outWriter;
+
+        TcpConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.inpReader = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
+            this.outWriter = new PrintWriter( new OutputStreamWriter( socket.getOutputStream() ) );
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return inpReader.readLine();
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            outWriter.println(line);
+            outWriter.flush();
+            if (outWriter.checkError()) throw new IOException("Failed to write to port " + socket.getPort());
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getRemotePort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
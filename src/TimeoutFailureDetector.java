@@ -0,0 +1,29 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *  Suspects a peer as soon as nothing has been heard from it for a fixed timeout.  This is what the participant did
+ *  before heartbeats existed, when any socket read timeout was treated as a crash.
+ */
+public class TimeoutFailureDetector implements FailureDetector {
+    private final long timeout;
+    private final Map<Integer, Long> lastSeen;
+
+    public TimeoutFailureDetector(long timeout) {
+        this.timeout = timeout;
+        this.lastSeen = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void heartbeat(int peer, long nowMillis) {
+        lastSeen.put(peer, nowMillis);
+    }
+
+    @Override
+    public boolean isAvailable(int peer, long nowMillis) {
+        Long last = lastSeen.get(peer);
+        //  nothing heard yet, so there is nothing to judge the peer against
+        if (last == null) return true;
+        return nowMillis - last <= timeout;
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Merges the trace dumps written by each process's TraceRecorder into one cluster-wide timeline in the Chrome trace
+ *  event format, which chrome://tracing and Perfetto open directly.
+ *
+ *  Usage: TraceMerger <output.json> <trace files or directories...>
+ *
+ *  Every process becomes a track, with its rounds and round waits as spans on one thread and its messages on another.
+ *  Each received frame is drawn as a span from when its sender sent it to when it arrived, so time lost on the wire or
+ *  in the receiver's queue shows up next to the round it held back. Only events from -Dconsensus.trace.run, given as
+ *  the hex run id, are kept when it is set.
+ */
+public class TraceMerger {
+    private static final int ROUNDS_THREAD = 1;
+    private static final int MESSAGES_THREAD = 2;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) throw new IllegalArgumentException("Can't have less than 2 args!");
+
+        String run = System.getProperty("consensus.trace.run");
+        Long runFilter = run == null ? null : Long.parseUnsignedLong(run, 16);
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            File[] dumps = file.listFiles((dir, name) -> name.startsWith("trace_") && name.endsWith(".bin"));
+            if (dumps != null) {
+                for (File dump : dumps) files.add(dump);
+            } else {
+                files.add(file);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(args[0])))) {
+            out.println("{\"traceEvents\":[");
+            boolean first = true;
+            for (File file : files) {
+                first = merge(file, runFilter, out, first);
+            }
+            out.println();
+            out.println("]}");
+        }
+    }
+
+    private static boolean merge(File file, Long runFilter, PrintWriter out, boolean first) throws IOException {
+        ByteBuffer dump;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            dump = ByteBuffer.allocate((int) channel.size());
+            while (dump.hasRemaining() && channel.read(dump) >= 0) {
+                //  keep reading until the whole dump is in
+            }
+        }
+        dump.flip();
+
+        if (dump.remaining() < TraceRecorder.HEADER_SIZE || dump.getInt() != TraceRecorder.MAGIC)
+            throw new IOException(file + " isn't a trace dump");
+        if (dump.getInt() != TraceRecorder.VERSION)
+            throw new IOException(file + " has an unsupported trace version");
+        char role = (char) dump.getInt();
+        int pid = dump.getInt();
+        int count = dump.getInt();
+
+        first = emit(out, first, "{\"ph\":\"M\",\"name\":\"process_name\",\"pid\":" + pid
+                + ",\"args\":{\"name\":\"" + (role == 'C' ? "Coordinator " : "Participant ") + pid + "\"}}");
+        first = emit(out, first, threadName(pid, ROUNDS_THREAD, "rounds"));
+        first = emit(out, first, threadName(pid, MESSAGES_THREAD, "messages"));
+
+        for (int i = 0; i < count; i++) {
+            int offset = TraceRecorder.HEADER_SIZE + i * TraceRecorder.RECORD_SIZE;
+            byte kind = dump.get(offset);
+            String frame = TraceRecorder.FRAMES[dump.get(offset + 1)];
+            int peer = dump.getInt(offset + 4);
+            int round = dump.getInt(offset + 8);
+            long time = dump.getLong(offset + 16);
+            long value = dump.getLong(offset + 24);
+            long runId = dump.getLong(offset + 32);
+            if (runFilter != null && runId != runFilter) continue;
+
+            String event;
+            switch (kind) {
+                case TraceRecorder.SEND:
+                    event = "{\"ph\":\"i\",\"s\":\"t\",\"name\":\"" + frame + " to " + peer + "\",\"pid\":" + pid
+                            + ",\"tid\":" + MESSAGES_THREAD + ",\"ts\":" + time + ",\"args\":{\"round\":" + round + "}}";
+                    break;
+                case TraceRecorder.RECEIVE:
+                    event = "{\"ph\":\"X\",\"name\":\"" + frame + " from " + peer + "\",\"pid\":" + pid
+                            + ",\"tid\":" + MESSAGES_THREAD + ",\"ts\":" + value + ",\"dur\":" + Math.max(time - value, 0)
+                            + ",\"args\":{\"round\":" + round + "}}";
+                    break;
+                case TraceRecorder.ROUND:
+                case TraceRecorder.ROUND_WAIT:
+                    event = "{\"ph\":\"X\",\"name\":\"" + (kind == TraceRecorder.ROUND ? "round " : "wait ") + round
+                            + "\",\"pid\":" + pid + ",\"tid\":" + ROUNDS_THREAD + ",\"ts\":" + time + ",\"dur\":" + value + "}";
+                    break;
+                default:
+                    continue;
+            }
+            first = emit(out, first, event);
+        }
+        return first;
+    }
+
+    private static String threadName(int pid, int tid, String name) {
+        return "{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":" + pid + ",\"tid\":" + tid
+                + ",\"args\":{\"name\":\"" + name + "\"}}";
+    }
+
+    private static boolean emit(PrintWriter out, boolean first, String event) {
+        if (!first) out.println(",");
+        out.print(event);
+        return false;
+    }
+}
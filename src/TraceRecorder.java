@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *  Records trace events for one process into a fixed-size binary ring buffer, which is dumped to a file when the
+ *  process finishes and merged offline with the other processes' dumps by TraceMerger.
+ *
+ *  Frames between processes are tagged "TRACE <runId> <round> <sentMicros> <frame>", so the receiver can record how
+ *  long each frame was in flight. The coordinator picks the run id and participants adopt it from the DETAILS frame.
+ *  Timestamps are wall-clock microseconds, so events from processes on the same host line up.
+ *
+ *  Tracing is enabled by -Dconsensus.trace=<dir>; -Dconsensus.trace.capacity sets how many events are kept (default
+ *  65536), after which the oldest are overwritten. A disabled recorder leaves frames untagged and records nothing.
+ *
+ *  Dump layout: magic, version, role ('C' or 'P'), process id, event count, then the events oldest first, each
+ *  RECORD_SIZE bytes: kind, frame, 2 bytes padding, peer, round, 4 bytes padding, time, duration or sent time, run id.
+ */
+public class TraceRecorder {
+    static final int MAGIC = 0x54524345;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final int RECORD_SIZE = 40;
+
+    //  Event kinds
+    static final byte SEND = 1;
+    static final byte RECEIVE = 2;
+    static final byte ROUND = 3;
+    static final byte ROUND_WAIT = 4;
+
+    //  Frame types, indexed by their code
+    static final String[] FRAMES = {"", "DETAILS", "VOTE_OPTIONS", "VOTE", "OUTCOME"};
+
+    private static final long BASE_MILLIS = System.currentTimeMillis();
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private final char role;
+    private final int processId;
+    private final File dir;
+    private final int capacity;
+    private final ByteBuffer events;
+    private final AtomicLong next;
+    private volatile long runId;
+
+    public TraceRecorder(char role, int processId, File dir, int capacity) {
+        this.role = role;
+        this.processId = processId;
+        this.dir = dir;
+        this.capacity = capacity;
+        this.events = dir == null ? null : ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        this.next = new AtomicLong();
+    }
+
+    public static TraceRecorder fromSystemProperties(char role, int processId) {
+        String dir = System.getProperty("consensus.trace");
+        return new TraceRecorder(role, processId, dir == null ? null : new File(dir),
+                Integer.getInteger("consensus.trace.capacity", 65536));
+    }
+
+    public boolean isEnabled() {
+        return events != null;
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public void setRunId(long runId) {
+        this.runId = runId;
+    }
+
+    //  Wall-clock microseconds, precise to the microsecond unlike currentTimeMillis
+    public static long nowMicros() {
+        return BASE_MILLIS * 1000 + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
+    //  Prefixes a frame with this process's trace context, leaving empty round messages alone
+    public String tag(String frame, int round) {
+        if (!isEnabled() || frame.isEmpty()) return frame;
+        return "TRACE " + Long.toHexString(runId) + " " + round + " " + nowMicros() + " " + frame;
+    }
+
+    public void sent(int peer, String frame, int round) {
+        if (!isEnabled() || frame.isEmpty()) return;
+        record(SEND, frameCode(frame), peer, round, nowMicros(), 0);
+    }
+
+    public void received(int peer, Message message) {
+        if (!isEnabled() || message == null || message.getTrace() == null) return;
+        TraceContext trace = message.getTrace();
+        record(RECEIVE, frameCode(message.message), peer, trace.getRound(), nowMicros(), trace.getSentMicros());
+    }
+
+    //  Records a span that started at the given System.nanoTime() and ends now
+    public void span(byte kind, int round, long startNanos) {
+        if (!isEnabled()) return;
+        long duration = (System.nanoTime() - startNanos) / 1000;
+        record(kind, (byte) 0, 0, round, nowMicros() - duration, duration);
+    }
+
+    private void record(byte kind, byte frame, int peer, int round, long time, long value) {
+        int offset = (int) (next.getAndIncrement() % capacity) * RECORD_SIZE;
+        //  absolute puts, so concurrent recorders never share a position
+        events.put(offset, kind);
+        events.put(offset + 1, frame);
+        events.putInt(offset + 4, peer);
+        events.putInt(offset + 8, round);
+        events.putLong(offset + 16, time);
+        events.putLong(offset + 24, value);
+        events.putLong(offset + 32, runId);
+    }
+
+    static byte frameCode(String frame) {
+        int end = frame.indexOf(' ');
+        String type = end < 0 ? frame : frame.substring(0, end);
+        for (byte code = 1; code < FRAMES.length; code++) {
+            if (FRAMES[code].equals(type)) return code;
+        }
+        return 0;
+    }
+
+    /*
+     *  Writes the buffered events to trace_<processId>_<millis>.bin in the trace directory. Meant to be called once
+     *  the process is done, as events recorded during the dump may be torn.
+     */
+    public void dump() throws IOException {
+        if (!isEnabled()) return;
+        long written = next.get();
+        int count = (int) Math.min(written, capacity);
+        int first = (int) ((written - count) % capacity);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(role).putInt(processId).putInt(count).flip();
+
+        ByteBuffer all = events.duplicate();
+        File file = new File(dir, "trace_" + processId + "_" + System.currentTimeMillis() + ".bin");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+            //  oldest events sit after the write position once the buffer has wrapped
+            all.limit(Math.min(first + count, capacity) * RECORD_SIZE).position(first * RECORD_SIZE);
+            channel.write(all);
+            all.limit(Math.max(first + count - capacity, 0) * RECORD_SIZE).position(0);
+            channel.write(all);
+        }
+    }
+}
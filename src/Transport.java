@@ -0,0 +1,37 @@
+import java.io.IOException;
+
+/*
+ *  How participants and the coordinator reach each other. Processes are addressed by the same port numbers used
+ *  throughout the protocol, and exchange newline-free text messages one line at a time.
+ *
+ *  Connections behave like the blocking sockets they replace: readLine() returns null once the other side has closed
+ *  the connection, throws SocketTimeoutException when the read timeout expires, and SocketException once the
+ *  connection has been closed locally or reset.
+ */
+public interface Transport {
+
+    //  Starts accepting connections addressed to the given port
+    TransportServer listen(int port) throws IOException;
+
+    //  Opens a connection to whoever is listening on the given port, failing if nobody is
+    Connection connect(int port) throws IOException;
+
+    //  The transport named by -Dconsensus.transport, TCP unless it says otherwise
+    static Transport fromSystemProperties() {
+        return named(System.getProperty("consensus.transport", "tcp"));
+    }
+
+    //  "tcp", "shm" for SharedMemoryTransport or "unix" for UnixDomainTransport
+    static Transport named(String name) {
+        switch (name) {
+            case "tcp":
+                return new TcpTransport();
+            case "shm":
+                return SharedMemoryTransport.fromSystemProperties();
+            case "unix":
+                return UnixDomainTransport.fromSystemProperties();
+            default:
+                throw new IllegalArgumentException("Unknown transport " + name);
+        }
+    }
+}
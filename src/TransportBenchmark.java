@@ -0,0 +1,134 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+/*
+ *  Compares transports on the traffic pattern of a run: a full mesh of peers in which every round, each peer sends
+ *  one VOTE line to every other and then waits to hear from all of them. Round latency is measured per peer from its
+ *  first send to its last receipt; CPU is the process's CPU time over all rounds, which includes the kernel's share
+ *  of the work on the connections. Appends one JSON object per transport to the report file.
+ *
+ *  Usage: TransportBenchmark <peers> <rounds> <reportFile> [transport...]
+ *
+ *  Transports are named as for -Dconsensus.transport and default to tcp and unix. All peers run as threads of this
+ *  JVM, so the numbers isolate the cost of the transports themselves from process scheduling.
+ */
+public class TransportBenchmark {
+    private final int numPeers;
+    private final int rounds;
+    private final int basePort;
+
+    public TransportBenchmark(int numPeers, int rounds, int basePort) {
+        this.numPeers = numPeers;
+        this.rounds = rounds;
+        this.basePort = basePort;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) throw new IllegalArgumentException("Can't have less than 3 args!");
+
+        int numPeers = Integer.parseInt(args[0]);
+        int rounds = Integer.parseInt(args[1]);
+        File report = new File(args[2]);
+        List<String> transports = args.length > 3 ? Arrays.asList(args).subList(3, args.length) : Arrays.asList("tcp", "unix");
+
+        int basePort = 40000 + new Random().nextInt(10000);
+        for (String name : transports) {
+            String json = new TransportBenchmark(numPeers, rounds, basePort).run(name);
+            basePort += numPeers;
+            System.out.println(json);
+            try (PrintStream out = new PrintStream(new FileOutputStream(report, true))) {
+                out.println(json);
+            }
+        }
+    }
+
+    public String run(String transportName) throws Exception {
+        Transport transport = Transport.named(transportName);
+        LatencyHistogram roundMicros = new LatencyHistogram();
+        Semaphore[] heard = new Semaphore[numPeers];
+        List<TransportServer> servers = new ArrayList<>();
+        List<Thread> readers = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < numPeers; i++) {
+            heard[i] = new Semaphore(0);
+            TransportServer server = transport.listen(basePort + i);
+            servers.add(server);
+            Semaphore peerHeard = heard[i];
+            Thread acceptor = new Thread(() -> {
+                for (int accepted = 0; accepted < numPeers - 1; accepted++) {
+                    try {
+                        Connection connection = server.accept();
+                        Thread reader = new Thread(() -> readAll(connection, peerHeard));
+                        readers.add(reader);
+                        reader.start();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            });
+            acceptor.start();
+        }
+
+        //  peers send down the connections they open and read from the ones they accept, like participants
+        List<List<Connection>> outgoing = new ArrayList<>();
+        for (int i = 0; i < numPeers; i++) {
+            List<Connection> connections = new ArrayList<>();
+            for (int j = 0; j < numPeers; j++) {
+                if (j != i) connections.add(transport.connect(basePort + j));
+            }
+            outgoing.add(connections);
+        }
+
+        long cpuStart = processCpuNanos();
+        long start = System.nanoTime();
+        List<Thread> peers = new ArrayList<>();
+        for (int i = 0; i < numPeers; i++) {
+            int peer = i;
+            peers.add(new Thread(() -> {
+                String vote = "VOTE " + (basePort + peer) + " A";
+                try {
+                    for (int round = 1; round <= rounds; round++) {
+                        long roundStart = System.nanoTime();
+                        for (Connection connection : outgoing.get(peer)) connection.sendLine(vote);
+                        heard[peer].acquire(numPeers - 1);
+                        roundMicros.record((System.nanoTime() - roundStart) / 1000);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        peers.forEach(Thread::start);
+        for (Thread peer : peers) peer.join();
+        long elapsedNanos = System.nanoTime() - start;
+        long cpuNanos = processCpuNanos() - cpuStart;
+
+        for (List<Connection> connections : outgoing) {
+            for (Connection connection : connections) connection.close();
+        }
+        for (TransportServer server : servers) server.close();
+        for (Thread reader : readers) reader.join();
+
+        return String.format(Locale.ROOT, "{\"transport\":\"%s\",\"peers\":%d,\"rounds\":%d,\"elapsedMs\":%.3f,"
+                        + "\"roundMs\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f},\"cpuMsPerRound\":%.3f}",
+                transportName, numPeers, rounds, elapsedNanos / 1e6,
+                roundMicros.valueAtPercentile(50) / 1000.0, roundMicros.valueAtPercentile(90) / 1000.0,
+                roundMicros.valueAtPercentile(99) / 1000.0, roundMicros.max() / 1000.0,
+                cpuNanos / 1e6 / rounds);
+    }
+
+    private static void readAll(Connection connection, Semaphore heard) {
+        try {
+            while (connection.readLine() != null) heard.release();
+        } catch (IOException e) {
+            //  closed at the end of the benchmark
+        }
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/*
+ *  The listening end of a Transport, accepting the connections addressed to one port.
+ */
+public interface TransportServer {
+
+    //  Blocks until the next connection arrives
+    Connection accept() throws IOException;
+
+    void close() throws IOException;
+}
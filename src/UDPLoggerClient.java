@@ -1,10 +1,41 @@
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UDPLoggerClient {
 	
 	private final int loggerServerPort;
 	private final int processId;
 	private final int timeout;
+	
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int QUEUE_CAPACITY = 4096;
+	
+	private DatagramSocket socket;
+	private int nextSequence;
+	private final byte[] ackBuffer = new byte[64];
+	private final DatagramPacket ack = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+	/**
+	 * Messages waiting for the sender thread, which sends them one at a time and waits for each to be acknowledged
+	 */
+	private final BlockingQueue<String> queue;
+	/**
+	 * Messages queued or being sent, which have to be flushed before the process exits
+	 */
+	private final AtomicInteger pending;
+	private Thread sender;
+	/**
+	 * The last failure of the sender thread, which the next call to logToServer reports
+	 */
+	private volatile IOException failure;
+	private boolean dropping;
 
 	/**
 	 * @param loggerServerPort the UDP port where the Logger process is listening o
@@ -15,6 +46,8 @@ public class UDPLoggerClient {
 		this.loggerServerPort = loggerServerPort;
 		this.processId = processId;
 		this.timeout = timeout;
+		this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		this.pending = new AtomicInteger();
 	}
 	
 	public int getLoggerServerPort() {
@@ -30,14 +63,122 @@ public class UDPLoggerClient {
 	}
 
 	/**
-	 * Sends a log message to the Logger process
+	 * Queues a log message for the Logger process, without waiting for it to be sent. A sender thread sends the
+	 * messages in order, each acknowledged by the Logger process or sent again up to MAX_ATTEMPTS times in all, so a
+	 * slow or missing Logger process never holds up the caller, which may hold locks the protocol needs. When the
+	 * queue is full the message is dropped. Does nothing if there is no Logger process, i.e. its port is 0
 	 * 
 	 * @param message the log message
-	 * @throws IOException
+	 * @throws IOException if messages have started being dropped, or the last message sent wasn't acknowledged
 	 */
 	public void logToServer(String message) throws IOException {
+		if (loggerServerPort == 0)
+			return;
+		startSender();
+
+		pending.incrementAndGet();
+		boolean queued = queue.offer(message);
+		if (!queued)
+			sent();
+		IOException failed = failure;
+		if (failed != null) {
+			failure = null;
+			throw failed;
+		}
+		synchronized (this) {
+			//  reported once each time the queue fills up
+			if (queued || dropping) {
+				dropping = !queued && dropping;
+				return;
+			}
+			dropping = true;
+		}
+		throw new IOException("Logger queue is full, dropping messages");
+	}
+
+	/**
+	 * Waits until every queued message has been sent, or for at most the given time
+	 *
+	 * @param maxWaitMillis the longest to wait
+	 */
+	public synchronized void flush(long maxWaitMillis) {
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		while (pending.get() > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void startSender() {
+		if (sender != null)
+			return;
+		sender = new Thread(this::sendAll, "logger-client-" + processId);
+		sender.setDaemon(true);
+		sender.start();
+		//  the sender is a daemon, so what it hasn't sent when the process exits is sent first
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> flush((long) MAX_ATTEMPTS * timeout)));
+	}
+
+	private void sendAll() {
+		while (true) {
+			String message;
+			try {
+				message = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				send(message);
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				sent();
+			}
+		}
+	}
+
+	private void sent() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sends a message and waits for its acknowledgement; called on the sender thread only
+	 */
+	private void send(String message) throws IOException {
+		if (socket == null) {
+			socket = new DatagramSocket();
+			socket.setSoTimeout(timeout);
+		}
 		
-		// YOUR IMPLEMENTATION HERE!!
+		int sequence = nextSequence++;
+		byte[] data = (processId + " " + sequence + " " + message).getBytes(StandardCharsets.UTF_8);
+		DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), loggerServerPort);
+		String expectedAck = "ACK " + sequence;
 		
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			socket.send(packet);
+			try {
+				while (true) {
+					ack.setLength(ackBuffer.length);
+					socket.receive(ack);
+					//  a late ACK for an earlier attempt of an earlier message is skipped
+					if (new String(ack.getData(), 0, ack.getLength(), StandardCharsets.UTF_8).equals(expectedAck))
+						return;
+				}
+			} catch (SocketTimeoutException e) {
+				//  resend
+			}
+		}
+		throw new IOException("Logger server didn't acknowledge message " + sequence + " after " + MAX_ATTEMPTS + " attempts");
 	}
 }
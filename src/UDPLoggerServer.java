@@ -1,17 +1,27 @@
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
+/*
+ *  Collects the log messages of every process in the cluster. Each datagram is "<processId> <sequence> <message>" and
+ *  is acknowledged with "ACK <sequence>"; a retransmitted message is acknowledged again but only stored once.
+ *  Messages go into a SegmentedLog named logger_server_<launchTime>, with segments of -Dconsensus.logger.segmentSize
+ *  bytes (default 64 MB).
+ */
 public class UDPLoggerServer {
     int loggerPort;
-    File logFile;
-    PrintStream logWriter;
+    SegmentedLog log;
+    //  Highest sequence number stored for each process
+    final Map<Integer, Integer> lastSequence;
 
     public UDPLoggerServer(int loggerPort, long launchTime) throws IOException {
         this.loggerPort = loggerPort;
-        this.logFile = new File("logger_server_" + launchTime + ".log");
-        this.logWriter = new PrintStream(logFile);
+        this.log = new SegmentedLog("logger_server_" + launchTime, Integer.getInteger("consensus.logger.segmentSize", 64 << 20));
+        this.lastSequence = new HashMap<>();
     }
 
 
@@ -20,5 +30,45 @@ public class UDPLoggerServer {
         if (args.length == 0) throw new IllegalArgumentException("Must pass an argument for logger port!");
         int loggerPort = Integer.parseInt(args[0]);
         UDPLoggerServer loggerServer = new UDPLoggerServer(loggerPort,launchTime);
+        //  the server runs until it is killed, at which point the last segment is trimmed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                loggerServer.log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        loggerServer.receive();
+    }
+
+    public void receive() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(loggerPort, InetAddress.getLoopbackAddress())) {
+            byte[] buffer = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                String datagram = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+
+                String[] parts = datagram.split(" ", 3);
+                if (parts.length < 3) continue;
+                int processId;
+                int sequence;
+                try {
+                    processId = Integer.parseInt(parts[0]);
+                    sequence = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                if (sequence > lastSequence.getOrDefault(processId, -1)) {
+                    log.append(processId, sequence, parts[2]);
+                    lastSequence.put(processId, sequence);
+                }
+
+                byte[] ack = ("ACK " + sequence).getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            }
+        }
     }
 }
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  Connects processes on one machine through Unix domain sockets, which skip the TCP/IP stack that loopback
+ *  connections still go through. A process listening on port p binds the socket file consensus_<p>.sock under the
+ *  socket directory, so processes keep addressing each other by port.
+ *
+ *  Unix domain socket channels arrived in JDK 16, while the project builds for Java 8, so the three calls that need
+ *  them go through reflection and the transport reports itself unavailable on older JVMs. Connections are
+ *  non-blocking channels read through a selector, which is how read timeouts work without a Socket to set them on.
+ *
+ *  Enabled with -Dconsensus.transport=unix; -Dconsensus.unix.dir (default java.io.tmpdir) is where the socket files
+ *  are created.
+ */
+public class UnixDomainTransport implements Transport {
+    private final File dir;
+    //  Accepted connections have no port of their own, so they are numbered like ephemeral ports
+    private final AtomicInteger nextEphemeralPort;
+
+    public UnixDomainTransport(File dir) {
+        if (!isAvailable()) throw new UnsupportedOperationException("Unix domain socket channels need JDK 16 or later");
+        this.dir = dir;
+        this.nextEphemeralPort = new AtomicInteger(50000);
+    }
+
+    public static UnixDomainTransport fromSystemProperties() {
+        return new UnixDomainTransport(new File(System.getProperty("consensus.unix.dir", System.getProperty("java.io.tmpdir"))));
+    }
+
+    public static boolean isAvailable() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private File socketFile(int port) {
+        return new File(dir, "consensus_" + port + ".sock");
+    }
+
+    @Override
+    public TransportServer listen(int port) throws IOException {
+        File file = socketFile(port);
+        //  a socket file outlives a process that crashed, and would fail the bind, but one still being listened on
+        //  belongs to a live process, which mustn't be taken over
+        if (file.exists()) {
+            if (isListening(file)) throw new BindException("Address already in use: " + port);
+            file.delete();
+        }
+        ServerSocketChannel serverChannel = (ServerSocketChannel) open(ServerSocketChannel.class);
+        serverChannel.bind(address(file));
+        //  the coordinator exits without closing its server
+        file.deleteOnExit();
+        return new TransportServer() {
+            @Override
+            public Connection accept() throws IOException {
+                return new UnixConnection(serverChannel.accept(), nextEphemeralPort.getAndIncrement());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverChannel.close();
+                file.delete();
+            }
+        };
+    }
+
+    private static boolean isListening(File file) throws IOException {
+        try (SocketChannel probe = (SocketChannel) open(SocketChannel.class)) {
+            probe.connect(address(file));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Connection connect(int port) throws IOException {
+        File file = socketFile(port);
+        if (!file.exists()) throw new ConnectException("Connection refused: " + port);
+        SocketChannel channel = (SocketChannel) open(SocketChannel.class);
+        try {
+            channel.connect(address(file));
+        } catch (IOException e) {
+            channel.close();
+            throw new ConnectException("Connection refused: " + port);
+        }
+        return new UnixConnection(channel, port);
+    }
+
+    //  SocketChannel.open(StandardProtocolFamily.UNIX), or the same for ServerSocketChannel
+    private static Object open(Class<?> channelType) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelType.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Can't open a Unix domain socket channel", e);
+        }
+    }
+
+    //  UnixDomainSocketAddress.of(file)
+    private static SocketAddress address(File file) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, file.toPath());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Can't address Unix domain socket " + file, e);
+        }
+    }
+
+    private static class UnixConnection implements Connection {
+        private final SocketChannel channel;
+        private final int remotePort;
+        private final Selector readSelector;
+        private final Selector writeSelector;
+        private final ByteBuffer in;
+        //  Bytes of the line being read that arrived before the rest of it
+        private byte[] partial;
+        private int partialLength;
+        private volatile int timeout = 0;
+
+        UnixConnection(SocketChannel channel, int remotePort) throws IOException {
+            this.channel = channel;
+            this.remotePort = remotePort;
+            channel.configureBlocking(false);
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+            this.in = ByteBuffer.allocate(64 * 1024);
+            in.flip();
+            this.partial = new byte[256];
+        }
+
+        @Override
+        public synchronized String readLine() throws IOException {
+            long deadline = timeout > 0 ? System.nanoTime() + timeout * 1_000_000L : Long.MAX_VALUE;
+            while (true) {
+                while (in.hasRemaining()) {
+                    byte b = in.get();
+                    if (b == '\n') {
+                        String line = new String(partial, 0, partialLength, StandardCharsets.UTF_8);
+                        partialLength = 0;
+                        return line;
+                    }
+                    if (partialLength == partial.length) partial = Arrays.copyOf(partial, partial.length * 2);
+                    partial[partialLength++] = b;
+                }
+
+                in.clear();
+                int read;
+                try {
+                    read = channel.read(in);
+                } catch (ClosedChannelException e) {
+                    throw new SocketException("Socket closed");
+                } finally {
+                    in.flip();
+                }
+                if (read < 0) return null;
+                if (read > 0) continue;
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new SocketTimeoutException("Read timed out");
+                await(readSelector, deadline == Long.MAX_VALUE ? 0 : Math.max(remaining / 1_000_000L, 1));
+            }
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            ByteBuffer out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            synchronized (writeSelector) {
+                try {
+                    while (out.hasRemaining()) {
+                        if (channel.write(out) == 0) {
+                            //  the other end isn't reading, so wait for room rather than spin
+                            await(writeSelector, 0);
+                        }
+                    }
+                } catch (ClosedChannelException e) {
+                    throw new SocketException("Socket closed");
+                }
+            }
+        }
+
+        //  Waits until the channel is ready for the selector's operation, the time is up, or the connection is closed
+        private void await(Selector selector, long timeoutMillis) throws IOException {
+            try {
+                if (!channel.isOpen()) throw new SocketException("Socket closed");
+                selector.select(timeoutMillis);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            readSelector.wakeup();
+            writeSelector.wakeup();
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ *  The votes a participant knows of, and which of them it learned since it last relayed. Participants are identified
+ *  by their index in the Membership, so the known set is a bitset and each vote is a single option index.
+ *
+ *  Deciding follows the protocol's rule: the option with the most votes wins, ties going to the option that sorts
+ *  first.
+ *
+ *  Safe for concurrent merges without locking. The known and fresh sets are sharded into words of 64 participants,
+ *  each updated by compare-and-set, so listener threads merging votes only contend when they touch the same word. A
+ *  vote's option is written with an ordered write before the compare-and-set that sets its known bit, so any reader
+ *  that sees the bit also sees the option; a vote never changes once cast, so two threads merging the same vote write
+ *  the same option. Every vote costs its int option plus two bits, whatever the number of participants.
+ */
+public class VoteState {
+    private final Membership membership;
+    private final AtomicIntegerArray choices;
+    private final AtomicLongArray known;
+    private final AtomicLongArray fresh;
+
+    public VoteState(Membership membership) {
+        this.membership = membership;
+        this.choices = new AtomicIntegerArray(membership.size());
+        for (int i = 0; i < membership.size(); i++) choices.set(i, -1);
+        this.known = new AtomicLongArray(numWords(membership.size()));
+        this.fresh = new AtomicLongArray(numWords(membership.size()));
+    }
+
+    /*
+     *  Creates a state whose votes are read from a shared array, indexed like the membership. A vote never changes
+     *  once cast, so a simulation can keep one array of every participant's choice and give each node its own known
+     *  set over it, instead of a copy per node.
+     */
+    VoteState(Membership membership, AtomicIntegerArray sharedChoices) {
+        if (sharedChoices.length() != membership.size())
+            throw new IllegalArgumentException("Need exactly one choice per participant");
+        this.membership = membership;
+        this.choices = sharedChoices;
+        this.known = new AtomicLongArray(numWords(membership.size()));
+        this.fresh = new AtomicLongArray(numWords(membership.size()));
+    }
+
+    private static int numWords(int participants) {
+        return (participants + 63) >>> 6;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /*
+     *  Records a vote, ignoring ones from unknown participants or for unknown options.
+     *
+     *  @return whether the vote was new
+     */
+    public boolean merge(int port, String option) {
+        int participant = membership.indexOfPort(port);
+        int optionIndex = membership.indexOfOption(option);
+        if (participant < 0 || optionIndex < 0) return false;
+        return merge(participant, optionIndex);
+    }
+
+    public boolean merge(int participant, int option) {
+        int word = participant >>> 6;
+        long bit = 1L << participant;
+        if ((known.get(word) & bit) != 0) return false;
+        //  Ordered before the compare-and-set below, which publishes the option along with the bit: a reader's volatile
+        //  read of the word that sees the bit happens after this write. Done outside the loop, so a retry only
+        //  repeats the compare-and-set.
+        choices.lazySet(participant, option);
+        long current;
+        do {
+            current = known.get(word);
+            if ((current & bit) != 0) return false;
+        } while (!known.compareAndSet(word, current, current | bit));
+        fresh.getAndAccumulate(word, bit, (a, b) -> a | b);
+        return true;
+    }
+
+    /*
+     *  Records the votes of every participant in the given set, for states sharing their choices array.
+     *
+     *  @return the participants that were new
+     */
+    BitSet mergeKnown(BitSet participants) {
+        long[] words = participants.toLongArray();
+        long[] learned = new long[Math.min(words.length, known.length())];
+        for (int i = 0; i < learned.length; i++) {
+            //  later rounds mostly bring nothing new, which costs a read rather than a compare-and-set
+            if ((words[i] & ~known.get(i)) == 0) continue;
+            long previous = known.getAndAccumulate(i, words[i], (a, b) -> a | b);
+            learned[i] = words[i] & ~previous;
+            fresh.getAndAccumulate(i, learned[i], (a, b) -> a | b);
+        }
+        return BitSet.valueOf(learned);
+    }
+
+    public boolean isKnown(int participant) {
+        return (known.get(participant >>> 6) & (1L << participant)) != 0;
+    }
+
+    public int choiceOf(int participant) {
+        return isKnown(participant) ? choices.get(participant) : -1;
+    }
+
+    public int numKnown() {
+        int count = 0;
+        for (int i = 0; i < known.length(); i++) count += Long.bitCount(known.get(i));
+        return count;
+    }
+
+    //  @return the participants learned since the last call, which are the ones still to be relayed
+    public BitSet drainFresh() {
+        long[] drained = new long[fresh.length()];
+        for (int i = 0; i < drained.length; i++) {
+            if (fresh.get(i) != 0) drained[i] = fresh.getAndSet(i, 0);
+        }
+        return BitSet.valueOf(drained);
+    }
+
+    public boolean hasFresh() {
+        for (int i = 0; i < fresh.length(); i++) {
+            if (fresh.get(i) != 0) return true;
+        }
+        return false;
+    }
+
+    public BitSet getKnown() {
+        long[] words = new long[known.length()];
+        for (int i = 0; i < words.length; i++) words[i] = known.get(i);
+        return BitSet.valueOf(words);
+    }
+
+    /*
+     *  Encodes every known vote in two tokens: the known set as the hex of BitSet.toByteArray(), then the option index
+     *  of each known participant in order, as base-36 digits of a width fixed by the number of options. With up to 36
+     *  options that is one character per vote, so a state with every vote known takes a few bytes per participant.
+     */
+    public String encodeSnapshot() {
+        BitSet known = getKnown();
+        StringBuilder encoded = new StringBuilder(encodeBits(known));
+        encoded.append(' ');
+        int width = choiceWidth();
+        for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+            String digits = Integer.toString(choices.get(i), 36);
+            for (int pad = digits.length(); pad < width; pad++) encoded.append('0');
+            encoded.append(digits);
+        }
+        if (known.isEmpty()) encoded.append('-');
+        return encoded.toString();
+    }
+
+    /*
+     *  Merges the votes of a snapshot made by encodeSnapshot(), ignoring any participants or options outside the
+     *  membership.
+     *
+     *  @return the participants that were new
+     */
+    public BitSet mergeSnapshot(String encodedKnown, String encodedChoices) {
+        BitSet snapshot = decodeBits(encodedKnown);
+
+        BitSet learned = new BitSet(membership.size());
+        int width = choiceWidth();
+        int position = 0;
+        for (int i = snapshot.nextSetBit(0); i >= 0; i = snapshot.nextSetBit(i + 1)) {
+            if (position + width > encodedChoices.length()) break;
+            int option = Integer.parseInt(encodedChoices.substring(position, position + width), 36);
+            position += width;
+            if (i < membership.size() && option < membership.numOptions() && merge(i, option)) learned.set(i);
+        }
+        return learned;
+    }
+
+    //  A set of participant indices as the hex of BitSet.toByteArray(), "00" when empty
+    public static String encodeBits(BitSet bits) {
+        byte[] bytes = bits.toByteArray();
+        if (bytes.length == 0) return "00";
+        StringBuilder encoded = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            encoded.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return encoded.toString();
+    }
+
+    public static BitSet decodeBits(String encoded) {
+        byte[] bytes = new byte[encoded.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(encoded.substring(2 * i, 2 * i + 2), 16);
+        }
+        return BitSet.valueOf(bytes);
+    }
+
+    //  Base-36 digits needed for the largest option index
+    private int choiceWidth() {
+        return Integer.toString(Math.max(membership.numOptions() - 1, 0), 36).length();
+    }
+
+    public List<Vote> votesOf(BitSet participants) {
+        List<Vote> votes = new ArrayList<>();
+        for (int i = participants.nextSetBit(0); i >= 0; i = participants.nextSetBit(i + 1)) {
+            if (isKnown(i)) votes.add(new Vote(membership.port(i), membership.option(choices.get(i))));
+        }
+        return votes;
+    }
+
+    public List<Vote> getVotes() {
+        return votesOf(getKnown());
+    }
+
+    public List<Integer> getKnownPorts() {
+        return portsOf(getKnown());
+    }
+
+    public List<Integer> portsOf(BitSet participants) {
+        List<Integer> ports = new ArrayList<>();
+        for (int i = participants.nextSetBit(0); i >= 0; i = participants.nextSetBit(i + 1)) {
+            ports.add(membership.port(i));
+        }
+        return ports;
+    }
+
+    public int[] tally() {
+        return tally(getKnown());
+    }
+
+    //  @param voters known participants, such as a snapshot from getKnown()
+    public int[] tally(BitSet voters) {
+        int[] counts = new int[membership.numOptions()];
+        for (int i = voters.nextSetBit(0); i >= 0; i = voters.nextSetBit(i + 1)) {
+            counts[choices.get(i)]++;
+        }
+        return counts;
+    }
+
+    //  @return the winning option's index among the given known votes
+    public int decideIndex(BitSet voters) {
+        int[] counts = tally(voters);
+        int winner = -1;
+        for (int option = 0; option < counts.length; option++) {
+            if (winner < 0 || counts[option] > counts[winner]
+                    || (counts[option] == counts[winner] && membership.option(option).compareTo(membership.option(winner)) < 0))
+                winner = option;
+        }
+        return winner;
+    }
+
+    public String decide() {
+        return decide(getKnown());
+    }
+
+    /*
+     *  Decides among the votes of the given known participants. Merges can go on while a decision is made, so deciding
+     *  from one snapshot of the known set, and reporting the outcome with that same snapshot, keeps the voters listed
+     *  with an outcome to the ones it was decided on.
+     */
+    public String decide(BitSet voters) {
+        if (membership.numOptions() == 0) throw new IllegalStateException("No options to decide between");
+        return membership.option(decideIndex(voters));
+    }
+}
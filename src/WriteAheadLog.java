@@ -0,0 +1,172 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ *  Write-ahead log of a participant's part in one run, so that a participant restarted after a crash can take up the
+ *  run where it left off instead of being written off by the rest of the cluster.
+ *
+ *  The log is a text file of lines in the style of the protocol: "DETAILS <ports> [FAULTS <f>]", "OPTIONS <options>",
+ *  "CHOICE <option>", "VOTE <port> <option>" for every vote merged, "ROUND <n>" for every round completed, and
+ *  "OUTCOME <option>". Appends are buffered and only reach the disk on commit(), which the participant calls once its
+ *  vote is chosen and at the end of each round, so a round costs one fsync however many votes it merged.
+ *
+ *  Enabled with -Dconsensus.wal.dir; each participant logs to participant_<port>.wal there. A log that ends with an
+ *  OUTCOME belongs to a finished run and is discarded when the participant starts again.
+ */
+public class WriteAheadLog implements Closeable {
+    private final FileChannel channel;
+    private final StringBuilder pending;
+
+    //  The state recovered from an unfinished run
+    private List<Integer> ports;
+    private int faultBound;
+    private List<String> options;
+    private String choice;
+    private final Map<Integer, String> votes;
+    private int rounds;
+
+    public WriteAheadLog(File file) throws IOException {
+        this.pending = new StringBuilder();
+        this.votes = new LinkedHashMap<>();
+        this.faultBound = -1;
+
+        long validLength = file.exists() ? replay(file) : 0;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        //  drop a line torn by the crash, or the whole log of a finished run
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    //  @return the log for the given participant, or null if write-ahead logging is off
+    public static WriteAheadLog fromSystemProperties(int port) throws IOException {
+        String dir = System.getProperty("consensus.wal.dir");
+        if (dir == null) return null;
+        return new WriteAheadLog(new File(dir, "participant_" + port + ".wal"));
+    }
+
+    //  @return the length of the log up to its last complete line, or 0 if the run it records has finished
+    private long replay(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int end = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') continue;
+            String[] tokens = new String(content, end, i - end, StandardCharsets.UTF_8).split(" ");
+            end = i + 1;
+
+            switch (tokens[0]) {
+                case "DETAILS":
+                    ports = new ArrayList<>();
+                    for (int t = 1; t < tokens.length; t++) {
+                        if (tokens[t].equals("FAULTS")) {
+                            faultBound = Integer.parseInt(tokens[t + 1]);
+                            break;
+                        }
+                        ports.add(Integer.parseInt(tokens[t]));
+                    }
+                    break;
+                case "OPTIONS":
+                    options = new ArrayList<>(Arrays.asList(tokens).subList(1, tokens.length));
+                    break;
+                case "CHOICE":
+                    choice = tokens[1];
+                    break;
+                case "VOTE":
+                    votes.put(Integer.parseInt(tokens[1]), tokens[2]);
+                    break;
+                case "ROUND":
+                    rounds = Integer.parseInt(tokens[1]);
+                    break;
+                case "OUTCOME":
+                    ports = null;
+                    faultBound = -1;
+                    options = null;
+                    choice = null;
+                    votes.clear();
+                    rounds = 0;
+                    return 0;
+            }
+        }
+        return end;
+    }
+
+    //  Whether the log holds an unfinished run that the participant can rejoin
+    public boolean canRecover() {
+        return ports != null && options != null;
+    }
+
+    public List<Integer> getPorts() {
+        return ports;
+    }
+
+    //  The most crashes the run has to tolerate, or -1 for all but one
+    public int getFaultBound() {
+        return faultBound;
+    }
+
+    public List<String> getOptions() {
+        return options;
+    }
+
+    //  The participant's own vote, or null if it crashed before choosing
+    public String getChoice() {
+        return choice;
+    }
+
+    public Map<Integer, String> getVotes() {
+        return votes;
+    }
+
+    //  The number of rounds completed before the crash
+    public int getRounds() {
+        return rounds;
+    }
+
+    public synchronized void details(List<Integer> ports, int faultBound) {
+        pending.append("DETAILS");
+        for (Integer port : ports) pending.append(' ').append(port);
+        if (faultBound >= 0) pending.append(" FAULTS ").append(faultBound);
+        pending.append('\n');
+    }
+
+    public synchronized void options(List<String> options) {
+        pending.append("OPTIONS");
+        for (String option : options) pending.append(' ').append(option);
+        pending.append('\n');
+    }
+
+    public synchronized void choice(String option) {
+        pending.append("CHOICE ").append(option).append('\n');
+    }
+
+    public synchronized void vote(int port, String option) {
+        pending.append("VOTE ").append(port).append(' ').append(option).append('\n');
+    }
+
+    public synchronized void round(int round) {
+        pending.append("ROUND ").append(round).append('\n');
+    }
+
+    public synchronized void outcome(String option) {
+        pending.append("OUTCOME ").append(option).append('\n');
+    }
+
+    //  Writes everything appended since the last commit and forces it to the disk
+    public synchronized void commit() throws IOException {
+        if (pending.length() == 0) return;
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+        pending.setLength(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+}